@@ -23,7 +23,7 @@ public class EventsimTopology implements StormTopologyFactory {
         app.tickRate("collectionPerTimeFrameSolrBoltAction"));
 
     // Send all docs for the same hash range to the same bolt instance,
-    // which allows us to use a streaming approach to send docs to the leader
+    // which allows us to use a streaming approach to send docs to the leader (see StreamingLeaderSolrBoltAction)
     int numShards = Integer.parseInt(String.valueOf(app.getStormConfig().get("spring.eventsimNumShards")));
     HashRangeGrouping hashRangeGrouping = new HashRangeGrouping(app.getStormConfig(), numShards);
     int tasksPerShard = hashRangeGrouping.getNumShards()*2;
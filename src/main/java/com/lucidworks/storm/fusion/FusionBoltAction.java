@@ -6,16 +6,23 @@ import java.util.*;
 import backtype.storm.task.OutputCollector;
 import backtype.storm.tuple.Tuple;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.lucidworks.storm.io.DeadLetterQueue;
 import com.lucidworks.storm.spring.SpringBolt;
 import com.lucidworks.storm.spring.StreamingDataAction;
+import com.lucidworks.storm.utils.GzipRequestCompressor;
 import org.apache.log4j.Logger;
 
 public class FusionBoltAction implements StreamingDataAction {
 
   private static final Logger log = Logger.getLogger(FusionBoltAction.class);
 
+  public static final String DEAD_LETTER_TARGET = "fusion";
+
   protected FusionPipelineClient fusionPipelineClient;
   protected String updatePath;
+  protected DeadLetterQueue deadLetterQueue;
+  protected ObjectMapper jsonObjectMapper = new ObjectMapper();
 
   public FusionBoltAction(String endpoints, String fusionUser, String fusionPass, String fusionRealm, String updatePath) throws MalformedURLException {
 
@@ -49,12 +56,60 @@ public class FusionBoltAction implements StreamingDataAction {
       fusionPipelineClient.postBatchToPipeline(Collections.singletonList(json));
     } catch (Exception e) {
       log.error("Failed to send doc "+docId+" to Fusion due to: "+e);
-      throw new RuntimeException(e);
+      if (!deadLetter(json, e))
+        throw new RuntimeException(e);
     }
 
     return SpringBolt.ExecuteResult.ACK;
   }
 
+  /**
+   * Writes a doc that could not be sent to the deadLetterQueue, if there is one; returns true if the doc
+   * was written so its tuple can be acked.
+   */
+  protected boolean deadLetter(Map<String,Object> json, Exception error) {
+    if (deadLetterQueue == null)
+      return false;
+
+    try {
+      deadLetterQueue.append(DEAD_LETTER_TARGET, 1, jsonObjectMapper.writeValueAsBytes(Collections.singletonList(json)));
+    } catch (Exception exc) {
+      log.error("Failed to write doc "+json.get("id")+" to the dead letter queue due to: "+exc, exc);
+      return false;
+    }
+
+    log.warn("Wrote doc "+json.get("id")+" to the dead letter queue after: "+error);
+    return true;
+  }
+
+  public DeadLetterQueue getDeadLetterQueue() {
+    return deadLetterQueue;
+  }
+
+  /**
+   * Writes docs that Fusion fails to accept to the queue instead of failing their tuples; the queue
+   * re-posts them to the pipeline in the background. A disabled queue is ignored.
+   */
+  public void setDeadLetterQueue(DeadLetterQueue deadLetterQueue) {
+    this.deadLetterQueue = (deadLetterQueue != null && deadLetterQueue.isEnabled()) ? deadLetterQueue : null;
+    if (this.deadLetterQueue != null) {
+      this.deadLetterQueue.setRedriveHandler(DEAD_LETTER_TARGET, new DeadLetterQueue.RedriveHandler() {
+        public boolean redrive(byte[] payload) throws Exception {
+          fusionPipelineClient.postBatchToPipeline(jsonObjectMapper.readValue(payload, List.class));
+          return true;
+        }
+      });
+    }
+  }
+
+  public GzipRequestCompressor getRequestCompressor() {
+    return fusionPipelineClient.getRequestCompressor();
+  }
+
+  public void setRequestCompressor(GzipRequestCompressor requestCompressor) {
+    fusionPipelineClient.setRequestCompressor(requestCompressor);
+  }
+
   protected Map<String,Object> buildField(String name, Object value) {
     Map<String,Object> tsFld = new HashMap<String, Object>();
     tsFld.put("name", name);
@@ -23,6 +23,7 @@ import org.apache.http.impl.cookie.BasicClientCookie;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.lucidworks.storm.utils.GzipRequestCompressor;
 
 import org.apache.http.client.config.CookieSpecs;
 import org.apache.http.client.config.RequestConfig;
@@ -39,6 +40,7 @@ import java.nio.charset.StandardCharsets;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -85,6 +87,7 @@ public class FusionPipelineClient {
   AtomicInteger requestCounter = null;
   Map<String,Meter> metersByHost = new HashMap<>();
   boolean isKerberos = false;
+  GzipRequestCompressor requestCompressor = null;
 
   public static MetricRegistry metrics = null;
 
@@ -301,6 +304,17 @@ public class FusionPipelineClient {
     return httpClient;
   }
 
+  public GzipRequestCompressor getRequestCompressor() {
+    return requestCompressor;
+  }
+
+  /**
+   * Compresses the JSON sent to the pipeline as it is streamed to Fusion.
+   */
+  public void setRequestCompressor(GzipRequestCompressor requestCompressor) {
+    this.requestCompressor = requestCompressor;
+  }
+
   protected String getLbEndpoint(List<String> list) {
     int num = list.size();
     if (num == 0)
@@ -417,7 +431,7 @@ public class FusionPipelineClient {
     return retryAfterException;
   }
 
-  private class JacksonContentProducer implements ContentProducer {
+  private static class JacksonContentProducer implements ContentProducer {
 
     ObjectMapper mapper;
     Object jsonObj;
@@ -432,6 +446,44 @@ public class FusionPipelineClient {
     }
   }
 
+  /**
+   * Returns an entity that streams the JSON directly to the HTTP output; the charset goes on the content type
+   * rather than in a Content-Encoding header, which is reserved for encodings such as gzip.
+   */
+  public static EntityTemplate createJsonEntity(ObjectMapper mapper, Object jsonObj) {
+    EntityTemplate et = new EntityTemplate(new JacksonContentProducer(mapper, jsonObj));
+    et.setContentType(ContentType.create("application/json", StandardCharsets.UTF_8).toString());
+    return et;
+  }
+
+  /**
+   * Roughly estimates the number of bytes the JSON for the object takes, such as to decide whether a request
+   * is worth compressing; stops counting once the estimate reaches the limit.
+   */
+  public static long estimateJsonBytes(Object obj, long limit) {
+    if (obj instanceof CharSequence)
+      return ((CharSequence)obj).length() + 2;
+
+    long bytes = 2;
+    if (obj instanceof Map) {
+      for (Object o : ((Map)obj).entrySet()) {
+        Map.Entry entry = (Map.Entry)o;
+        bytes += String.valueOf(entry.getKey()).length() + 4 + estimateJsonBytes(entry.getValue(), limit - bytes);
+        if (bytes >= limit)
+          break;
+      }
+    } else if (obj instanceof Collection) {
+      for (Object value : (Collection)obj) {
+        bytes += 1 + estimateJsonBytes(value, limit - bytes);
+        if (bytes >= limit)
+          break;
+      }
+    } else {
+      bytes = String.valueOf(obj).length(); // numbers, booleans, and null
+    }
+    return bytes;
+  }
+
   public void postJsonToPipeline(String endpoint, List docs, int requestId) throws Exception {
 
     FusionSession fusionSession = null;
@@ -456,10 +508,14 @@ public class FusionPipelineClient {
       HttpPost postRequest = new HttpPost(endpoint);
 
       // stream the json directly to the HTTP output
-      EntityTemplate et = new EntityTemplate(new JacksonContentProducer(jsonObjectMapper, docs));
-      et.setContentType("application/json");
-      et.setContentEncoding(StandardCharsets.UTF_8.name());
-      postRequest.setEntity(et); // new BufferedHttpEntity(et));
+      EntityTemplate et = createJsonEntity(jsonObjectMapper, docs);
+      if (requestCompressor != null) {
+        // the streamed entity doesn't know its length, so only compress batches big enough to be worth it
+        long minBytes = requestCompressor.getMinCompressBytes();
+        postRequest.setEntity(requestCompressor.compress(et, estimateJsonBytes(docs, minBytes)));
+      } else {
+        postRequest.setEntity(et); // new BufferedHttpEntity(et));
+      }
 
       HttpResponse response = null;
       HttpClientContext context = null;
@@ -0,0 +1,338 @@
+package com.lucidworks.storm.io;
+
+import com.codahale.metrics.Counter;
+import com.google.common.util.concurrent.RateLimiter;
+import com.ryantenney.metrics.annotation.Metric;
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Local, disk-backed queue for batches that could not be sent after exhausting all re-tries, so a slow or
+ * broken target system doesn't block the live stream and failed batches aren't dropped. Batches are written
+ * to a MappedLog and re-driven in the background by the RedriveHandler registered for their target, at up to
+ * redriveDocsPerSec. A batch that can't be re-driven yet, because its target has no handler in this worker,
+ * isn't healthy or failed, is moved to the back of the queue so it doesn't hold up the batches behind it; the
+ * worker only backs off once every queued batch has been put back without any getting through.
+ * <p>
+ * The queue stops accepting batches once its segments take up maxBytes on disk, so the bolts fail tuples
+ * for replay instead of filling up the disk while a target is down.
+ * <p>
+ * Declare this bean as a singleton so all bolts in a worker share one queue. Each worker locks its own slot
+ * directory under dir, so several workers on the same host don't clash; after a restart, a worker picks up
+ * the batches left in whichever free slot it locks.
+ */
+public class DeadLetterQueue implements Closeable {
+
+  public static Logger log = Logger.getLogger(DeadLetterQueue.class);
+
+  /**
+   * Re-sends batches written to the queue for a target.
+   */
+  public interface RedriveHandler {
+    /**
+     * Re-sends the payload of a batch; returns false if the target is not healthy enough to accept it yet,
+     * or throws if sending failed. Either way, the batch is moved to the back of the queue to be re-driven
+     * again later.
+     */
+    boolean redrive(byte[] payload) throws Exception;
+  }
+
+  @Metric
+  public Counter deadLetteredDocs;
+
+  @Metric
+  public Counter redrivenDocs;
+
+  @Metric
+  public Counter redriveFailures;
+
+  @Metric
+  public Counter rejectedBatches;
+
+  protected boolean enabled = true;
+  protected String dir = new File(System.getProperty("java.io.tmpdir"), "storm-solr-dlq").getAbsolutePath();
+  protected int maxSlots = 32;
+  protected int segmentSize = 64 * 1024 * 1024;
+  protected double redriveDocsPerSec = 500.0d;
+  protected long redriveBackoffMs = 1000L;
+  protected long maxRedriveBackoffMs = 60000L;
+  protected int maxRedriveAttempts = -1;
+  protected long maxBytes = 1024L * 1024L * 1024L;
+
+  private final ConcurrentMap<String,RedriveHandler> handlers = new ConcurrentHashMap<String,RedriveHandler>();
+  private MappedLog mappedLog;
+  private Thread redriveThread;
+  private volatile boolean closed = false;
+
+  /**
+   * Writes a batch of numDocs documents to the queue, to be re-driven by the handler for the target; throws
+   * an IOException if the queue is full.
+   */
+  public void append(String target, int numDocs, byte[] payload) throws IOException {
+    MappedLog mappedLog = getLog();
+    if (maxBytes > 0 && mappedLog.getSizeOnDisk() >= maxBytes) {
+      if (rejectedBatches != null)
+        rejectedBatches.inc();
+      throw new IOException("Dead letter queue in "+mappedLog.getDir().getAbsolutePath()+
+        " is full; its segments take up "+mappedLog.getSizeOnDisk()+" bytes");
+    }
+
+    mappedLog.append(encode(target, numDocs, 0, payload));
+
+    if (deadLetteredDocs != null)
+      deadLetteredDocs.inc(numDocs);
+  }
+
+  protected static byte[] encode(String target, int numDocs, int attempts, byte[] payload) {
+    byte[] targetBytes = target.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer record = ByteBuffer.allocate(2 + targetBytes.length + 8 + payload.length);
+    record.putShort((short)targetBytes.length);
+    record.put(targetBytes);
+    record.putInt(numDocs);
+    record.putInt(attempts);
+    record.put(payload);
+    return record.array();
+  }
+
+  /**
+   * Registers the handler that re-drives batches for a target; only the first handler registered for a
+   * target is used, as bolts of the same kind in a worker re-drive batches the same way.
+   */
+  public void setRedriveHandler(String target, RedriveHandler handler) {
+    if (handlers.putIfAbsent(target, handler) == null) {
+      log.info("Registered dead letter re-drive handler for "+target);
+      startRedriveThread();
+    }
+  }
+
+  protected synchronized MappedLog getLog() throws IOException {
+    if (closed)
+      throw new IOException("Dead letter queue is closed!");
+
+    if (mappedLog == null) {
+      mappedLog = MappedLog.openInFreeSlot(new File(dir), maxSlots, segmentSize);
+      log.info("Using dead letter queue in "+mappedLog.getDir().getAbsolutePath());
+    }
+    return mappedLog;
+  }
+
+  protected synchronized void startRedriveThread() {
+    if (redriveThread != null || closed)
+      return;
+
+    redriveThread = new Thread(new Runnable() {
+      public void run() {
+        redriveLoop();
+      }
+    }, "dead-letter-redrive");
+    redriveThread.setDaemon(true);
+    redriveThread.start();
+  }
+
+  protected void redriveLoop() {
+    RateLimiter rateLimiter = RateLimiter.create(redriveDocsPerSec);
+    long backoffMs = redriveBackoffMs;
+    // where the batches queued when one was first put back since the last progress end; -1 if none was
+    long lapEndOffset = -1L;
+    while (!closed) {
+      try {
+        MappedLog mappedLog = getLog();
+        if (lapEndOffset != -1L && mappedLog.getReadOffset() >= lapEndOffset) {
+          // every queued batch has been put back since the last one got through
+          Thread.sleep(backoffMs);
+          backoffMs = Math.min(maxRedriveBackoffMs, backoffMs * 2);
+          lapEndOffset = -1L;
+        }
+
+        byte[] record = mappedLog.peek();
+        if (record == null) {
+          lapEndOffset = -1L;
+          Thread.sleep(redriveBackoffMs);
+          continue;
+        }
+
+        String target;
+        int numDocs, attempts;
+        byte[] payload;
+        try {
+          ByteBuffer buffer = ByteBuffer.wrap(record);
+          byte[] targetBytes = new byte[buffer.getShort()];
+          buffer.get(targetBytes);
+          target = new String(targetBytes, StandardCharsets.UTF_8);
+          numDocs = buffer.getInt();
+          attempts = buffer.getInt();
+          payload = new byte[buffer.remaining()];
+          buffer.get(payload);
+        } catch (RuntimeException exc) {
+          log.error("Dropping unreadable record of "+record.length+" bytes from the dead letter queue due to: "+exc);
+          mappedLog.advance();
+          continue;
+        }
+
+        RedriveHandler handler = handlers.get(target);
+        boolean redriven = false;
+        if (handler != null) {
+          rateLimiter.acquire(Math.max(1, numDocs));
+          try {
+            redriven = handler.redrive(payload);
+          } catch (Exception exc) {
+            log.warn("Failed to re-drive batch of "+numDocs+" docs for "+target+" due to: "+exc);
+            if (redriveFailures != null)
+              redriveFailures.inc();
+
+            if (maxRedriveAttempts > 0 && ++attempts >= maxRedriveAttempts) {
+              log.error("Dropping batch of "+numDocs+" docs for "+target+" after "+attempts+" failed re-drive attempts!");
+              mappedLog.advance();
+              continue;
+            }
+          }
+        }
+
+        if (redriven) {
+          mappedLog.advance();
+          if (redrivenDocs != null)
+            redrivenDocs.inc(numDocs);
+          backoffMs = redriveBackoffMs;
+          lapEndOffset = -1L;
+        } else {
+          // move it to the back of the queue so batches for other targets, or collections, can get through
+          if (lapEndOffset == -1L)
+            lapEndOffset = mappedLog.getAppendOffset();
+          mappedLog.append(encode(target, numDocs, attempts, payload));
+          mappedLog.advance();
+        }
+      } catch (InterruptedException ie) {
+        Thread.interrupted();
+        return;
+      } catch (Exception exc) {
+        if (closed)
+          return;
+        // keep the thread alive, so batches get re-driven once whatever went wrong clears up
+        log.error("Failed to re-drive from dead letter queue due to: "+exc, exc);
+        try {
+          Thread.sleep(maxRedriveBackoffMs);
+        } catch (InterruptedException ie) {
+          Thread.interrupted();
+          return;
+        }
+      }
+    }
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Bolts ignore a disabled queue and fail batches that exhaust their re-tries as before.
+   */
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public String getDir() {
+    return dir;
+  }
+
+  public void setDir(String dir) {
+    this.dir = dir;
+  }
+
+  public int getMaxSlots() {
+    return maxSlots;
+  }
+
+  public void setMaxSlots(int maxSlots) {
+    this.maxSlots = maxSlots;
+  }
+
+  public int getSegmentSize() {
+    return segmentSize;
+  }
+
+  public void setSegmentSize(int segmentSize) {
+    this.segmentSize = segmentSize;
+  }
+
+  public double getRedriveDocsPerSec() {
+    return redriveDocsPerSec;
+  }
+
+  public void setRedriveDocsPerSec(double redriveDocsPerSec) {
+    this.redriveDocsPerSec = redriveDocsPerSec;
+  }
+
+  public long getRedriveBackoffMs() {
+    return redriveBackoffMs;
+  }
+
+  public void setRedriveBackoffMs(long redriveBackoffMs) {
+    this.redriveBackoffMs = redriveBackoffMs;
+  }
+
+  public long getMaxRedriveBackoffMs() {
+    return maxRedriveBackoffMs;
+  }
+
+  public void setMaxRedriveBackoffMs(long maxRedriveBackoffMs) {
+    this.maxRedriveBackoffMs = maxRedriveBackoffMs;
+  }
+
+  public int getMaxRedriveAttempts() {
+    return maxRedriveAttempts;
+  }
+
+  /**
+   * Drops a batch after this many failed re-drive attempts; the default of -1 keeps trying until the batch
+   * gets through. Attempts made while the target reports it isn't healthy, or has no handler, don't count.
+   */
+  public void setMaxRedriveAttempts(int maxRedriveAttempts) {
+    this.maxRedriveAttempts = maxRedriveAttempts;
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * Batches are rejected once the segments of the queue take up this many bytes on disk; -1 for no limit.
+   * Batches put back at the end of the queue while re-driving aren't held to the limit.
+   */
+  public void setMaxBytes(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  public void close() throws IOException {
+    Thread thread;
+    synchronized (this) {
+      if (closed)
+        return;
+      closed = true;
+      thread = redriveThread;
+      redriveThread = null;
+    }
+
+    if (thread != null) {
+      thread.interrupt();
+      try {
+        thread.join(5000L);
+      } catch (InterruptedException ie) {
+        Thread.interrupted();
+      }
+    }
+
+    synchronized (this) {
+      if (mappedLog != null) {
+        mappedLog.close();
+        mappedLog = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,439 @@
+package com.lucidworks.storm.io;
+
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of byte[] records stored in memory-mapped segment files under a directory. Appends only
+ * copy the record into the page cache, so they're cheap and survive the worker process dying; call force
+ * to also survive the machine going down.
+ * <p>
+ * Each record is written as its length, a CRC32 of the data, then the data. Records are read in the order
+ * they were written using peek and advance; the read position is saved in a file next to the segments so
+ * reading resumes where it left off after a restart, and segments are deleted once they've been read.
+ * After a crash, the log is truncated at the first incomplete or corrupt record in the last segment.
+ * <p>
+ * Use openInFreeSlot to give each of several processes on a host its own log under a shared directory.
+ */
+public class MappedLog implements Closeable {
+
+  public static Logger log = Logger.getLogger(MappedLog.class);
+
+  public static final String SEGMENT_FILE_SUFFIX = ".seg";
+  public static final String READ_POSITION_FILE = "read.pos";
+
+  static final int RECORD_HEADER_BYTES = 8;
+
+  static final class Segment {
+    final long id;
+    final File file;
+    final MappedByteBuffer buffer;
+    int writePosition;
+
+    Segment(long id, File file, MappedByteBuffer buffer) {
+      this.id = id;
+      this.file = file;
+      this.buffer = buffer;
+    }
+
+    int capacity() {
+      return buffer.capacity();
+    }
+  }
+
+  protected final File dir;
+  protected final int segmentSize;
+
+  private final TreeMap<Long,Segment> segments = new TreeMap<Long,Segment>();
+  private final CRC32 crc = new CRC32();
+  private RandomAccessFile readPositionFile;
+  private Segment writeSegment;
+  private Segment readSegment;
+  private int readPosition;
+  private FileLock slotLock;
+  private RandomAccessFile slotLockFile;
+
+  // where the records returned by the last peek end, so advancing past them doesn't re-read them
+  private Segment peekedSegment;
+  private int peekedPosition;
+  private int peekedRecords;
+
+  /**
+   * Opens the log in the first slot directory under dir, named slot-0 through slot-(maxSlots-1), that isn't
+   * locked by another process; the slot stays locked until the log is closed. After a restart, the log picks
+   * up the records left in whichever slot it locks.
+   */
+  public static MappedLog openInFreeSlot(File dir, int maxSlots, int segmentSize) throws IOException {
+    for (int s=0; s < maxSlots; s++) {
+      File slotDir = new File(dir, "slot-"+s);
+      if (!slotDir.isDirectory() && !slotDir.mkdirs())
+        throw new IOException("Failed to create log directory "+slotDir.getAbsolutePath());
+
+      RandomAccessFile lockFile = new RandomAccessFile(new File(slotDir, ".lock"), "rw");
+      FileLock lock = null;
+      try {
+        lock = lockFile.getChannel().tryLock();
+      } catch (OverlappingFileLockException ofle) {
+        // locked by another log in this JVM
+      }
+
+      if (lock == null) {
+        lockFile.close();
+        continue;
+      }
+
+      try {
+        MappedLog mappedLog = new MappedLog(slotDir, segmentSize);
+        mappedLog.slotLock = lock;
+        mappedLog.slotLockFile = lockFile;
+        return mappedLog;
+      } catch (IOException exc) {
+        lock.release();
+        lockFile.close();
+        throw exc;
+      }
+    }
+    throw new IOException("All "+maxSlots+" log slots under "+dir.getAbsolutePath()+" are in use!");
+  }
+
+  public MappedLog(File dir, int segmentSize) throws IOException {
+    if (segmentSize <= RECORD_HEADER_BYTES)
+      throw new IllegalArgumentException("segmentSize must be more than "+RECORD_HEADER_BYTES+" bytes!");
+
+    if (!dir.isDirectory() && !dir.mkdirs())
+      throw new IOException("Failed to create log directory "+dir.getAbsolutePath());
+
+    this.dir = dir;
+    this.segmentSize = segmentSize;
+
+    open();
+  }
+
+  protected void open() throws IOException {
+    File[] segmentFiles = dir.listFiles(new FileFilter() {
+      public boolean accept(File file) {
+        return file.isFile() && file.getName().endsWith(SEGMENT_FILE_SUFFIX);
+      }
+    });
+    if (segmentFiles != null) {
+      for (File file : segmentFiles) {
+        String name = file.getName();
+        long id;
+        try {
+          id = Long.parseLong(name.substring(0, name.length() - SEGMENT_FILE_SUFFIX.length()));
+        } catch (NumberFormatException nfe) {
+          log.warn("Ignoring unexpected file "+file.getAbsolutePath()+" in log directory");
+          continue;
+        }
+        segments.put(id, new Segment(id, file, map(file, (int)file.length())));
+      }
+    }
+
+    if (!segments.isEmpty()) {
+      writeSegment = segments.lastEntry().getValue();
+      writeSegment.writePosition = recover(writeSegment);
+    }
+
+    readPositionFile = new RandomAccessFile(new File(dir, READ_POSITION_FILE), "rw");
+    if (readPositionFile.length() >= 12) {
+      readPositionFile.seek(0);
+      long readSegmentId = readPositionFile.readLong();
+      int position = readPositionFile.readInt();
+      readSegment = segments.get(readSegmentId);
+      if (readSegment != null)
+        readPosition = position;
+    }
+
+    if (readSegment == null && !segments.isEmpty()) {
+      readSegment = segments.firstEntry().getValue();
+      readPosition = 0;
+    }
+
+    // segments before the one being read were fully read before the restart
+    if (readSegment != null) {
+      for (Segment segment : segments.headMap(readSegment.id).values().toArray(new Segment[0]))
+        delete(segment);
+    }
+
+    log.info("Opened log in "+dir.getAbsolutePath()+" with "+segments.size()+" segments");
+  }
+
+  /**
+   * Returns the position after the last complete record in the segment.
+   */
+  protected int recover(Segment segment) {
+    int pos = 0;
+    byte[] data;
+    while ((data = readRecord(segment, pos)) != null)
+      pos += RECORD_HEADER_BYTES + data.length;
+    return pos;
+  }
+
+  public synchronized void append(byte[] data) throws IOException {
+    if (readPositionFile == null)
+      throw new IOException("Log in "+dir.getAbsolutePath()+" is closed!");
+
+    int recordBytes = RECORD_HEADER_BYTES + data.length;
+    if (writeSegment == null || writeSegment.writePosition + recordBytes > writeSegment.capacity())
+      roll(recordBytes);
+
+    Segment segment = writeSegment;
+    int pos = segment.writePosition;
+
+    // write the length last so a partially written record doesn't look complete
+    ByteBuffer buffer = segment.buffer.duplicate();
+    buffer.position(pos + RECORD_HEADER_BYTES);
+    buffer.put(data);
+    segment.buffer.putInt(pos + 4, checksum(data, 0, data.length));
+    segment.buffer.putInt(pos, data.length);
+
+    // clear any leftovers of a record that was being written when the process died
+    int end = pos + recordBytes;
+    if (end + 4 <= segment.capacity())
+      segment.buffer.putInt(end, 0);
+
+    segment.writePosition = end;
+  }
+
+  /**
+   * Returns the next unread record without consuming it, or null if all records have been read.
+   */
+  public synchronized byte[] peek() throws IOException {
+    List<byte[]> records = peek(1);
+    return records.isEmpty() ? null : records.get(0);
+  }
+
+  /**
+   * Returns up to maxRecords of the next unread records without consuming them.
+   */
+  public synchronized List<byte[]> peek(int maxRecords) throws IOException {
+    List<byte[]> records = new ArrayList<byte[]>(Math.min(maxRecords, 1024));
+    Segment segment = readSegment;
+    int pos = readPosition;
+    while (segment != null && records.size() < maxRecords) {
+      byte[] data = readRecord(segment, pos);
+      if (data != null) {
+        records.add(data);
+        pos += RECORD_HEADER_BYTES + data.length;
+        continue;
+      }
+
+      if (segment == writeSegment)
+        break;
+
+      // done with this segment, move on to the next one
+      segment = segments.higherEntry(segment.id).getValue();
+      pos = 0;
+    }
+
+    peekedSegment = segment;
+    peekedPosition = pos;
+    peekedRecords = records.size();
+    return records;
+  }
+
+  /**
+   * Consumes the record last returned by peek.
+   */
+  public synchronized void advance() throws IOException {
+    advance(1);
+  }
+
+  /**
+   * Consumes the next numRecords records, such as after they've been processed following a peek; segments
+   * that have been read completely are deleted.
+   */
+  public synchronized void advance(int numRecords) throws IOException {
+    if (numRecords <= 0)
+      return;
+
+    if (numRecords == peekedRecords && peekedSegment != null) {
+      moveReadPosition(peekedSegment, peekedPosition);
+    } else {
+      Segment segment = readSegment;
+      int pos = readPosition;
+      for (int r=0; r < numRecords; ) {
+        byte[] data = (segment != null) ? readRecord(segment, pos) : null;
+        if (data != null) {
+          pos += RECORD_HEADER_BYTES + data.length;
+          ++r;
+        } else if (segment != null && segment != writeSegment) {
+          segment = segments.higherEntry(segment.id).getValue();
+          pos = 0;
+        } else {
+          throw new IllegalStateException("Cannot advance past the end of the log in "+dir.getAbsolutePath());
+        }
+      }
+      moveReadPosition(segment, pos);
+    }
+  }
+
+  protected void moveReadPosition(Segment segment, int pos) throws IOException {
+    for (Segment read : segments.headMap(segment.id).values().toArray(new Segment[0]))
+      delete(read);
+
+    readSegment = segment;
+    readPosition = pos;
+    peekedSegment = null;
+    peekedRecords = 0;
+    saveReadPosition();
+  }
+
+  /**
+   * Returns true if there are no unread records.
+   */
+  public synchronized boolean isEmpty() throws IOException {
+    return peek() == null;
+  }
+
+  /**
+   * Returns the offset at which the next record will be appended; offsets only grow, so once getReadOffset
+   * reaches this offset, every record appended before it has been read.
+   */
+  public synchronized long getAppendOffset() {
+    return (writeSegment != null) ? offset(writeSegment, writeSegment.writePosition) : 0L;
+  }
+
+  /**
+   * Returns the offset of the next unread record.
+   */
+  public synchronized long getReadOffset() {
+    return (readSegment != null) ? offset(readSegment, readPosition) : 0L;
+  }
+
+  /**
+   * Returns the number of bytes taken up by the segment files of the log.
+   */
+  public synchronized long getSizeOnDisk() {
+    long bytes = 0L;
+    for (Segment segment : segments.values())
+      bytes += segment.capacity();
+    return bytes;
+  }
+
+  protected static long offset(Segment segment, int pos) {
+    return (segment.id << 32) | (pos & 0xFFFFFFFFL);
+  }
+
+  /**
+   * Flushes appended records from the page cache to disk.
+   */
+  public synchronized void force() {
+    if (writeSegment != null)
+      writeSegment.buffer.force();
+  }
+
+  public File getDir() {
+    return dir;
+  }
+
+  public synchronized void close() throws IOException {
+    if (readPositionFile == null)
+      return;
+
+    force();
+    readPositionFile.close();
+    readPositionFile = null;
+    segments.clear();
+    writeSegment = null;
+    readSegment = null;
+    peekedSegment = null;
+
+    if (slotLock != null) {
+      slotLock.release();
+      slotLockFile.close();
+      slotLock = null;
+      slotLockFile = null;
+    }
+  }
+
+  protected byte[] readRecord(Segment segment, int pos) {
+    if (pos + RECORD_HEADER_BYTES > segment.capacity())
+      return null;
+
+    int length = segment.buffer.getInt(pos);
+    if (length <= 0 || pos + RECORD_HEADER_BYTES + length > segment.capacity())
+      return null;
+
+    byte[] data = new byte[length];
+    ByteBuffer buffer = segment.buffer.duplicate();
+    buffer.position(pos + RECORD_HEADER_BYTES);
+    buffer.get(data);
+    if (checksum(data, 0, length) != segment.buffer.getInt(pos + 4)) {
+      log.warn("Corrupt record at position "+pos+" in "+segment.file.getAbsolutePath()+"; ignoring rest of segment");
+      return null;
+    }
+    return data;
+  }
+
+  protected void roll(int minBytes) throws IOException {
+    // so a later force covers everything appended before it
+    if (writeSegment != null)
+      writeSegment.buffer.force();
+
+    long id = (writeSegment != null) ? writeSegment.id + 1 : 0L;
+    File file = new File(dir, String.format("%020d%s", id, SEGMENT_FILE_SUFFIX));
+    Segment segment = new Segment(id, file, map(file, Math.max(segmentSize, minBytes)));
+    segments.put(id, segment);
+    writeSegment = segment;
+
+    if (readSegment == null) {
+      readSegment = segment;
+      readPosition = 0;
+      saveReadPosition();
+    }
+  }
+
+  protected void delete(Segment segment) {
+    segments.remove(segment.id);
+    // the mapping goes away once the buffer is garbage collected
+    if (!segment.file.delete())
+      log.warn("Failed to delete log segment "+segment.file.getAbsolutePath());
+  }
+
+  protected void saveReadPosition() throws IOException {
+    readPositionFile.seek(0);
+    readPositionFile.writeLong(readSegment.id);
+    readPositionFile.writeInt(readPosition);
+  }
+
+  protected int checksum(byte[] data, int offset, int length) {
+    crc.reset();
+    crc.update(data, offset, length);
+    return (int)crc.getValue();
+  }
+
+  protected static MappedByteBuffer map(File file, int size) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      if (raf.length() < size)
+        raf.setLength(size);
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    } finally {
+      // the mapping stays valid after the file is closed
+      raf.close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    Map.Entry<Long,Segment> last = segments.lastEntry();
+    return "MappedLog{dir="+dir.getAbsolutePath()+", segments="+segments.size()+
+      ", lastSegment="+(last != null ? last.getKey() : null)+"}";
+  }
+}
@@ -0,0 +1,136 @@
+package com.lucidworks.storm.solr;
+
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Grows or shrinks the number of docs buffered per collection so that update requests take about
+ * targetLatencyMs to complete and stay under maxRequestBytes, based on how long previous batches took
+ * and their estimated size. The target only grows after full batches, since batches flushed by
+ * the buffer timeout say nothing about how Solr would handle a bigger one.
+ */
+public class AdaptiveBufferPolicy implements BufferPolicy {
+
+  public static Logger log = Logger.getLogger(AdaptiveBufferPolicy.class);
+
+  protected long targetLatencyMs = 250L;
+  protected long maxRequestBytes = 5 * 1024 * 1024;
+  protected int initialBufferSize = 100;
+  protected int minBufferSize = 10;
+  protected int maxBufferSize = 5000;
+  protected double growthFactor = 1.25d;
+
+  private final ConcurrentMap<String,CollectionState> states = new ConcurrentHashMap<String,CollectionState>();
+
+  static final class CollectionState {
+    volatile int target;
+    double avgDocBytes = -1d;
+
+    CollectionState(int target) {
+      this.target = target;
+    }
+  }
+
+  public int getTargetBufferSize(String collection) {
+    return getState(collection).target;
+  }
+
+  public void onBatchSent(String collection, int numDocs, long estimatedBytes, long elapsedNanos, boolean success) {
+    if (numDocs <= 0)
+      return;
+
+    CollectionState state = getState(collection);
+    synchronized (state) {
+      int target = state.target;
+      int next = target;
+      if (!success) {
+        // back off quickly when Solr is struggling
+        next = target / 2;
+      } else {
+        double docBytes = (double) estimatedBytes / numDocs;
+        state.avgDocBytes = (state.avgDocBytes < 0) ? docBytes : (0.8d * state.avgDocBytes + 0.2d * docBytes);
+
+        long elapsedMs = TimeUnit.MILLISECONDS.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+        if (elapsedMs > targetLatencyMs) {
+          // scale down in proportion to how far over the target latency this batch was
+          next = (int) Math.max(target / 2, (long) numDocs * targetLatencyMs / Math.max(elapsedMs, 1L));
+        } else if (numDocs >= target && elapsedMs < targetLatencyMs * 3 / 4) {
+          next = (int) Math.ceil(target * growthFactor);
+        }
+
+        if (state.avgDocBytes > 0)
+          next = (int) Math.min(next, (long) (maxRequestBytes / state.avgDocBytes));
+      }
+
+      next = Math.max(minBufferSize, Math.min(maxBufferSize, next));
+      if (next != target) {
+        if (log.isDebugEnabled())
+          log.debug("Adjusted buffer size for "+collection+" from "+target+" to "+next+" after sending "+
+            numDocs+" docs ("+estimatedBytes+" bytes) in "+elapsedNanos+" ns, success? "+success);
+        state.target = next;
+      }
+    }
+  }
+
+  protected CollectionState getState(String collection) {
+    CollectionState state = states.get(collection);
+    if (state == null) {
+      CollectionState newState = new CollectionState(Math.max(minBufferSize, Math.min(maxBufferSize, initialBufferSize)));
+      state = states.putIfAbsent(collection, newState);
+      if (state == null)
+        state = newState;
+    }
+    return state;
+  }
+
+  public long getTargetLatencyMs() {
+    return targetLatencyMs;
+  }
+
+  public void setTargetLatencyMs(long targetLatencyMs) {
+    this.targetLatencyMs = targetLatencyMs;
+  }
+
+  public long getMaxRequestBytes() {
+    return maxRequestBytes;
+  }
+
+  public void setMaxRequestBytes(long maxRequestBytes) {
+    this.maxRequestBytes = maxRequestBytes;
+  }
+
+  public int getInitialBufferSize() {
+    return initialBufferSize;
+  }
+
+  public void setInitialBufferSize(int initialBufferSize) {
+    this.initialBufferSize = initialBufferSize;
+  }
+
+  public int getMinBufferSize() {
+    return minBufferSize;
+  }
+
+  public void setMinBufferSize(int minBufferSize) {
+    this.minBufferSize = minBufferSize;
+  }
+
+  public int getMaxBufferSize() {
+    return maxBufferSize;
+  }
+
+  public void setMaxBufferSize(int maxBufferSize) {
+    this.maxBufferSize = maxBufferSize;
+  }
+
+  public double getGrowthFactor() {
+    return growthFactor;
+  }
+
+  public void setGrowthFactor(double growthFactor) {
+    this.growthFactor = growthFactor;
+  }
+}
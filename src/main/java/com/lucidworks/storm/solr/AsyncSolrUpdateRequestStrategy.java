@@ -0,0 +1,23 @@
+package com.lucidworks.storm.solr;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.common.util.NamedList;
+
+/**
+ * An update request strategy that can complete a request, including any re-tries, without blocking the
+ * calling thread until the request succeeds or fails.
+ */
+public interface AsyncSolrUpdateRequestStrategy extends SolrUpdateRequestStrategy {
+
+  /**
+   * Notified once the request succeeds or fails for good; may be called from the calling thread
+   * or from a thread owned by the strategy.
+   */
+  interface Callback {
+    void onSuccess(NamedList<Object> resp);
+    void onFailure(Exception exc);
+  }
+
+  void sendUpdateRequestAsync(SolrClient solrClient, String collection, SolrRequest req, Callback callback);
+}
@@ -0,0 +1,12 @@
+package com.lucidworks.storm.solr;
+
+/**
+ * Determines how many docs a DocBuffer collects before it gets sent to Solr; implementations can
+ * adjust the target for a collection using feedback from the batches sent to it previously.
+ * Feedback may be reported from sender threads, so implementations must be thread-safe.
+ */
+public interface BufferPolicy {
+  int getTargetBufferSize(String collection);
+
+  void onBatchSent(String collection, int numDocs, long estimatedBytes, long elapsedNanos, boolean success);
+}
@@ -0,0 +1,94 @@
+package com.lucidworks.storm.solr;
+
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks consecutive failures sending requests to a collection (or shard) and opens after
+ * failureThreshold failures in a row, so that requests fail fast instead of waiting on timeouts.
+ * After resetTimeoutMs, a single probe request is allowed through; the circuit closes if it
+ * succeeds or stays open for another resetTimeoutMs if it fails.
+ */
+public class CircuitBreaker {
+
+  public static Logger log = Logger.getLogger(CircuitBreaker.class);
+
+  public static enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  protected final String name;
+  protected final int failureThreshold;
+  protected final long resetTimeoutNanos;
+
+  private State state = State.CLOSED;
+  private int consecutiveFailures = 0;
+  private long openedAtNanos = -1L;
+
+  public CircuitBreaker(String name, int failureThreshold, long resetTimeoutMs) {
+    this.name = name;
+    this.failureThreshold = failureThreshold;
+    this.resetTimeoutNanos = TimeUnit.NANOSECONDS.convert(resetTimeoutMs, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Returns true if a request can be sent; if the circuit is open and due to be probed, the
+   * caller's request becomes the probe and other requests are rejected until it completes.
+   */
+  public synchronized boolean allowRequest() {
+    if (state == State.CLOSED)
+      return true;
+
+    if (state == State.OPEN && isProbeDue()) {
+      log.info("Probing circuit for "+name+" after "+consecutiveFailures+" consecutive failures");
+      state = State.HALF_OPEN;
+      return true;
+    }
+
+    return false;
+  }
+
+  /**
+   * Returns true if requests are currently being rejected; unlike allowRequest, this doesn't start a probe.
+   * While a probe is in flight the circuit isn't considered open, so callers keep buffering docs for the
+   * request that follows a successful probe instead of shedding them.
+   */
+  public synchronized boolean isOpen() {
+    return state == State.OPEN && !isProbeDue();
+  }
+
+  public synchronized void onSuccess() {
+    if (state != State.CLOSED)
+      log.info("Closing circuit for "+name+" after a successful request");
+
+    state = State.CLOSED;
+    consecutiveFailures = 0;
+    openedAtNanos = -1L;
+  }
+
+  public synchronized void onFailure() {
+    ++consecutiveFailures;
+    // a failure after the reset timeout, from a caller that only checks isOpen, is a failed probe too
+    if (state == State.HALF_OPEN || (state == State.OPEN && isProbeDue()) ||
+        (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+      if (state == State.CLOSED)
+        log.warn("Opening circuit for "+name+" after "+consecutiveFailures+" consecutive failures");
+
+      state = State.OPEN;
+      openedAtNanos = System.nanoTime();
+    }
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  private boolean isProbeDue() {
+    return System.nanoTime() - openedAtNanos >= resetTimeoutNanos;
+  }
+}
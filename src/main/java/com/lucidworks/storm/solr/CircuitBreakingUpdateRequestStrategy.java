@@ -0,0 +1,19 @@
+package com.lucidworks.storm.solr;
+
+/**
+ * An update request strategy that tracks a circuit breaker per collection, and per shard where the
+ * caller knows which shard a request goes to, so callers can shed load for collections or shards
+ * that are failing instead of waiting on timeouts.
+ */
+public interface CircuitBreakingUpdateRequestStrategy extends SolrUpdateRequestStrategy {
+
+  /**
+   * Returns true if requests to the collection, or to the shard if not null, are being rejected.
+   */
+  boolean isCircuitOpen(String collection, String shard);
+
+  /**
+   * Records the outcome of a request the caller sent to a shard on its own; a null error means success.
+   */
+  void recordResult(String collection, String shard, Throwable error);
+}
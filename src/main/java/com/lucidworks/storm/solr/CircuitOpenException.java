@@ -0,0 +1,15 @@
+package com.lucidworks.storm.solr;
+
+import org.apache.solr.common.SolrException;
+
+/**
+ * Raised instead of sending a request to a collection (or shard) whose circuit is open.
+ */
+public class CircuitOpenException extends SolrException {
+
+  private static final long serialVersionUID = 1L;
+
+  public CircuitOpenException(String msg) {
+    super(ErrorCode.SERVICE_UNAVAILABLE, msg);
+  }
+}
@@ -0,0 +1,13 @@
+package com.lucidworks.storm.solr;
+
+/**
+ * An assignment strategy that knows which collections only get a trickle of late docs, so the SolrBoltAction
+ * can buffer docs for them longer and send fewer, larger batches.
+ */
+public interface ColdCollectionAssignmentStrategy extends DocumentAssignmentStrategy {
+
+  /**
+   * Returns true if the collection only gets late docs now.
+   */
+  boolean isColdCollection(String collection);
+}
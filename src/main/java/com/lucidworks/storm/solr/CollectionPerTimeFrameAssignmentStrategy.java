@@ -1,10 +1,15 @@
 package com.lucidworks.storm.solr;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.recipes.cache.PathChildrenCache;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheListener;
 import org.apache.curator.framework.recipes.locks.InterProcessMutex;
 import org.apache.curator.retry.ExponentialBackoffRetry;
 import org.apache.curator.utils.CloseableUtils;
+import org.apache.curator.utils.ZKPaths;
 import org.apache.log4j.Logger;
 import org.apache.solr.client.solrj.impl.CloudSolrClient;
 import org.apache.solr.client.solrj.request.CollectionAdminRequest;
@@ -19,14 +24,43 @@ import java.io.IOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Assigns documents to time-series collections based on the document timestamp;
  * creates the collections on-the-fly as needed. Uses a ZK-based distributed lock to
  * ensure multiple bolt instances don't try to create the same collection concurrently.
+ * <p>
+ * The start of the time frame for a doc is computed from its epoch millis, using the offset rules of the
+ * time zone to find the start of the day, and collection names are cached by the start of their time frame,
+ * so assigning a doc doesn't allocate a Calendar or format a date. A timestamp right on the boundary between
+ * two time frames belongs to the earlier one.
+ * <p>
+ * A background thread creates the collections for the next preCreateTimeFrames time frames after the latest
+ * doc seen, and adds each collection to the alias once docs for its time frame arrive, so crossing into a new
+ * time frame doesn't block indexing. If the collection for a doc doesn't exist yet anyway, it is created
+ * before the doc is assigned to it.
+ * <p>
+ * Collections known to exist are kept in a local set, so assigning a doc to an existing collection is a single
+ * lookup; a ZK watch on the collections removes deleted collections from the set, and ZK is only consulted
+ * when a doc for a collection that isn't in the set arrives.
+ * <p>
+ * If a latenessWindowMs is set, docs older than the latest doc seen by more than the window are late: they
+ * go to the lateCollection if one is set, which is kept out of the alias, or else to the collection for their
+ * time frame, which is reported as cold once its whole time frame is past the window so the SolrBoltAction
+ * can send it fewer, larger batches.
+ * <p>
+ * Docs timestamped more than maxFutureMs past the current time, such as from a producer with a broken clock,
+ * still go to the collection for their time frame, but don't count as the latest doc seen; otherwise a single
+ * such doc would make every other doc late and move the alias and the collections created ahead to its time
+ * frame.
  */
-public class CollectionPerTimeFrameAssignmentStrategy implements DocumentAssignmentStrategy, Closeable {
+public class CollectionPerTimeFrameAssignmentStrategy implements ProvisioningAssignmentStrategy, ColdCollectionAssignmentStrategy, Closeable {
 
   public static final Logger log = Logger.getLogger(CollectionPerTimeFrameAssignmentStrategy.class);
 
@@ -45,6 +79,32 @@ public class CollectionPerTimeFrameAssignmentStrategy implements DocumentAssignm
   protected int replicationFactor = 1;
   protected CuratorFramework curatorClient;
   protected String lockZnodePath = "/create-collection-locks";
+  protected int preCreateTimeFrames = 1;
+  protected long latenessWindowMs = -1L; // disabled
+  protected long maxFutureMs = TimeUnit.HOURS.toMillis(1);
+  protected String lateCollection;
+
+  static final long DAY_MS = TimeUnit.DAYS.toMillis(1);
+  static final int MAX_CACHED_NAMES = 1024;
+
+  // collection names keyed by the start of their time frame; cleared if it grows too big
+  private final ConcurrentMap<Long,String> collectionNames = new ConcurrentHashMap<Long,String>();
+  private final ConcurrentMap<String,Long> timeFrameStarts = new ConcurrentHashMap<String,Long>();
+  private volatile TimeZone timeZone;
+
+  // start of the time frame of the latest doc seen, which the collections to create ahead follow
+  private volatile long latestTimeFrameStart = Long.MIN_VALUE;
+  private volatile long latestTimestampMs = Long.MIN_VALUE;
+  private final Set<String> createdAhead = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+  private final Set<String> addedToAlias = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+  private final AtomicBoolean provisioning = new AtomicBoolean(false);
+  private ExecutorService provisioner;
+
+  // collections known to exist, kept current by watching the collections znode for deleted collections
+  private final Set<String> knownCollections = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+  private PathChildrenCache collectionsWatch;
+  private volatile boolean watchingCollections = false;
+  private long watchRetryAtMs = 0L;
 
   private ThreadLocal<SimpleDateFormat> dateFormatter = new ThreadLocal<SimpleDateFormat>() {
     @Override
@@ -56,6 +116,22 @@ public class CollectionPerTimeFrameAssignmentStrategy implements DocumentAssignm
   };
 
   public void close() throws IOException {
+    synchronized (this) {
+      if (provisioner != null) {
+        provisioner.shutdownNow();
+        provisioner = null;
+      }
+    }
+
+    synchronized (this) {
+      watchingCollections = false;
+      knownCollections.clear();
+      if (collectionsWatch != null) {
+        CloseableUtils.closeQuietly(collectionsWatch);
+        collectionsWatch = null;
+      }
+    }
+
     if (curatorClient != null) {
       CloseableUtils.closeQuietly(curatorClient);
     }
@@ -73,103 +149,398 @@ public class CollectionPerTimeFrameAssignmentStrategy implements DocumentAssignm
       throw new IllegalArgumentException("Cannot parse "+obj+" for "+fieldName+" into a java.util.Date due to: "+pe);
     }
 
-    Date startFrom = null;
-    // if they use a multi-day time frame, then we need a start date from which to start calculating offsets
+    long timeMs = timestamp.getTime();
+    boolean tooFarAhead = isTooFarAhead(timeMs);
+    if (timeMs > latestTimestampMs && !tooFarAhead)
+      latestTimestampMs = timeMs;
+
+    if (lateCollection != null && isLate(timeMs)) {
+      checkCollectionExists(cloudSolrClient, lateCollection);
+      return lateCollection;
+    }
+
+    long timeFrameStart = getTimeFrameStart(timeMs);
+    String collection = getCollectionName(timeFrameStart);
+    if (timeFrameStart > latestTimeFrameStart && !tooFarAhead)
+      onNewTimeFrame(cloudSolrClient, timeFrameStart);
+
+    checkCollectionExists(cloudSolrClient, collection);
+    return collection;
+  }
+
+  /**
+   * Returns true if the time is more than maxFutureMs past the current time.
+   */
+  protected boolean isTooFarAhead(long timeMs) {
+    if (maxFutureMs < 0 || timeMs <= System.currentTimeMillis() + maxFutureMs)
+      return false;
+
+    if (log.isDebugEnabled())
+      log.debug("Not tracking "+new Date(timeMs)+" as the latest doc seen as it's more than "+maxFutureMs+"ms in the future");
+    return true;
+  }
+
+  /**
+   * Returns true if the time is older than the latest doc seen by more than the latenessWindowMs.
+   */
+  protected boolean isLate(long timeMs) {
+    return latenessWindowMs >= 0 && latestTimestampMs != Long.MIN_VALUE && timeMs < latestTimestampMs - latenessWindowMs;
+  }
+
+  public boolean isColdCollection(String collection) {
+    if (latenessWindowMs < 0)
+      return false;
+
+    if (collection.equals(lateCollection))
+      return true;
+
+    // cold once even the end of its time frame is late
+    Long timeFrameStart = timeFrameStarts.get(collection);
+    return timeFrameStart != null && isLate(getNextTimeFrameStart(timeFrameStart));
+  }
+
+  /**
+   * Called when a doc for a later time frame than any seen so far arrives.
+   */
+  protected void onNewTimeFrame(CloudSolrClient cloudSolrClient, long timeFrameStart) {
+    synchronized (this) {
+      if (timeFrameStart <= latestTimeFrameStart)
+        return;
+      latestTimeFrameStart = timeFrameStart;
+    }
+    provisionCollections(cloudSolrClient);
+  }
+
+  public void provisionCollections(final CloudSolrClient cloudSolrClient) {
+    final long timeFrameStart = latestTimeFrameStart;
+    if (timeFrameStart == Long.MIN_VALUE || (alias == null && preCreateTimeFrames <= 0))
+      return; // nothing to do yet
+
+    if (!provisioning.compareAndSet(false, true))
+      return; // already running, any time frames it misses are picked up on the next call
+
+    try {
+      getProvisioner().execute(new Runnable() {
+        public void run() {
+          try {
+            provisionTimeFrames(cloudSolrClient, timeFrameStart);
+          } finally {
+            provisioning.set(false);
+          }
+        }
+      });
+    } catch (RuntimeException exc) {
+      provisioning.set(false);
+      log.warn("Failed to start provisioning collections due to: "+exc);
+    }
+  }
+
+  /**
+   * Adds the collection for the latest time frame to the alias and creates the collections for the
+   * following time frames; a collection that fails is tried again on the next call.
+   */
+  protected void provisionTimeFrames(CloudSolrClient cloudSolrClient, long timeFrameStart) {
+    String current = getCollectionName(timeFrameStart);
+    if (alias != null && !addedToAlias.contains(current)) {
+      try {
+        if (cloudSolrClient.getZkStateReader().getClusterState().hasCollection(current)) {
+          withCollectionLock(cloudSolrClient, current, new CollectionTask() {
+            public void run(CloudSolrClient cloudSolrClient, String collection) throws Exception {
+              addToAlias(cloudSolrClient, collection);
+            }
+          });
+          addedToAlias.add(current);
+        }
+      } catch (Exception exc) {
+        log.error("Failed to add "+current+" to the "+alias+" alias due to: "+exc, exc);
+      }
+    }
+
+    long nextStart = timeFrameStart;
+    String prev = current;
+    for (int f=0; f < preCreateTimeFrames; f++) {
+      String next;
+      do {
+        nextStart = getNextTimeFrameStart(nextStart);
+        next = getCollectionName(nextStart);
+      } while (next.equals(prev)); // a day with an extra hour for DST can spill over into a second frame
+      prev = next;
+
+      if (createdAhead.contains(next))
+        continue;
+
+      try {
+        withCollectionLock(cloudSolrClient, next, new CollectionTask() {
+          public void run(CloudSolrClient cloudSolrClient, String collection) throws Exception {
+            if (!cloudSolrClient.getZkStateReader().getClusterState().hasCollection(collection)) {
+              long startMs = System.currentTimeMillis();
+              createCollection(cloudSolrClient, collection);
+              log.info("Created "+collection+" ahead of time, took "+(System.currentTimeMillis()-startMs)+" ms");
+            }
+          }
+        });
+        createdAhead.add(next);
+      } catch (Exception exc) {
+        log.error("Failed to create collection "+next+" ahead of time due to: "+exc, exc);
+        break;
+      }
+    }
+
+    if (createdAhead.size() > MAX_CACHED_NAMES)
+      createdAhead.clear();
+    if (addedToAlias.size() > MAX_CACHED_NAMES)
+      addedToAlias.clear();
+  }
+
+  protected synchronized ExecutorService getProvisioner() {
+    if (provisioner == null) {
+      provisioner = Executors.newSingleThreadExecutor(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("collection-provisioner-%d").build());
+    }
+    return provisioner;
+  }
+
+  /**
+   * Returns the start of the time frame after the one starting at timeFrameStart.
+   */
+  protected long getNextTimeFrameStart(long timeFrameStart) {
+    // time frames shorter than a day start over at midnight, so the next one may be shorter
+    return getTimeFrameStart(timeFrameStart + TimeUnit.MILLISECONDS.convert(timeFrame, timeUnit) + 1L);
+  }
+
+  /**
+   * Returns the name of the collection for the time frame that includes the time.
+   */
+  public String getCollectionForTime(long timeMs) {
+    return getCollectionName(getTimeFrameStart(timeMs));
+  }
+
+  protected String getCollectionName(long timeFrameStart) {
+    String collection = collectionNames.get(timeFrameStart);
+    if (collection == null) {
+      collection = collectionNameBase+dateFormatter.get().format(new Date(timeFrameStart));
+      if (collectionNames.size() >= MAX_CACHED_NAMES) {
+        collectionNames.clear();
+        timeFrameStarts.clear();
+      }
+      collectionNames.put(timeFrameStart, collection);
+      timeFrameStarts.put(collection, timeFrameStart);
+    }
+    return collection;
+  }
+
+  /**
+   * Returns the start of the time frame that includes the time; time frames start from the startDate
+   * for multi-day time frames, or from the start of the day otherwise.
+   */
+  protected long getTimeFrameStart(long timeMs) {
+    long startFrom;
     if (timeUnit.equals(TimeUnit.DAYS) && timeFrame > 1) {
       if (this.startDate == null) {
         throw new IllegalStateException("Must specify a start date for multi-day time frames!");
       }
-      startFrom = this.startDate;
+      startFrom = this.startDate.getTime();
     } else {
-      // start back at the beginning of the current day and increment from there until we find the correct "bucket"
-      Calendar cal = Calendar.getInstance();
-      cal.setTimeZone(TimeZone.getTimeZone(timezoneId));
-      cal.setTimeInMillis(timestamp.getTime());
-      cal.set(Calendar.HOUR_OF_DAY, 0);
-      cal.set(Calendar.MINUTE, 0);
-      cal.set(Calendar.SECOND, 0);
-      cal.set(Calendar.MILLISECOND, 0);
-      startFrom = cal.getTime();
+      startFrom = getStartOfDay(timeMs);
     }
 
-    // increment by the length of each timeframe (in millis) until we are past the timestamp,
-    // the resulting value of prev will determine the collection
-    Date next = startFrom;
-    long prev = next.getTime();
-    final long timeFrameMs = TimeUnit.MILLISECONDS.convert(timeFrame, timeUnit);
-    while (timestamp.after(next)) {
-      prev = next.getTime();
-      next.setTime(prev + timeFrameMs);
-    }
+    long sinceStart = timeMs - startFrom;
+    if (sinceStart <= 0)
+      return startFrom;
 
-    String collection = collectionNameBase+dateFormatter.get().format(new Date(prev));
-    checkCollectionExists(cloudSolrClient, collection);
-    return collection;
+    long timeFrameMs = TimeUnit.MILLISECONDS.convert(timeFrame, timeUnit);
+    return startFrom + ((sinceStart - 1) / timeFrameMs) * timeFrameMs;
   }
 
-  protected void checkCollectionExists(CloudSolrClient cloudSolrClient, String collection) throws Exception {
-    if (!cloudSolrClient.getZkStateReader().getClusterState().hasCollection(collection)) {
+  /**
+   * Returns midnight of the day of the time in the timezone, or the first instant of the day if DST started
+   * at midnight so the day has no midnight.
+   */
+  protected long getStartOfDay(long timeMs) {
+    TimeZone tz = getTimeZone();
+    int offset = tz.getOffset(timeMs);
+    long localMs = timeMs + offset;
+    long localMidnight = localMs - (((localMs % DAY_MS) + DAY_MS) % DAY_MS);
+    long midnight = localMidnight - offset;
+
+    // the offset at midnight differs from the offset at the time if DST started or ended since midnight
+    int midnightOffset = tz.getOffset(midnight);
+    if (midnightOffset != offset) {
+      long adjusted = localMidnight - midnightOffset;
+      if (tz.getOffset(adjusted) == midnightOffset)
+        midnight = adjusted;
+    }
 
-      synchronized (this) {
-        if (curatorClient == null) {
-          curatorClient = CuratorFrameworkFactory.newClient(cloudSolrClient.getZkHost(), new ExponentialBackoffRetry(1000, 3));
-          curatorClient.start();
-        }
+    if (midnight + tz.getOffset(midnight) < localMidnight) {
+      // midnight fell in the gap when the clocks went forward, so still on the previous day; the day starts
+      // at the first instant on or after it whose local time is past midnight
+      long lo = midnight, hi = timeMs;
+      while (hi - lo > 1L) {
+        long mid = lo + (hi - lo) / 2L;
+        if (mid + tz.getOffset(mid) < localMidnight)
+          lo = mid;
+        else
+          hi = mid;
       }
+      midnight = hi;
+    }
+    return midnight;
+  }
 
-      String lockPath = lockZnodePath+"/"+collection;
-      InterProcessMutex lock = new InterProcessMutex(curatorClient, lockPath);
-      try {
-        if (!lock.acquire(60, TimeUnit.SECONDS)) {
-          // couldn't acquire the lock, but let's check to see if the collection was created before failing
-          cloudSolrClient.getZkStateReader().updateClusterState();
+  protected TimeZone getTimeZone() {
+    if (timeZone == null)
+      timeZone = TimeZone.getTimeZone(timezoneId);
+    return timeZone;
+  }
+
+  /**
+   * Work done on a collection while holding the inter-process lock for creating it.
+   */
+  interface CollectionTask {
+    void run(CloudSolrClient cloudSolrClient, String collection) throws Exception;
+  }
+
+  protected void checkCollectionExists(CloudSolrClient cloudSolrClient, String collection) throws Exception {
+    if (knownCollections.contains(collection))
+      return;
+
+    watchCollections(cloudSolrClient);
+    if (!cloudSolrClient.getZkStateReader().getClusterState().hasCollection(collection)) {
+      withCollectionLock(cloudSolrClient, collection, new CollectionTask() {
+        public void run(CloudSolrClient cloudSolrClient, String collection) throws Exception {
           if (!cloudSolrClient.getZkStateReader().getClusterState().hasCollection(collection)) {
-            throw new IllegalStateException("Failed to acquire the create collection lock within 60 seconds! Cannot create "+collection);
+            log.info("Acquired inter-process lock for creating " + collection);
+
+            // ok, it doesn't exist ... go ahead and create it
+            long startMs = System.currentTimeMillis();
+            createCollection(cloudSolrClient, collection);
+            log.info("Collection created, took "+(System.currentTimeMillis()-startMs)+" ms ... updating alias: "+alias);
+
+            // add the new collection to the collection alias if one is registered
+            if (alias != null && !collection.equals(lateCollection))
+              addToAlias(cloudSolrClient, collection);
+          } else {
+            log.info("Collection "+collection+" was created by another process while we were waiting to acquire the lock ...");
           }
         }
+      });
+    }
 
-        // we have the lock here ...
-        cloudSolrClient.getZkStateReader().updateClusterState();
-        if (!cloudSolrClient.getZkStateReader().getClusterState().hasCollection(collection)) {
-          log.info("Acquired inter-process lock for creating " + collection);
-
-          // ok, it doesn't exist ... go ahead and create it
-          long startMs = System.currentTimeMillis();
-          createCollection(cloudSolrClient, collection);
-          log.info("Collection created, took "+(System.currentTimeMillis()-startMs)+" ms ... updating alias: "+alias);
-
-          // add the new collection to the collection alias if one is registered
-          if (alias != null) {
-            List<String> aliasList = getAliasList(cloudSolrClient, alias);
-            if (!aliasList.contains(collection)) {
-              aliasList.add(collection);
-              log.info("Added " + collection + " to the " + alias + " alias");
-
-              // trim the alias down to the desired size
-              int numColls = aliasList.size();
-              if (maxCollectionsInAlias > 0 && numColls > maxCollectionsInAlias) {
-                Collections.sort(aliasList);
-
-                int numToRemove = numColls - maxCollectionsInAlias;
-                aliasList = aliasList.subList(numToRemove, numColls);
-                log.info("Removed "+numToRemove+" collections from alias: "+aliasList);
-              }
-
-              CollectionAdminRequest.CreateAlias createAliasCmd = new CollectionAdminRequest.CreateAlias();
-              createAliasCmd.setAliasName(alias);
-              createAliasCmd.setAliasedCollections(StrUtils.join(aliasList, ','));
-              cloudSolrClient.request(createAliasCmd);
-            }
-          }
-        } else {
-          log.info("Collection "+collection+" was created by another process while we were waiting to acquire the lock ...");
-        }
-      } finally {
-        lock.release();
+    // only cached while the watch is up to remove it again if the collection is deleted
+    if (watchingCollections)
+      knownCollections.add(collection);
+  }
+
+  /**
+   * Drops deleted collections from the set of known collections.
+   */
+  class CollectionsListener implements PathChildrenCacheListener {
+    public void childEvent(CuratorFramework client, PathChildrenCacheEvent event) throws Exception {
+      switch (event.getType()) {
+        case CHILD_REMOVED:
+          knownCollections.remove(ZKPaths.getNodeFromPath(event.getData().getPath()));
+          break;
+        case CONNECTION_SUSPENDED:
+        case CONNECTION_LOST:
+          watchingCollections = false;
+          knownCollections.clear();
+          break;
+        case CONNECTION_RECONNECTED:
+          knownCollections.clear();
+          watchingCollections = true;
+          break;
+        default:
       }
     }
   }
 
+  /**
+   * Starts watching the collections znode to drop deleted collections from the set of known collections;
+   * known collections are forgotten while the connection to ZK is down, as deletes could be missed.
+   */
+  protected synchronized void watchCollections(CloudSolrClient cloudSolrClient) {
+    if (collectionsWatch != null || System.currentTimeMillis() < watchRetryAtMs)
+      return;
+
+    PathChildrenCache watch = null;
+    try {
+      watch = new PathChildrenCache(getCuratorClient(cloudSolrClient), ZkStateReader.COLLECTIONS_ZKNODE, false);
+      watch.getListenable().addListener(new CollectionsListener());
+      watch.start();
+      collectionsWatch = watch;
+      watchingCollections = true;
+    } catch (Exception exc) {
+      if (watch != null)
+        CloseableUtils.closeQuietly(watch);
+      watchRetryAtMs = System.currentTimeMillis() + 60000L;
+      log.warn("Failed to watch "+ZkStateReader.COLLECTIONS_ZKNODE+"; checking the cluster state for every doc until it can be watched due to: "+exc);
+    }
+  }
+
+  protected synchronized CuratorFramework getCuratorClient(CloudSolrClient cloudSolrClient) {
+    if (curatorClient == null) {
+      curatorClient = CuratorFrameworkFactory.newClient(cloudSolrClient.getZkHost(), new ExponentialBackoffRetry(1000, 3));
+      curatorClient.start();
+    }
+    return curatorClient;
+  }
+
+  boolean isKnownCollection(String collection) {
+    return knownCollections.contains(collection);
+  }
+
+  /**
+   * Runs the task while holding a ZK-based lock on creating the collection, so multiple bolt instances
+   * don't try to create the same collection concurrently; the cluster state is refreshed before the task runs.
+   */
+  protected void withCollectionLock(CloudSolrClient cloudSolrClient, String collection, CollectionTask task) throws Exception {
+    String lockPath = lockZnodePath+"/"+collection;
+    InterProcessMutex lock = new InterProcessMutex(getCuratorClient(cloudSolrClient), lockPath);
+    if (!lock.acquire(60, TimeUnit.SECONDS)) {
+      // couldn't acquire the lock, but let's check to see if the collection was created before failing
+      cloudSolrClient.getZkStateReader().updateClusterState();
+      if (!cloudSolrClient.getZkStateReader().getClusterState().hasCollection(collection)) {
+        throw new IllegalStateException("Failed to acquire the create collection lock within 60 seconds! Cannot create "+collection);
+      }
+      return;
+    }
+
+    try {
+      // we have the lock here ...
+      cloudSolrClient.getZkStateReader().updateClusterState();
+      task.run(cloudSolrClient, collection);
+    } finally {
+      lock.release();
+    }
+  }
+
+  /**
+   * Adds the collection to the alias, if it isn't already in it, and trims the alias down to maxCollectionsInAlias.
+   */
+  protected void addToAlias(CloudSolrClient cloudSolrClient, String collection) throws Exception {
+    List<String> aliasList = getAliasList(cloudSolrClient, alias);
+    if (aliasList.contains(collection))
+      return;
+
+    aliasList.add(collection);
+    log.info("Added " + collection + " to the " + alias + " alias");
+
+    // trim the alias down to the desired size
+    int numColls = aliasList.size();
+    if (maxCollectionsInAlias > 0 && numColls > maxCollectionsInAlias) {
+      Collections.sort(aliasList);
+
+      int numToRemove = numColls - maxCollectionsInAlias;
+      aliasList = aliasList.subList(numToRemove, numColls);
+      log.info("Removed "+numToRemove+" collections from alias: "+aliasList);
+    }
+
+    CollectionAdminRequest.CreateAlias createAliasCmd = new CollectionAdminRequest.CreateAlias();
+    createAliasCmd.setAliasName(alias);
+    createAliasCmd.setAliasedCollections(StrUtils.join(aliasList, ','));
+    cloudSolrClient.request(createAliasCmd);
+  }
+
   protected List<String> getAliasList(CloudSolrClient cloudSolrClient, String collectionAlias) {
     ZkStateReader zkStateReader = cloudSolrClient.getZkStateReader();
     Aliases aliases = zkStateReader.getAliases();
@@ -255,6 +626,7 @@ public class CollectionPerTimeFrameAssignmentStrategy implements DocumentAssignm
 
   public void setTimezoneId(String timezoneId) {
     this.timezoneId = timezoneId;
+    this.timeZone = null;
   }
 
   public String getFieldName() {
@@ -306,6 +678,52 @@ public class CollectionPerTimeFrameAssignmentStrategy implements DocumentAssignm
     this.alias = alias;
   }
 
+  public int getPreCreateTimeFrames() {
+    return preCreateTimeFrames;
+  }
+
+  /**
+   * Number of time frames after the latest doc seen to create collections for ahead of time; 0 to only
+   * create collections when the first doc for them arrives.
+   */
+  public void setPreCreateTimeFrames(int preCreateTimeFrames) {
+    this.preCreateTimeFrames = preCreateTimeFrames;
+  }
+
+  public long getLatenessWindowMs() {
+    return latenessWindowMs;
+  }
+
+  /**
+   * Docs older than the latest doc seen by more than this are late; -1 to treat all docs the same.
+   */
+  public void setLatenessWindowMs(long latenessWindowMs) {
+    this.latenessWindowMs = latenessWindowMs;
+  }
+
+  public long getMaxFutureMs() {
+    return maxFutureMs;
+  }
+
+  /**
+   * Docs timestamped more than this past the current time don't count as the latest doc seen, for lateness or
+   * for provisioning collections; -1 to trust all timestamps.
+   */
+  public void setMaxFutureMs(long maxFutureMs) {
+    this.maxFutureMs = maxFutureMs;
+  }
+
+  public String getLateCollection() {
+    return lateCollection;
+  }
+
+  /**
+   * Catch-all collection for late docs; if not set, late docs go to the collection for their time frame.
+   */
+  public void setLateCollection(String lateCollection) {
+    this.lateCollection = lateCollection;
+  }
+
   public int getMaxCollectionsInAlias() {
     return maxCollectionsInAlias;
   }
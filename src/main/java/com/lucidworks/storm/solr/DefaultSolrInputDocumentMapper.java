@@ -3,33 +3,134 @@ package com.lucidworks.storm.solr;
 import org.apache.log4j.Logger;
 import org.apache.solr.client.solrj.request.UpdateRequest;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
 
 import java.beans.BeanInfo;
 import java.beans.IntrospectionException;
 import java.beans.Introspector;
 import java.beans.PropertyDescriptor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
-import java.util.HashSet;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+/**
+ * Maps the public fields and bean properties of an object to dynamic fields, using the suffix for the type of
+ * each field unless there is an override for it in dynamicFieldOverrides, or maps a Map's entries as is.
+ * Arrays and Collections are mapped to multi-valued dynamic fields, using the suffix for their element type
+ * with an s appended, such as _ss or _ls.
+ * <p>
+ * The fields and properties of each class, their accessors and the Solr field names they map to are resolved
+ * once into a MappingPlan, so mapping an object only calls the accessors through MethodHandles.
+ */
 public class DefaultSolrInputDocumentMapper implements SolrInputDocumentMapper {
 
   public static Logger log = Logger.getLogger(DefaultSolrInputDocumentMapper.class);
 
+  private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+
+  /**
+   * How to map one public field or bean property of a class.
+   */
+  static final class PropertyMapping {
+    final String name;
+    final MethodHandle getter;
+    final String solrField; // null if not mapped
+    final String textField; // for strings mapped to _s by default, used instead if the value has several terms
+    final boolean multiValued; // an array or Collection
+    final boolean byElementType; // for Collections of an unknown type, the suffix is picked from the first element
+    volatile ElementField elementField;
+    int shadowedBy = -1; // index of the public field with the same name, which is used instead if not null
+    boolean shadows = false;
+
+    PropertyMapping(String name, MethodHandle getter, String solrField, String textField) {
+      this(name, getter, solrField, textField, false, false);
+    }
+
+    PropertyMapping(String name, MethodHandle getter, String solrField, String textField,
+                    boolean multiValued, boolean byElementType) {
+      this.name = name;
+      this.getter = getter;
+      this.solrField = solrField;
+      this.textField = textField;
+      this.multiValued = multiValued;
+      this.byElementType = byElementType;
+    }
+
+    boolean isMapped() {
+      return solrField != null || byElementType;
+    }
+
+    Object get(Object obj) {
+      try {
+        return (Object)getter.invokeExact(obj);
+      } catch (Error err) {
+        throw err;
+      } catch (Throwable exc) {
+        log.debug("Failed to read '"+name+"' on object of type '"+obj.getClass().getName()+"' due to: "+exc);
+        return null;
+      }
+    }
+
+    String getSolrField(Object value) {
+      return (textField != null && ((String)value).indexOf(" ") != -1) ? textField : solrField;
+    }
+  }
+
+  /**
+   * The Solr field for the last element type seen in a Collection of an unknown type.
+   */
+  static final class ElementField {
+    final Class type;
+    final String solrField; // null if not mapped
+
+    ElementField(Class type, String solrField) {
+      this.type = type;
+      this.solrField = solrField;
+    }
+  }
+
+  /**
+   * The public fields, then the bean properties, of a class to map.
+   */
+  static final class MappingPlan {
+    final PropertyMapping[] fields;
+    final PropertyMapping[] properties;
+    final boolean anyShadowed;
+
+    MappingPlan(List<PropertyMapping> fields, List<PropertyMapping> properties, boolean anyShadowed) {
+      this.fields = fields.toArray(new PropertyMapping[fields.size()]);
+      this.properties = properties.toArray(new PropertyMapping[properties.size()]);
+      this.anyShadowed = anyShadowed;
+    }
+  }
+
   protected boolean fieldGuessingEnabled = false;
   protected String idFieldName = "id";
   protected Map<String, String> dynamicFieldOverrides = null;
 
+  private final ConcurrentMap<Class,MappingPlan> mappingPlans = new ConcurrentHashMap<Class,MappingPlan>();
+
   public Map<String, String> getDynamicFieldOverrides() {
     return dynamicFieldOverrides;
   }
 
   public void setDynamicFieldOverrides(Map<String, String> dynamicFieldOverrides) {
     this.dynamicFieldOverrides = dynamicFieldOverrides;
+    mappingPlans.clear();
   }
 
   public String getIdFieldName() {
@@ -38,6 +139,7 @@ public class DefaultSolrInputDocumentMapper implements SolrInputDocumentMapper {
 
   public void setIdFieldName(String idFieldName) {
     this.idFieldName = idFieldName;
+    mappingPlans.clear();
   }
 
   public boolean isFieldGuessingEnabled() {
@@ -46,6 +148,7 @@ public class DefaultSolrInputDocumentMapper implements SolrInputDocumentMapper {
 
   public void setFieldGuessingEnabled(boolean fieldGuessingEnabled) {
     this.fieldGuessingEnabled = fieldGuessingEnabled;
+    mappingPlans.clear();
   }
 
   public SolrInputDocument toInputDoc(String docId, Object obj) {
@@ -68,37 +171,150 @@ public class DefaultSolrInputDocumentMapper implements SolrInputDocumentMapper {
     if (obj instanceof Map)
       return map2doc(doc, (Map)obj);
 
-    Class objClass = obj.getClass();
-    Set<String> fields = new HashSet<String>();
-    Field[] publicFields = obj.getClass().getFields();
-    if (publicFields != null) {
-      for (Field f : publicFields) {
-        // only non-static public
-        if (Modifier.isStatic(f.getModifiers()) || !Modifier.isPublic(f.getModifiers()))
-          continue;
+    MappingPlan plan = getMappingPlan(obj.getClass());
+    Object[] fieldValues = plan.anyShadowed ? new Object[plan.fields.length] : null;
+    for (int f=0; f < plan.fields.length; f++) {
+      PropertyMapping mapping = plan.fields[f];
+      Object value = mapping.get(obj);
+      if (value == null)
+        continue;
 
-        Object value = null;
-        try {
-          value = f.get(obj);
-        } catch (IllegalAccessException e) {
-        }
+      if (mapping.shadows)
+        fieldValues[f] = value;
+      if (mapping.isMapped())
+        addMappedValue(doc, mapping, value);
+    }
 
-        if (value != null) {
-          String fieldName = f.getName();
-          fields.add(fieldName);
+    for (PropertyMapping mapping : plan.properties) {
+      // a public field with the same name takes precedence
+      if (mapping.shadowedBy != -1 && fieldValues[mapping.shadowedBy] != null)
+        continue;
 
-          if (idFieldName.equals(fieldName))
-            continue;
+      Object value = mapping.get(obj);
+      if (value != null)
+        addMappedValue(doc, mapping, value);
+    }
 
-          if (fieldGuessingEnabled) {
-            if (!f.getType().isArray())
-              doc.addField(fieldName, value);
-          } else {
-            addDynField(doc, fieldName, value, f.getType(),
-              (dynamicFieldOverrides != null) ? dynamicFieldOverrides.get(fieldName) : null);
-          }
-        }
+    return doc;
+  }
+
+  protected void addMappedValue(SolrInputDocument doc, PropertyMapping mapping, Object value) {
+    if (!mapping.multiValued) {
+      doc.addField(mapping.getSolrField(value), value);
+      return;
+    }
+
+    String solrField = mapping.solrField;
+    if (solrField == null) {
+      Class elementType = getElementType((Collection)value);
+      if (elementType == null)
+        return; // empty or all nulls
+
+      ElementField elementField = mapping.elementField;
+      if (elementField == null || elementField.type != elementType) {
+        String dynamicFieldSuffix = getDefaultMultiValuedDynamicFieldMapping(elementType);
+        elementField = new ElementField(elementType, (dynamicFieldSuffix != null) ? mapping.name + dynamicFieldSuffix : null);
+        mapping.elementField = elementField;
+      }
+      solrField = elementField.solrField;
+      if (solrField == null)
+        return;
+    }
+
+    addMultiValuedField(doc, solrField, value);
+  }
+
+  /**
+   * Adds the elements of an array or Collection to a field, in one pre-sized list that the field holds on to.
+   */
+  protected void addMultiValuedField(SolrInputDocument doc, String solrField, Object values) {
+    int size = (values instanceof Collection) ? ((Collection)values).size() : Array.getLength(values);
+    if (size == 0)
+      return;
+
+    List<Object> list = new ArrayList<Object>(size);
+    if (values instanceof Collection) {
+      for (Object next : (Collection)values) {
+        if (next != null)
+          list.add(next);
+      }
+    } else if (values instanceof Object[]) {
+      for (Object next : (Object[])values) {
+        if (next != null)
+          list.add(next);
+      }
+    } else if (values instanceof int[]) {
+      for (int next : (int[])values)
+        list.add(next);
+    } else if (values instanceof long[]) {
+      for (long next : (long[])values)
+        list.add(next);
+    } else if (values instanceof double[]) {
+      for (double next : (double[])values)
+        list.add(next);
+    } else if (values instanceof float[]) {
+      for (float next : (float[])values)
+        list.add(next);
+    } else if (values instanceof boolean[]) {
+      for (boolean next : (boolean[])values)
+        list.add(next);
+    } else if (values instanceof short[]) {
+      for (short next : (short[])values)
+        list.add(next);
+    } else {
+      return; // byte[] and char[] are binary or text, not multiple values
+    }
+
+    if (list.isEmpty())
+      return;
+
+    SolrInputField field = doc.getField(solrField);
+    if (field != null) {
+      field.addValue(list, 1.0f);
+    } else {
+      // setValue keeps the list rather than copying it like addField does
+      field = new SolrInputField(solrField);
+      field.setValue(list, 1.0f);
+      doc.put(solrField, field);
+    }
+  }
+
+  protected MappingPlan getMappingPlan(Class objClass) {
+    MappingPlan plan = mappingPlans.get(objClass);
+    if (plan == null) {
+      plan = createMappingPlan(objClass);
+      MappingPlan existing = mappingPlans.putIfAbsent(objClass, plan);
+      if (existing != null)
+        plan = existing;
+    }
+    return plan;
+  }
+
+  /**
+   * Resolves the accessors and Solr field names for the public fields and bean properties of a class; fields
+   * and properties that can't be read, or don't map to a Solr field, are left out.
+   */
+  protected MappingPlan createMappingPlan(Class objClass) {
+    MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+    List<PropertyMapping> fields = new ArrayList<PropertyMapping>();
+    Map<String,Integer> fieldIndexes = new HashMap<String,Integer>();
+    for (Field f : objClass.getFields()) {
+      // only non-static public
+      if (Modifier.isStatic(f.getModifiers()) || !Modifier.isPublic(f.getModifiers()))
+        continue;
+
+      MethodHandle getter;
+      try {
+        getter = lookup.unreflectGetter(f).asType(GETTER_TYPE);
+      } catch (IllegalAccessException e) {
+        continue;
       }
+
+      // the id field isn't mapped, but still takes precedence over an id property
+      String fieldName = f.getName();
+      fieldIndexes.put(fieldName, fields.size());
+      fields.add(createMapping(fieldName, getter, f.getType(), f.getGenericType()));
     }
 
     PropertyDescriptor[] props = null;
@@ -109,41 +325,95 @@ public class DefaultSolrInputDocumentMapper implements SolrInputDocumentMapper {
       log.warn("Can't get BeanInfo for class: " + objClass);
     }
 
+    List<PropertyMapping> properties = new ArrayList<PropertyMapping>();
+    boolean anyShadowed = false;
     if (props != null) {
       for (PropertyDescriptor pd : props) {
         String propName = pd.getName();
-        if ("class".equals(propName) || fields.contains(propName))
+        Method readMethod = pd.getReadMethod();
+        if ("class".equals(propName) || readMethod == null)
           continue;
 
-        Method readMethod = pd.getReadMethod();
-        if (readMethod != null) {
-          Object value = null;
-          try {
-            value = readMethod.invoke(obj);
-          } catch (Exception e) {
-            log.debug("Failed to invoke read method for property '" + pd.getName() +
-              "' on object of type '" + objClass.getName() + "' due to: " + e);
-          }
-
-          if (value != null) {
-            fields.add(propName);
-            if (idFieldName.equals(propName))
-              continue;
-
-            if (fieldGuessingEnabled) {
-              if (!pd.getPropertyType().isArray())
-                doc.addField(propName, value);
-            } else {
-              addDynField(doc, propName, value, pd.getPropertyType(),
-                (dynamicFieldOverrides != null) ? dynamicFieldOverrides.get(propName) : null);
-            }
-
-          }
+        MethodHandle getter;
+        try {
+          getter = lookup.unreflect(readMethod).asType(GETTER_TYPE);
+        } catch (IllegalAccessException e) {
+          log.debug("Can't read property '" + propName + "' on objects of type '" + objClass.getName() + "' due to: " + e);
+          continue;
         }
+
+        PropertyMapping mapping = createMapping(propName, getter, pd.getPropertyType(), readMethod.getGenericReturnType());
+        if (!mapping.isMapped())
+          continue;
+
+        Integer shadowedBy = fieldIndexes.get(propName);
+        if (shadowedBy != null) {
+          mapping.shadowedBy = shadowedBy;
+          fields.get(shadowedBy).shadows = true;
+          anyShadowed = true;
+        }
+        properties.add(mapping);
       }
     }
 
-    return doc;
+    // fields are only read if they map to a Solr field or take precedence over a property
+    List<PropertyMapping> readFields = new ArrayList<PropertyMapping>(fields.size());
+    int[] newIndexes = new int[fields.size()];
+    for (int f=0; f < fields.size(); f++) {
+      PropertyMapping mapping = fields.get(f);
+      newIndexes[f] = readFields.size();
+      if (mapping.isMapped() || mapping.shadows)
+        readFields.add(mapping);
+    }
+    for (PropertyMapping mapping : properties) {
+      if (mapping.shadowedBy != -1)
+        mapping.shadowedBy = newIndexes[mapping.shadowedBy];
+    }
+
+    return new MappingPlan(readFields, properties, anyShadowed);
+  }
+
+  /**
+   * Resolves the Solr field to map a field or property of the given type to, if any.
+   */
+  protected PropertyMapping createMapping(String name, MethodHandle getter, Class type, Type genericType) {
+    if (idFieldName.equals(name))
+      return new PropertyMapping(name, getter, null, null);
+
+    boolean isCollection = Collection.class.isAssignableFrom(type);
+    if (type.isArray() || isCollection) {
+      Class elementType = type.isArray() ? type.getComponentType() : getElementType(genericType);
+      if (type.isArray() && (elementType == byte.class || elementType == char.class || elementType.isArray()))
+        return new PropertyMapping(name, getter, null, null);
+
+      if (fieldGuessingEnabled)
+        return new PropertyMapping(name, getter, name, null, true, false);
+
+      String dynamicFieldSuffix = (dynamicFieldOverrides != null) ? dynamicFieldOverrides.get(name) : null;
+      if (dynamicFieldSuffix != null)
+        return new PropertyMapping(name, getter, name + dynamicFieldSuffix, null, true, false);
+
+      if (isCollection && (elementType == null || elementType == Object.class))
+        return new PropertyMapping(name, getter, null, null, true, true);
+
+      dynamicFieldSuffix = getDefaultMultiValuedDynamicFieldMapping(elementType);
+      return new PropertyMapping(name, getter, (dynamicFieldSuffix != null) ? name + dynamicFieldSuffix : null, null, true, false);
+    }
+
+    if (fieldGuessingEnabled)
+      return new PropertyMapping(name, getter, name, null);
+
+    String dynamicFieldSuffix = (dynamicFieldOverrides != null) ? dynamicFieldOverrides.get(name) : null;
+    if (dynamicFieldSuffix != null)
+      return new PropertyMapping(name, getter, name + dynamicFieldSuffix, null);
+
+    dynamicFieldSuffix = getDefaultDynamicFieldMapping(type);
+    if (dynamicFieldSuffix == null)
+      return new PropertyMapping(name, getter, null, null); // don't auto-map if we don't have a type
+
+    // treat strings with multiple terms as text only if using the default!
+    String textField = "_s".equals(dynamicFieldSuffix) ? name + "_t" : null;
+    return new PropertyMapping(name, getter, name + dynamicFieldSuffix, textField);
   }
 
   protected void addDynField(SolrInputDocument doc,
@@ -151,8 +421,14 @@ public class DefaultSolrInputDocumentMapper implements SolrInputDocumentMapper {
                              Object value,
                              Class type,
                              String dynamicFieldSuffix) {
-    if (type.isArray())
-      return; // TODO: Array types not supported yet ...
+    if (type.isArray() || Collection.class.isAssignableFrom(type)) {
+      Class elementType = type.isArray() ? type.getComponentType() : getElementType((Collection)value);
+      if (dynamicFieldSuffix == null && elementType != null)
+        dynamicFieldSuffix = getDefaultMultiValuedDynamicFieldMapping(elementType);
+      if (dynamicFieldSuffix != null)
+        addMultiValuedField(doc, fieldName + dynamicFieldSuffix, value);
+      return;
+    }
 
     if (dynamicFieldSuffix == null) {
       dynamicFieldSuffix = getDefaultDynamicFieldMapping(type);
@@ -185,4 +461,35 @@ public class DefaultSolrInputDocumentMapper implements SolrInputDocumentMapper {
       return "_tdt";
     return null; // default is don't auto-map
   }
+
+  /**
+   * Returns the suffix for a multi-valued dynamic field of the given element type, such as _ss for Strings.
+   */
+  protected String getDefaultMultiValuedDynamicFieldMapping(Class elementType) {
+    String dynamicFieldSuffix = getDefaultDynamicFieldMapping(elementType);
+    return (dynamicFieldSuffix != null) ? dynamicFieldSuffix + "s" : null;
+  }
+
+  /**
+   * Returns the element type of a Collection declared with one, such as List&lt;String&gt;, or null.
+   */
+  protected static Class getElementType(Type genericType) {
+    if (genericType instanceof ParameterizedType) {
+      Type[] typeArgs = ((ParameterizedType)genericType).getActualTypeArguments();
+      if (typeArgs.length == 1 && typeArgs[0] instanceof Class)
+        return (Class)typeArgs[0];
+    }
+    return null;
+  }
+
+  /**
+   * Returns the type of the first non-null element of a Collection, or null if there isn't one.
+   */
+  protected static Class getElementType(Collection values) {
+    for (Object next : values) {
+      if (next != null)
+        return next.getClass();
+    }
+    return null;
+  }
 }
@@ -10,13 +10,21 @@ import org.apache.solr.common.util.NamedList;
 
 import java.net.ConnectException;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Bean that sends an update request to Solr with tunable retry support.
  * The default implementation should be sufficient for most purposes but
  * you can inject a different implementation using Spring.
+ * <p>
+ * If circuitBreakerFailureThreshold is set (it's disabled by default), requests to a collection fail fast
+ * with a CircuitOpenException once that many requests in a row have failed due to connection problems or
+ * server errors; one request is let through every circuitBreakerResetMs to probe whether the collection
+ * has recovered.
  */
-public class DefaultUpdateRequestStrategy implements SolrUpdateRequestStrategy {
+public class DefaultUpdateRequestStrategy implements CircuitBreakingUpdateRequestStrategy {
 
   public static Logger log = Logger.getLogger(DefaultUpdateRequestStrategy.class);
 
@@ -29,21 +37,33 @@ public class DefaultUpdateRequestStrategy implements SolrUpdateRequestStrategy {
   @Metric
   public Counter failedRequests;
 
+  @Metric
+  public Counter rejectedRequests;
+
   protected int waitSecsBetweenRetries = 5;
   protected int maxRetryAttempts = 1;
+  protected int circuitBreakerFailureThreshold = 0; // <= 0 disables the circuit breakers
+  protected long circuitBreakerResetMs = 30000L;
+
+  private ConcurrentMap<String,CircuitBreaker> circuitBreakers = new ConcurrentHashMap<String,CircuitBreaker>();
 
   public NamedList<Object> sendUpdateRequest(SolrClient solrClient, String collection, SolrRequest req) {
     return sendUpdateRequestWithRetry(solrClient, collection, req, maxRetryAttempts);
   }
 
   protected NamedList<Object> sendUpdateRequestWithRetry(SolrClient solrClient, String collection, SolrRequest req, int remainingRetryAttempts) {
+    checkCircuit(collection);
+
     NamedList<Object> resp = null;
     try {
       resp = solrClient.request(req);
       if (okRequests != null)
         okRequests.inc();
 
+      recordResult(collection, null, null);
     } catch (Exception e) {
+      recordResult(collection, null, e);
+
       if (remainingRetryAttempts <= 0) {
         log.error("Send update request to "+collection+" failed due to " + e +
           "; max number of re-try attempts "+maxRetryAttempts+" reached, no more attempts available, request fails!");
@@ -90,6 +110,78 @@ public class DefaultUpdateRequestStrategy implements SolrUpdateRequestStrategy {
     return resp;
   }
 
+  /**
+   * Throws a CircuitOpenException if requests to the collection are being rejected.
+   */
+  protected void checkCircuit(String collection) {
+    CircuitBreaker circuitBreaker = getCircuitBreaker(collection, null);
+    if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+      if (rejectedRequests != null)
+        rejectedRequests.inc();
+
+      throw new CircuitOpenException("Not sending update request to "+collection+
+        " because too many previous requests failed; circuit is open");
+    }
+  }
+
+  public boolean isCircuitOpen(String collection, String shard) {
+    CircuitBreaker circuitBreaker = getCircuitBreaker(collection, null);
+    if (circuitBreaker != null && circuitBreaker.isOpen())
+      return true;
+
+    if (shard != null) {
+      circuitBreaker = getCircuitBreaker(collection, shard);
+      return circuitBreaker != null && circuitBreaker.isOpen();
+    }
+    return false;
+  }
+
+  public void recordResult(String collection, String shard, Throwable error) {
+    CircuitBreaker circuitBreaker = getCircuitBreaker(collection, shard);
+    if (circuitBreaker == null)
+      return;
+
+    if (error == null) {
+      circuitBreaker.onSuccess();
+    } else if (isCircuitFailure(error)) {
+      circuitBreaker.onFailure();
+    } else if (!(error instanceof CircuitOpenException)) {
+      // Solr responded, such as with a bad request error, so it's reachable
+      circuitBreaker.onSuccess();
+    }
+  }
+
+  protected CircuitBreaker getCircuitBreaker(String collection, String shard) {
+    if (circuitBreakerFailureThreshold <= 0)
+      return null;
+
+    String key = (collection != null) ? collection : "";
+    if (shard != null)
+      key += "/" + shard;
+
+    CircuitBreaker circuitBreaker = circuitBreakers.get(key);
+    if (circuitBreaker == null) {
+      circuitBreaker = new CircuitBreaker(key, circuitBreakerFailureThreshold, circuitBreakerResetMs);
+      CircuitBreaker existing = circuitBreakers.putIfAbsent(key, circuitBreaker);
+      if (existing != null)
+        circuitBreaker = existing;
+    }
+    return circuitBreaker;
+  }
+
+  /**
+   * Failures that indicate the collection or shard is unavailable, rather than a problem with the request.
+   */
+  protected boolean isCircuitFailure(Throwable exc) {
+    Throwable rootCause = SolrException.getRootCause(exc);
+    if (rootCause instanceof ConnectException || rootCause instanceof SocketException ||
+        rootCause instanceof SocketTimeoutException)
+      return true;
+
+    SolrException solrExc = (exc instanceof SolrException) ? (SolrException)exc : null;
+    return solrExc != null && !(exc instanceof CircuitOpenException) && solrExc.code() >= 500;
+  }
+
   public int getWaitSecsBetweenRetries() {
     return waitSecsBetweenRetries;
   }
@@ -106,6 +198,22 @@ public class DefaultUpdateRequestStrategy implements SolrUpdateRequestStrategy {
     this.maxRetryAttempts = maxRetryAttempts;
   }
 
+  public int getCircuitBreakerFailureThreshold() {
+    return circuitBreakerFailureThreshold;
+  }
+
+  public void setCircuitBreakerFailureThreshold(int circuitBreakerFailureThreshold) {
+    this.circuitBreakerFailureThreshold = circuitBreakerFailureThreshold;
+  }
+
+  public long getCircuitBreakerResetMs() {
+    return circuitBreakerResetMs;
+  }
+
+  public void setCircuitBreakerResetMs(long circuitBreakerResetMs) {
+    this.circuitBreakerResetMs = circuitBreakerResetMs;
+  }
+
   protected boolean shouldRetry(Exception exc) {
     Throwable rootCause = SolrException.getRootCause(exc);
     return (rootCause instanceof ConnectException || rootCause instanceof SocketException);
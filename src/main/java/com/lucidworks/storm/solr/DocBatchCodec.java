@@ -0,0 +1,39 @@
+package com.lucidworks.storm.solr;
+
+import org.apache.solr.client.solrj.request.JavaBinUpdateRequestCodec;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Serializes a batch of docs for a collection as a javabin update request, such as to keep it on local disk
+ * until it can be sent to Solr.
+ */
+public class DocBatchCodec {
+
+  public static byte[] encode(String collection, List<SolrInputDocument> docs) throws IOException {
+    UpdateRequest req = new UpdateRequest();
+    req.setParam("collection", collection);
+    req.add(docs);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    new JavaBinUpdateRequestCodec().marshal(req, bytes);
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Adds the docs in the encoded batch to the given list and returns the collection they're for.
+   */
+  public static String decode(byte[] encoded, final List<SolrInputDocument> docs) throws IOException {
+    UpdateRequest req = new JavaBinUpdateRequestCodec().unmarshal(new ByteArrayInputStream(encoded),
+      new JavaBinUpdateRequestCodec.StreamingUpdateHandler() {
+        public void update(SolrInputDocument doc, UpdateRequest req, Integer commitWithin, Boolean overwrite) {
+          docs.add(doc);
+        }
+      });
+    return req.getParams().get("collection");
+  }
+}
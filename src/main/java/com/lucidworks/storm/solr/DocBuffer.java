@@ -3,47 +3,184 @@ package com.lucidworks.storm.solr;
 import org.apache.solr.common.SolrInputDocument;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class DocBuffer {
+
+  private static final AtomicLong batchIdSequence = new AtomicLong();
+
   public final String collection;
   public final List<SolrInputDocument> buffer;
   public final long bufferTimeoutMs;
-  public final int maxBufferSize;
+  public final long maxBufferBytes;
+
+  // not final so a BufferPolicy can adjust it, see setMaxBufferSize
+  public int maxBufferSize;
 
   private long bufferTimeoutAtNanos = -1L;
+  private long resetAtNanos = System.nanoTime();
+  private long estimatedBytes = 0L;
+  private Long batchId = nextBatchId();
+
+  // position of the buffered doc for each ID, when coalescing updates to the same doc
+  private String coalesceIdField;
+  private Map<Object,Integer> docIndexes;
+
+  /**
+   * Returns a new ID for a batch of tuples, unique across all buffers in the worker.
+   */
+  static Long nextBatchId() {
+    return batchIdSequence.incrementAndGet();
+  }
 
   public DocBuffer(String collection, int maxBufferSize, long bufferTimeoutMs) {
+    this(collection, maxBufferSize, bufferTimeoutMs, -1L);
+  }
+
+  /**
+   * @param maxBufferBytes flush once the estimated size of the buffered docs reaches this many bytes; -1 to disable
+   */
+  public DocBuffer(String collection, int maxBufferSize, long bufferTimeoutMs, long maxBufferBytes) {
     this.collection = collection;
     this.maxBufferSize = maxBufferSize;
     this.bufferTimeoutMs = bufferTimeoutMs;
+    this.maxBufferBytes = maxBufferBytes;
     this.buffer = new ArrayList<SolrInputDocument>(maxBufferSize);
   }
 
-  public void add(SolrInputDocument doc) {
+  public boolean add(SolrInputDocument doc) {
+    return add(doc, DocSizeEstimator.estimate(doc));
+  }
+
+  /**
+   * Adds a doc whose size was already estimated by the caller, see DocSizeEstimator; returns false if the doc
+   * was coalesced into a doc already in the buffer instead.
+   */
+  public boolean add(SolrInputDocument doc, long estimatedDocBytes) {
+    if (docIndexes != null) {
+      Object id = doc.getFieldValue(coalesceIdField);
+      Integer index = (id != null) ? docIndexes.get(id) : null;
+      if (index != null) {
+        SolrInputDocument buffered = buffer.get(index);
+        long bufferedBytes = DocSizeEstimator.estimate(buffered);
+        SolrInputDocument merged = UpdateCoalescer.merge(buffered, doc);
+        if (merged != null) {
+          buffer.set(index, merged);
+          estimatedBytes += DocSizeEstimator.estimate(merged) - bufferedBytes;
+          return false;
+        }
+      }
+      if (id != null)
+        docIndexes.put(id, buffer.size());
+    }
+
     buffer.add(doc);
+    estimatedBytes += estimatedDocBytes;
 
     // start the timer when the first doc arrives in this batch
     if (bufferTimeoutAtNanos == -1L)
       bufferTimeoutAtNanos = System.nanoTime() + TimeUnit.NANOSECONDS.convert(bufferTimeoutMs, TimeUnit.MILLISECONDS);
+
+    return true;
+  }
+
+  /**
+   * Keeps one doc per value of the ID field in the buffer, by replacing or merging updates to a doc that is
+   * already buffered, see UpdateCoalescer; null to buffer every doc.
+   */
+  public void setCoalesceIdField(String idFieldName) {
+    this.coalesceIdField = idFieldName;
+    this.docIndexes = null;
+    if (idFieldName != null) {
+      docIndexes = new HashMap<Object,Integer>(maxBufferSize * 2);
+      for (int d=0; d < buffer.size(); d++) {
+        Object id = buffer.get(d).getFieldValue(idFieldName);
+        if (id != null)
+          docIndexes.put(id, d);
+      }
+    }
+  }
+
+  /**
+   * Identifies the batch of docs currently being collected in this buffer; changes whenever the buffer is reset.
+   */
+  public Long getBatchId() {
+    return batchId;
+  }
+
+  public int getMaxBufferSize() {
+    return maxBufferSize;
+  }
+
+  /**
+   * Changes the number of docs that triggers a flush, such as when a BufferPolicy adjusts the batch size.
+   */
+  public void setMaxBufferSize(int maxBufferSize) {
+    this.maxBufferSize = maxBufferSize;
+  }
+
+  /**
+   * Returns the estimated number of bytes the buffered docs add to an update request.
+   */
+  public long getEstimatedBytes() {
+    return estimatedBytes;
+  }
+
+  /**
+   * Returns true if adding a doc of the given size to a non-empty buffer would take it over maxBufferBytes,
+   * in which case the buffer should be flushed first to keep the request under the limit.
+   */
+  public boolean wouldExceedMaxBytes(long estimatedDocBytes) {
+    return maxBufferBytes > 0 && !buffer.isEmpty() && (estimatedBytes + estimatedDocBytes) > maxBufferBytes;
+  }
+
+  /**
+   * Returns true if no docs have been added since the buffer was last reset, at least idleMs ago.
+   */
+  public boolean isIdle(long idleMs) {
+    return buffer.isEmpty() && (System.nanoTime() - resetAtNanos) >= TimeUnit.NANOSECONDS.convert(idleMs, TimeUnit.MILLISECONDS);
   }
 
   public void reset() {
     bufferTimeoutAtNanos = -1L;
+    resetAtNanos = System.nanoTime();
+    estimatedBytes = 0L;
     buffer.clear();
+    if (docIndexes != null)
+      docIndexes.clear();
+    batchId = nextBatchId();
+  }
+
+  /**
+   * Moves the buffered docs into a new DocBuffer that keeps the current batch ID and resets this buffer,
+   * so that it can keep filling while the returned batch is being sent.
+   */
+  public DocBuffer detach() {
+    DocBuffer batch = new DocBuffer(collection, maxBufferSize, bufferTimeoutMs, maxBufferBytes);
+    batch.buffer.addAll(buffer);
+    batch.bufferTimeoutAtNanos = bufferTimeoutAtNanos;
+    batch.estimatedBytes = estimatedBytes;
+    batch.batchId = batchId;
+    reset();
+    return batch;
   }
 
   public boolean shouldFlushBuffer() {
     if (buffer.isEmpty())
       return false;
 
-    return (buffer.size() >= maxBufferSize) || System.nanoTime() >= bufferTimeoutAtNanos;
+    return (buffer.size() >= maxBufferSize) ||
+      (maxBufferBytes > 0 && estimatedBytes >= maxBufferBytes) ||
+      System.nanoTime() >= bufferTimeoutAtNanos;
   }
 
   public String toString() {
     StringBuilder sb = new StringBuilder();
-    sb.append("DocBuffer: ").append(collection).append(", ").append(buffer.size()).append(", shouldFlush? ").append(shouldFlushBuffer());
+    sb.append("DocBuffer: ").append(collection).append(", ").append(buffer.size()).append(", ~").append(estimatedBytes).append(" bytes, shouldFlush? ").append(shouldFlushBuffer());
     return sb.toString();
   }
 }
@@ -0,0 +1,75 @@
+package com.lucidworks.storm.solr;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * Cheaply estimates how many bytes a SolrInputDocument adds to an update request without serializing it;
+ * strings are counted by length, so the estimate is close for mostly ASCII text and low for multi-byte text.
+ */
+public class DocSizeEstimator {
+
+  // approximate overhead of the tags and length prefixes around each field and value
+  static final int FIELD_OVERHEAD = 4;
+  static final int VALUE_OVERHEAD = 2;
+
+  public static long estimate(SolrInputDocument doc) {
+    if (doc == null)
+      return 0L;
+
+    long size = FIELD_OVERHEAD;
+    for (SolrInputField field : doc.values()) {
+      size += FIELD_OVERHEAD + field.getName().length() + estimateValue(field.getValue());
+    }
+
+    if (doc.hasChildDocuments()) {
+      for (SolrInputDocument child : doc.getChildDocuments())
+        size += estimate(child);
+    }
+
+    return size;
+  }
+
+  protected static long estimateValue(Object value) {
+    if (value == null)
+      return 0L;
+
+    if (value instanceof CharSequence)
+      return VALUE_OVERHEAD + ((CharSequence) value).length();
+
+    if (value instanceof Number || value instanceof Date)
+      return VALUE_OVERHEAD + 8;
+
+    if (value instanceof Boolean)
+      return VALUE_OVERHEAD + 1;
+
+    if (value instanceof byte[])
+      return VALUE_OVERHEAD + ((byte[]) value).length;
+
+    if (value instanceof Collection) {
+      long size = VALUE_OVERHEAD;
+      for (Object next : (Collection) value)
+        size += estimateValue(next);
+      return size;
+    }
+
+    if (value instanceof Map) {
+      // atomic update, such as {"set": value}
+      long size = VALUE_OVERHEAD;
+      for (Object entry : ((Map) value).entrySet()) {
+        Map.Entry e = (Map.Entry) entry;
+        size += estimateValue(e.getKey()) + estimateValue(e.getValue());
+      }
+      return size;
+    }
+
+    if (value instanceof SolrInputDocument)
+      return estimate((SolrInputDocument) value);
+
+    return VALUE_OVERHEAD + value.toString().length();
+  }
+}
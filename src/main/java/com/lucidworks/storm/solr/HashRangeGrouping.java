@@ -3,22 +3,32 @@ package com.lucidworks.storm.solr;
 import backtype.storm.generated.GlobalStreamId;
 import backtype.storm.grouping.CustomStreamGrouping;
 import backtype.storm.task.WorkerTopologyContext;
-import org.apache.commons.math3.distribution.UniformIntegerDistribution;
 import org.apache.solr.common.cloud.*;
-import org.apache.solr.common.util.Hash;
 
 import java.io.Serializable;
 import java.util.*;
 
+/**
+ * Sends each tuple to a task for the hash range that includes the hash of its doc ID, where the full hash
+ * range is split evenly into numShards ranges like Solr does when creating a collection; if there are several
+ * tasks per range, the tasks for range r are targetTasks r, r+numShards, r+2*numShards, and so on.
+ * <p>
+ * Doc IDs are hashed the same way as Solr's CompositeIdRouter, so IDs like tenant!doc and tenant/bits!doc
+ * go to the task for the shard that Solr routes them to. The taskSelectionMode sets how one of the tasks for
+ * a range is picked; see TaskSelector.
+ */
 public class HashRangeGrouping implements CustomStreamGrouping, Serializable {
 
   private transient List<Integer> targetTasks;
   private transient List<DocRouter.Range> ranges;
+  private transient HashRangeLookup rangeLookup;
+  private transient CompositeIdRouter docRouter;
+  private transient TaskSelector taskSelector;
 
   protected Map stormConf;
   protected int numShards;
-  protected UniformIntegerDistribution random;
   protected int tasksPerShard;
+  protected TaskSelector.Mode taskSelectionMode = TaskSelector.Mode.POWER_OF_TWO_CHOICES;
 
   public HashRangeGrouping(Map stormConf, int numShards) {
     this.stormConf = stormConf;
@@ -29,6 +39,14 @@ public class HashRangeGrouping implements CustomStreamGrouping, Serializable {
     return numShards;
   }
 
+  public TaskSelector.Mode getTaskSelectionMode() {
+    return taskSelectionMode;
+  }
+
+  public void setTaskSelectionMode(TaskSelector.Mode taskSelectionMode) {
+    this.taskSelectionMode = taskSelectionMode;
+  }
+
   public void prepare(WorkerTopologyContext context, GlobalStreamId stream, List<Integer> targetTasks) {
     this.targetTasks = targetTasks;
     int numTasks = targetTasks.size();
@@ -36,10 +54,11 @@ public class HashRangeGrouping implements CustomStreamGrouping, Serializable {
       throw new IllegalArgumentException("Number of tasks ("+numTasks+") should be a multiple of the number of shards ("+numShards+")!");
 
     this.tasksPerShard = numTasks/numShards;
-    this.random = new UniformIntegerDistribution(0, tasksPerShard-1);
+    this.taskSelector = new TaskSelector(taskSelectionMode, targetTasks);
 
-    CompositeIdRouter docRouter =  new CompositeIdRouter();
+    this.docRouter = new CompositeIdRouter();
     this.ranges = docRouter.partitionRange(numShards, docRouter.fullRange());
+    this.rangeLookup = new HashRangeLookup(ranges);
   }
 
   public List<Integer> chooseTasks(int taskId, List<Object> values) {
@@ -51,15 +70,17 @@ public class HashRangeGrouping implements CustomStreamGrouping, Serializable {
       return Collections.singletonList(targetTasks.get(0));
 
 
-    final int hash = Hash.murmurhash3_x86_32(docId, 0, docId.length(), 0);
-    int rangeIndex = 0;
-    for (int r=0; r < ranges.size(); r++) {
-      if (ranges.get(r).includes(hash)) {
-        rangeIndex = r;
-        break;
-      }
-    }
-    int selectedTask = (tasksPerShard > 1) ? rangeIndex + (random.sample() * tasksPerShard) : rangeIndex;
+    int hash = hash(docId);
+    int rangeIndex = Math.max(0, rangeLookup.indexOf(hash));
+    int selectedTask = taskSelector.select(rangeIndex, numShards, tasksPerShard, hash);
     return Collections.singletonList(targetTasks.get(selectedTask));
   }
+
+  /**
+   * Returns the hash Solr's CompositeIdRouter routes the doc ID by; for IDs without a shard key prefix,
+   * this is the murmur hash of the whole ID.
+   */
+  protected int hash(String docId) {
+    return docRouter.sliceHash(docId, null, null, null);
+  }
 }
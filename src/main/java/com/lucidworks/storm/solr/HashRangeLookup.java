@@ -0,0 +1,122 @@
+package com.lucidworks.storm.solr;
+
+import org.apache.solr.common.cloud.DocRouter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Finds which of a list of non-overlapping hash ranges includes a hash, without allocating or scanning
+ * all the ranges for every tuple. The lower bounds of the ranges are kept in a sorted int[] and searched
+ * using binary search; if the ranges are contiguous and evenly sized, such as those created by
+ * DocRouter.partitionRange, the range is computed from the hash instead, give or take one.
+ */
+public class HashRangeLookup {
+
+  private final int[] mins;
+  private final int[] maxs;
+  private final int[] indexes; // position in the list passed to the constructor of each range, in sorted order
+  private final long firstMin;
+  private final long step; // > 0 if the position of the range can be estimated from the hash
+
+  public HashRangeLookup(List<DocRouter.Range> ranges) {
+    final List<DocRouter.Range> sorted = new ArrayList<DocRouter.Range>(ranges);
+    Collections.sort(sorted, new Comparator<DocRouter.Range>() {
+      public int compare(DocRouter.Range a, DocRouter.Range b) {
+        return (a.min < b.min) ? -1 : ((a.min == b.min) ? 0 : 1);
+      }
+    });
+
+    int numRanges = sorted.size();
+    mins = new int[numRanges];
+    maxs = new int[numRanges];
+    indexes = new int[numRanges];
+    boolean contiguous = numRanges > 0;
+    for (int r=0; r < numRanges; r++) {
+      DocRouter.Range range = sorted.get(r);
+      if (range.min > range.max)
+        throw new IllegalArgumentException("Invalid hash range "+range);
+      if (r > 0 && range.min <= maxs[r-1])
+        throw new IllegalArgumentException("Hash range "+range+" overlaps "+sorted.get(r-1));
+      if (r > 0 && (long)range.min != (long)maxs[r-1] + 1)
+        contiguous = false;
+
+      mins[r] = range.min;
+      maxs[r] = range.max;
+      indexes[r] = indexOfRange(ranges, range);
+    }
+
+    firstMin = (numRanges > 0) ? mins[0] : 0L;
+    step = contiguous ? computeStep() : 0L;
+  }
+
+  private static int indexOfRange(List<DocRouter.Range> ranges, DocRouter.Range range) {
+    for (int i=0; i < ranges.size(); i++) {
+      if (ranges.get(i) == range)
+        return i;
+    }
+    return ranges.indexOf(range);
+  }
+
+  /**
+   * Returns the average size of the ranges if dividing by it gives a position at most one away from the
+   * right range for the bounds of every range; since the computation is monotonic, it's then at most one
+   * away for every hash in between. Evenly sized ranges aren't exactly the same size, as partitionRange
+   * rounds their bounds.
+   */
+  private long computeStep() {
+    long candidate = ((long)maxs[maxs.length-1] - firstMin + 1L) / mins.length;
+    if (candidate <= 0L)
+      return 0L;
+
+    for (int r=0; r < mins.length; r++) {
+      if (Math.abs(estimatePosition(mins[r], candidate) - r) > 1 || Math.abs(estimatePosition(maxs[r], candidate) - r) > 1)
+        return 0L;
+    }
+    return candidate;
+  }
+
+  private int estimatePosition(int hash, long step) {
+    return (int)Math.min(mins.length - 1, ((long)hash - firstMin) / step);
+  }
+
+  /**
+   * Returns the position, in the list passed to the constructor, of the range that includes the hash,
+   * or -1 if none do.
+   */
+  public int indexOf(int hash) {
+    if (mins.length == 0 || hash < mins[0] || hash > maxs[maxs.length-1])
+      return -1;
+
+    int pos;
+    if (step > 0L) {
+      pos = estimatePosition(hash, step);
+      if (hash < mins[pos]) {
+        --pos;
+      } else if (hash > maxs[pos]) {
+        ++pos;
+      }
+    } else {
+      pos = Arrays.binarySearch(mins, hash);
+      if (pos < 0)
+        pos = -pos - 2; // the range with the greatest lower bound below the hash
+      if (hash > maxs[pos])
+        return -1;
+    }
+    return indexes[pos];
+  }
+
+  /**
+   * Returns true if the range is computed from the hash instead of searched for.
+   */
+  public boolean isUniform() {
+    return step > 0L;
+  }
+
+  public int size() {
+    return mins.length;
+  }
+}
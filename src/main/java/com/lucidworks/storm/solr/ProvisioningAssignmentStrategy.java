@@ -0,0 +1,15 @@
+package com.lucidworks.storm.solr;
+
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+
+/**
+ * An assignment strategy that creates the collections it will assign docs to soon ahead of time, so the
+ * first doc for a new collection doesn't wait for it to be created. The SolrBoltAction calls it on each tick.
+ */
+public interface ProvisioningAssignmentStrategy extends DocumentAssignmentStrategy {
+
+  /**
+   * Starts creating any collections that will be needed soon in the background; must not block the caller.
+   */
+  void provisionCollections(CloudSolrClient cloudSolrClient);
+}
@@ -0,0 +1,247 @@
+package com.lucidworks.storm.solr;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.log4j.Logger;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.impl.BinaryRequestWriter;
+import org.apache.solr.client.solrj.request.JavaBinUpdateRequestCodec;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.util.ContentStream;
+import org.apache.solr.common.util.ContentStreamBase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Sends update requests as javabin without allocating a new request body for every batch.
+ * <p>
+ * By default, each update request is marshalled into a byte buffer owned by the calling thread, which is
+ * re-used for the next request sent from that thread; buffers that grow beyond maxRetainedBufferSize for
+ * an unusually large batch are dropped once the request is marshalled, so each thread of the (unbounded)
+ * pool sending requests holds on to at most maxRetainedBufferSize bytes. The stock BinaryRequestWriter builds a
+ * new, growing byte array for every request instead.
+ * <p>
+ * When streaming is enabled, no request body is built at all; the docs are marshalled by a writer thread
+ * into a small pipe that the HTTP client reads from as it writes to the socket (using chunked encoding).
+ * <p>
+ * Install on the CloudSolrClient using the requestWriter property of the SolrBoltAction; a disabled writer
+ * is ignored, leaving the client's default writer in place.
+ */
+public class ReusableBufferBinaryRequestWriter extends BinaryRequestWriter implements Closeable {
+
+  public static Logger log = Logger.getLogger(ReusableBufferBinaryRequestWriter.class);
+
+  public static final String JAVABIN_CONTENT_TYPE = "application/javabin";
+
+  protected int initialBufferSize = 64 * 1024;
+  protected boolean enabled = true;
+  protected int maxRetainedBufferSize = 512 * 1024;
+  protected boolean streaming = false;
+  protected int pipeBufferSize = 64 * 1024;
+
+  private final ThreadLocal<ReusableByteArrayOutputStream> buffers = new ThreadLocal<ReusableByteArrayOutputStream>();
+  private ExecutorService marshallerPool;
+
+  /**
+   * Exposes the internal byte array so the marshalled request can be read without copying it.
+   */
+  static class ReusableByteArrayOutputStream extends ByteArrayOutputStream {
+    ReusableByteArrayOutputStream(int size) {
+      super(size);
+    }
+
+    byte[] getBuffer() {
+      return buf;
+    }
+
+    int getCount() {
+      return count;
+    }
+  }
+
+  @Override
+  public Collection<ContentStream> getContentStreams(SolrRequest req) throws IOException {
+    Collection<ContentStream> streams = super.getContentStreams(req);
+    if (streams == null || !(req instanceof UpdateRequest))
+      return streams; // nothing to send or not an update
+
+    UpdateRequest updateRequest = (UpdateRequest)req;
+    ContentStream stream = streaming ? new StreamingUpdateContentStream(updateRequest) : getContentStream(updateRequest);
+    return Collections.singletonList(stream);
+  }
+
+  @Override
+  public ContentStream getContentStream(UpdateRequest request) throws IOException {
+    ReusableByteArrayOutputStream baos = buffers.get();
+    if (baos == null) {
+      baos = new ReusableByteArrayOutputStream(Math.min(initialBufferSize, maxRetainedBufferSize));
+      buffers.set(baos);
+    } else {
+      baos.reset();
+    }
+
+    new JavaBinUpdateRequestCodec().marshal(request, baos);
+
+    // don't keep a buffer grown by a large batch; this request still uses it
+    if (baos.getBuffer().length > maxRetainedBufferSize)
+      buffers.remove();
+
+    final ReusableByteArrayOutputStream buffer = baos;
+    ContentStreamBase stream = new ContentStreamBase() {
+      @Override
+      public InputStream getStream() throws IOException {
+        return new ByteArrayInputStream(buffer.getBuffer(), 0, buffer.getCount());
+      }
+    };
+    stream.setName("javabin");
+    stream.setContentType(JAVABIN_CONTENT_TYPE);
+    stream.setSize((long)buffer.getCount());
+    return stream;
+  }
+
+  /**
+   * Marshals the request into a pipe from a writer thread as the HTTP client reads the request body; the
+   * writer thread is not started until the HTTP client starts reading from the stream.
+   */
+  class StreamingUpdateContentStream extends ContentStreamBase {
+    final UpdateRequest request;
+
+    StreamingUpdateContentStream(UpdateRequest request) {
+      this.request = request;
+      setContentType(JAVABIN_CONTENT_TYPE);
+      setName("javabin");
+    }
+
+    @Override
+    public Long getSize() {
+      return null; // not known until all docs are written
+    }
+
+    @Override
+    public InputStream getStream() throws IOException {
+      final PipedInputStream in = new PipedInputStream(pipeBufferSize);
+      final PipedOutputStream out = new PipedOutputStream(in);
+      final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+      return new FilterInputStream(in) {
+        private boolean started = false;
+
+        @Override
+        public int read() throws IOException {
+          start();
+          return checkError(super.read());
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+          start();
+          return checkError(super.read(b, off, len));
+        }
+
+        private void start() {
+          if (started)
+            return;
+
+          started = true;
+          getMarshallerPool().execute(new Runnable() {
+            public void run() {
+              try {
+                new JavaBinUpdateRequestCodec().marshal(request, out);
+              } catch (Throwable exc) {
+                error.set(exc);
+              } finally {
+                try {
+                  out.close();
+                } catch (IOException ignore) {}
+              }
+            }
+          });
+        }
+
+        private int checkError(int r) throws IOException {
+          if (r == -1 && error.get() != null)
+            throw new IOException("Failed to stream update request due to: "+error.get(), error.get());
+          return r;
+        }
+      };
+    }
+  }
+
+  protected synchronized ExecutorService getMarshallerPool() {
+    if (marshallerPool == null) {
+      marshallerPool = Executors.newCachedThreadPool(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("javabin-writer-%d").build());
+    }
+    return marshallerPool;
+  }
+
+  @Override
+  public String getUpdateContentType() {
+    return JAVABIN_CONTENT_TYPE;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  boolean isBufferRetained() {
+    return buffers.get() != null;
+  }
+
+  public int getInitialBufferSize() {
+    return initialBufferSize;
+  }
+
+  public void setInitialBufferSize(int initialBufferSize) {
+    this.initialBufferSize = initialBufferSize;
+  }
+
+  public int getMaxRetainedBufferSize() {
+    return maxRetainedBufferSize;
+  }
+
+  /**
+   * Buffers that grow beyond this size are not kept for the next request, so one large batch doesn't
+   * pin a large byte array to the thread that sent it; this is also the most each thread retains.
+   */
+  public void setMaxRetainedBufferSize(int maxRetainedBufferSize) {
+    this.maxRetainedBufferSize = maxRetainedBufferSize;
+  }
+
+  public boolean isStreaming() {
+    return streaming;
+  }
+
+  public void setStreaming(boolean streaming) {
+    this.streaming = streaming;
+  }
+
+  public int getPipeBufferSize() {
+    return pipeBufferSize;
+  }
+
+  public void setPipeBufferSize(int pipeBufferSize) {
+    this.pipeBufferSize = pipeBufferSize;
+  }
+
+  public synchronized void close() throws IOException {
+    if (marshallerPool != null) {
+      marshallerPool.shutdownNow();
+      marshallerPool = null;
+    }
+  }
+}
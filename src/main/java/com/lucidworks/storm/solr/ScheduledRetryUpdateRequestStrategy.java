@@ -0,0 +1,329 @@
+package com.lucidworks.storm.solr;
+
+import com.codahale.metrics.Counter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ryantenney.metrics.annotation.Metric;
+import org.apache.log4j.Logger;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.common.util.NamedList;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Re-tries failed update requests on a timer instead of sleeping on the calling thread, so a connection
+ * problem doesn't stall the bolt's executor. The wait before each re-try grows exponentially from
+ * initialBackoffMs up to maxBackoffMs, randomized by jitter so bolts that failed at the same time don't
+ * all re-try at the same time.
+ * <p>
+ * At most maxRetriesPerWindow re-tries are scheduled every retryWindowMs across all requests sent using
+ * this strategy; once the budget is spent, failed requests fail immediately instead of adding to the load
+ * on a Solr cluster that is already struggling. Declare this bean as a singleton so all bolts in a worker
+ * share the budget.
+ * <p>
+ * When used by the SolrBoltAction in a SpringBolt, the tuples in a batch are acked or failed once the
+ * request completes; the synchronous sendUpdateRequest method still waits for the request to complete,
+ * for up to maxWaitMs. Declare the bean with destroy-method="close" so re-tries still pending when the
+ * worker shuts down fail their requests instead of leaving them hanging.
+ */
+public class ScheduledRetryUpdateRequestStrategy extends DefaultUpdateRequestStrategy
+  implements AsyncSolrUpdateRequestStrategy, Closeable
+{
+  public static Logger log = Logger.getLogger(ScheduledRetryUpdateRequestStrategy.class);
+
+  @Metric
+  public Counter retriesOverBudget;
+
+  protected long initialBackoffMs = 500L;
+  protected long maxBackoffMs = 30000L;
+  protected double backoffMultiplier = 2.0d;
+  protected double jitter = 0.5d;
+  protected int maxRetriesPerWindow = 100;
+  protected long retryWindowMs = 60000L;
+  protected int retryThreads = 2;
+  protected long maxWaitMs = 120000L;
+
+  private ScheduledExecutorService retryScheduler;
+  private final Set<ScheduledRetry> pendingRetries =
+    Collections.newSetFromMap(new ConcurrentHashMap<ScheduledRetry,Boolean>());
+  private long retryWindowStartedAt = -1L;
+  private int retriesInWindow = 0;
+
+  @Override
+  public NamedList<Object> sendUpdateRequest(SolrClient solrClient, String collection, SolrRequest req) {
+    final CountDownLatch done = new CountDownLatch(1);
+    final AtomicReference<NamedList<Object>> resp = new AtomicReference<NamedList<Object>>();
+    final AtomicReference<Exception> error = new AtomicReference<Exception>();
+    sendUpdateRequestAsync(solrClient, collection, req, new Callback() {
+      public void onSuccess(NamedList<Object> r) {
+        resp.set(r);
+        done.countDown();
+      }
+
+      public void onFailure(Exception exc) {
+        error.set(exc);
+        done.countDown();
+      }
+    });
+
+    try {
+      if (!done.await(maxWaitMs, TimeUnit.MILLISECONDS))
+        throw new RuntimeException("Timed out after "+maxWaitMs+" ms waiting for update request to "+collection+
+          " to complete");
+    } catch (InterruptedException ie) {
+      Thread.interrupted();
+      throw new RuntimeException("Interrupted while waiting for update request to "+collection+" to complete", ie);
+    }
+
+    Exception exc = error.get();
+    if (exc != null) {
+      if (exc instanceof RuntimeException) {
+        throw (RuntimeException) exc;
+      } else {
+        throw new RuntimeException(exc);
+      }
+    }
+    return resp.get();
+  }
+
+  public void sendUpdateRequestAsync(SolrClient solrClient, String collection, SolrRequest req, Callback callback) {
+    attempt(solrClient, collection, req, callback, 0);
+  }
+
+  protected void attempt(SolrClient solrClient, String collection, SolrRequest req, Callback callback, int attempt) {
+    try {
+      checkCircuit(collection);
+    } catch (CircuitOpenException coe) {
+      log.error(coe.getMessage());
+      failed(callback, coe);
+      return;
+    }
+
+    NamedList<Object> resp;
+    try {
+      resp = solrClient.request(req);
+    } catch (Exception e) {
+      recordResult(collection, null, e);
+      onRequestFailed(solrClient, collection, req, callback, attempt, e);
+      return;
+    }
+
+    if (okRequests != null)
+      okRequests.inc();
+
+    recordResult(collection, null, null);
+
+    callback.onSuccess(resp);
+  }
+
+  protected void onRequestFailed(final SolrClient solrClient, final String collection, final SolrRequest req,
+                                 final Callback callback, final int attempt, Exception e)
+  {
+    if (attempt >= maxRetryAttempts || !shouldRetry(e)) {
+      if (attempt >= maxRetryAttempts) {
+        log.error("Send update request to "+collection+" failed due to " + e +
+          "; max number of re-try attempts "+maxRetryAttempts+" reached, no more attempts available, request fails!");
+      } else {
+        log.error("Send update request to collection " + collection + " failed due to: " + e+
+          ", which cannot be retried, request fails!", e);
+      }
+      failed(callback, e);
+      return;
+    }
+
+    if (!tryAcquireRetry()) {
+      log.error("Send update request to "+collection+" failed due to " + e + "; already re-tried "+
+        maxRetriesPerWindow+" requests in the last "+retryWindowMs+" ms, request fails!");
+      if (retriesOverBudget != null)
+        retriesOverBudget.inc();
+      failed(callback, e);
+      return;
+    }
+
+    long backoffMs = getBackoffMs(attempt);
+    log.warn("Send update request to "+collection+" failed due to " + e + "; will retry after waiting "+
+      backoffMs+" ms (attempt "+(attempt+1)+" of "+maxRetryAttempts+")");
+    ScheduledRetry retry = new ScheduledRetry(solrClient, collection, req, callback, attempt + 1);
+    pendingRetries.add(retry);
+    try {
+      getRetryScheduler().schedule(retry, backoffMs, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException ree) {
+      if (pendingRetries.remove(retry))
+        failed(callback, e);
+    }
+  }
+
+  /**
+   * A re-try waiting for its backoff to elapse; either runs or is failed on close, but not both.
+   */
+  class ScheduledRetry implements Runnable {
+    final SolrClient solrClient;
+    final String collection;
+    final SolrRequest req;
+    final Callback callback;
+    final int attempt;
+
+    ScheduledRetry(SolrClient solrClient, String collection, SolrRequest req, Callback callback, int attempt) {
+      this.solrClient = solrClient;
+      this.collection = collection;
+      this.req = req;
+      this.callback = callback;
+      this.attempt = attempt;
+    }
+
+    public void run() {
+      if (!pendingRetries.remove(this))
+        return; // already failed by close
+
+      if (retriedRequests != null)
+        retriedRequests.inc();
+      attempt(solrClient, collection, req, callback, attempt);
+    }
+  }
+
+  protected void failed(Callback callback, Exception e) {
+    if (failedRequests != null)
+      failedRequests.inc();
+    callback.onFailure(e);
+  }
+
+  /**
+   * Returns how long to wait before the given re-try attempt (starting at 0).
+   */
+  protected long getBackoffMs(int attempt) {
+    double backoffMs = Math.min((double)maxBackoffMs, initialBackoffMs * Math.pow(backoffMultiplier, attempt));
+    return Math.round(backoffMs * (1.0d - jitter * ThreadLocalRandom.current().nextDouble()));
+  }
+
+  /**
+   * Takes a re-try from the budget for the current window, if any are left.
+   */
+  protected synchronized boolean tryAcquireRetry() {
+    long now = System.currentTimeMillis();
+    if (retryWindowStartedAt == -1L || now - retryWindowStartedAt >= retryWindowMs) {
+      retryWindowStartedAt = now;
+      retriesInWindow = 0;
+    }
+
+    if (retriesInWindow >= maxRetriesPerWindow)
+      return false;
+
+    ++retriesInWindow;
+    return true;
+  }
+
+  protected synchronized ScheduledExecutorService getRetryScheduler() {
+    if (retryScheduler == null) {
+      retryScheduler = Executors.newScheduledThreadPool(retryThreads,
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("solr-update-retry-%d").build());
+    }
+    return retryScheduler;
+  }
+
+  public long getInitialBackoffMs() {
+    return initialBackoffMs;
+  }
+
+  public void setInitialBackoffMs(long initialBackoffMs) {
+    this.initialBackoffMs = initialBackoffMs;
+  }
+
+  public long getMaxBackoffMs() {
+    return maxBackoffMs;
+  }
+
+  public void setMaxBackoffMs(long maxBackoffMs) {
+    this.maxBackoffMs = maxBackoffMs;
+  }
+
+  public double getBackoffMultiplier() {
+    return backoffMultiplier;
+  }
+
+  public void setBackoffMultiplier(double backoffMultiplier) {
+    this.backoffMultiplier = backoffMultiplier;
+  }
+
+  public double getJitter() {
+    return jitter;
+  }
+
+  /**
+   * Fraction of the backoff, between 0 and 1, that is randomized; 0 disables jitter.
+   */
+  public void setJitter(double jitter) {
+    this.jitter = jitter;
+  }
+
+  public int getMaxRetriesPerWindow() {
+    return maxRetriesPerWindow;
+  }
+
+  public void setMaxRetriesPerWindow(int maxRetriesPerWindow) {
+    this.maxRetriesPerWindow = maxRetriesPerWindow;
+  }
+
+  public long getRetryWindowMs() {
+    return retryWindowMs;
+  }
+
+  public void setRetryWindowMs(long retryWindowMs) {
+    this.retryWindowMs = retryWindowMs;
+  }
+
+  public int getRetryThreads() {
+    return retryThreads;
+  }
+
+  public void setRetryThreads(int retryThreads) {
+    this.retryThreads = retryThreads;
+  }
+
+  public long getMaxWaitMs() {
+    return maxWaitMs;
+  }
+
+  /**
+   * How long the synchronous sendUpdateRequest waits for a request and its re-tries to complete before failing.
+   */
+  public void setMaxWaitMs(long maxWaitMs) {
+    this.maxWaitMs = maxWaitMs;
+  }
+
+  /**
+   * Drops any pending re-tries and fails their requests, so the tuples for those requests are failed and
+   * replayed by Storm. The strategy can still be used after being closed; it is shared by several bolts,
+   * so it is closed by the Spring container rather than by the bolts.
+   */
+  public synchronized void close() throws IOException {
+    if (retryScheduler != null) {
+      retryScheduler.shutdownNow();
+      retryScheduler = null;
+    }
+
+    List<ScheduledRetry> dropped = new ArrayList<ScheduledRetry>();
+    for (ScheduledRetry retry : pendingRetries) {
+      if (pendingRetries.remove(retry))
+        dropped.add(retry);
+    }
+    if (!dropped.isEmpty())
+      log.warn("Failing "+dropped.size()+" update requests with pending re-tries on close");
+
+    for (ScheduledRetry retry : dropped)
+      failed(retry.callback, new IOException("Update request to "+retry.collection+" dropped before re-try "+
+        retry.attempt+" because the update request strategy was closed"));
+  }
+}
@@ -1,6 +1,7 @@
 package com.lucidworks.storm.solr;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -11,26 +12,166 @@ import backtype.storm.generated.GlobalStreamId;
 import backtype.storm.grouping.CustomStreamGrouping;
 import backtype.storm.task.WorkerTopologyContext;
 import com.lucidworks.storm.StreamingApp;
+import org.apache.log4j.Logger;
 import org.apache.solr.client.solrj.impl.CloudSolrClient;
 
-import org.apache.commons.math3.distribution.UniformIntegerDistribution;
+import org.apache.solr.common.cloud.ClusterState;
+import org.apache.solr.common.cloud.CompositeIdRouter;
 import org.apache.solr.common.cloud.DocCollection;
 import org.apache.solr.common.cloud.DocRouter;
+import org.apache.solr.common.cloud.HashBasedRouter;
 import org.apache.solr.common.cloud.ImplicitDocRouter;
 import org.apache.solr.common.cloud.Slice;
+import org.apache.solr.common.cloud.SolrZkClient;
+import org.apache.solr.common.cloud.ZkStateReader;
+import org.apache.solr.common.util.Hash;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
 
+/**
+ * Sends each tuple to a task for the shard of the collection that its doc ID is routed to; if there are several
+ * tasks per shard, the tasks for shard s are targetTasks s, s+numShards, s+2*numShards, and so on. If the number
+ * of tasks is not a multiple of the number of shards, each task is given an even part of the full hash range
+ * instead, so a task still only gets docs for the one or two shards that overlap its part. The
+ * taskSelectionMode sets how one of the tasks for a shard is picked; see TaskSelector.
+ * <p>
+ * The state of the collection is watched in ZooKeeper, so when the shard layout changes, such as after a shard
+ * is split, the routing table is rebuilt and swapped in without blocking the tuples being routed.
+ */
 public class ShardGrouping implements CustomStreamGrouping, Serializable {
 
+  public static Logger log = Logger.getLogger(ShardGrouping.class);
+
+  /**
+   * Immutable routing for one layout of the shards in the collection.
+   */
+  static final class RoutingTable {
+    final DocCollection docCollection;
+    final String layout;
+    final int numShards;
+    final int numTasks;
+    final int tasksPerShard; // 0 if tasks are assigned by hash range
+    final Map<String,Integer> shardIndexes;
+
+    // finds the shard, or task, from the hash of the doc ID, if the router is hash-based
+    final HashRangeLookup shardLookup; // ranges are in the same order as the shards
+    final HashRangeLookup taskLookup;
+
+    RoutingTable(DocCollection docCollection, int numTasks) {
+      this.docCollection = docCollection;
+      this.numTasks = numTasks;
+
+      DocRouter docRouter = docCollection.getRouter();
+      if (docRouter instanceof ImplicitDocRouter)
+        throw new IllegalStateException("Implicit document routing not supported by this Partitioner!");
+
+      Collection<Slice> shards = docCollection.getActiveSlices();
+      if (shards == null || shards.size() == 0)
+        throw new IllegalStateException("Collection '" + docCollection.getName() + "' does not have any active shards!");
+
+      numShards = shards.size();
+      layout = getLayout(docCollection);
+      shardIndexes = new HashMap<String, Integer>(numShards * 2);
+      List<DocRouter.Range> ranges = new ArrayList<DocRouter.Range>(numShards);
+      int s = 0;
+      for (Slice next : shards) {
+        shardIndexes.put(next.getName(), s);
+        if (ranges != null && next.getRange() != null) {
+          ranges.add(next.getRange());
+        } else {
+          ranges = null;
+        }
+        ++s;
+      }
+
+      HashRangeLookup lookup = null;
+      if (docRouter instanceof HashBasedRouter && ranges != null) {
+        try {
+          lookup = new HashRangeLookup(ranges);
+        } catch (IllegalArgumentException exc) {
+          // overlapping ranges, let the router sort it out
+        }
+      }
+      shardLookup = lookup;
+
+      if (numTasks > 0 && numTasks % numShards == 0) {
+        tasksPerShard = numTasks / numShards;
+        taskLookup = null;
+      } else if (numTasks > 0) {
+        if (!(docRouter instanceof HashBasedRouter))
+          throw new IllegalArgumentException("Number of tasks ("+numTasks+") should be a multiple of the number of shards ("+numShards+")!");
+
+        tasksPerShard = 0;
+        CompositeIdRouter taskRouter = new CompositeIdRouter();
+        taskLookup = new HashRangeLookup(taskRouter.partitionRange(numTasks, taskRouter.fullRange()));
+      } else {
+        tasksPerShard = 0;
+        taskLookup = null;
+      }
+    }
+
+    int chooseTask(String docId, TaskSelector taskSelector) {
+      if (taskLookup != null)
+        return Math.max(0, taskLookup.indexOf(hash(docId)));
+
+      if (tasksPerShard <= 1)
+        return getShardIndex(docId);
+
+      // map this doc into one of the tasks for that shard
+      int hash = hash(docId);
+      return taskSelector.select(getShardIndex(docId, hash), numShards, tasksPerShard, hash);
+    }
+
+    int hash(String docId) {
+      DocRouter docRouter = docCollection.getRouter();
+      return (docRouter instanceof HashBasedRouter) ?
+        ((HashBasedRouter)docRouter).sliceHash(docId, null, null, docCollection) :
+        Hash.murmurhash3_x86_32(docId, 0, docId.length(), 0);
+    }
+
+    int getShardIndex(String docId) {
+      return getShardIndex(docId, (shardLookup != null) ? hash(docId) : 0);
+    }
+
+    int getShardIndex(String docId, int hash) {
+      if (shardLookup != null) {
+        int shardIndex = shardLookup.indexOf(hash);
+        if (shardIndex != -1)
+          return shardIndex;
+      }
+
+      Slice slice = docCollection.getRouter().getTargetSlice(docId, null, null, null, docCollection);
+      return shardIndexes.get(slice.getName());
+    }
+  }
+
+  /**
+   * Re-reads the state of the collection when it changes in ZooKeeper, which also sets the next watch.
+   */
+  class ClusterStateWatcher implements Watcher {
+    public void process(WatchedEvent event) {
+      if (event.getType() == Event.EventType.None)
+        return; // connection state changes don't fire the watch
+
+      try {
+        watchCollectionState();
+      } catch (Exception exc) {
+        log.error("Failed to refresh the shard layout of "+collection+" due to: "+exc, exc);
+      }
+    }
+  }
+
+  private transient volatile RoutingTable routingTable;
   private transient List<Integer> targetTasks;
   private transient CloudSolrClient cloudSolrClient;
-  private transient DocCollection docCollection;
-  private transient Map<String, Integer> shardIndexCache;
+  private transient ClusterStateWatcher watcher;
+  private transient TaskSelector taskSelector;
 
   protected Map stormConf;
   protected String collection;
-  protected Integer numShards;
-  protected UniformIntegerDistribution random;
-  protected int tasksPerShard;
+  protected boolean watchClusterState = true;
+  protected TaskSelector.Mode taskSelectionMode = TaskSelector.Mode.POWER_OF_TWO_CHOICES;
 
   public ShardGrouping(Map stormConf, String collection) {
     this.stormConf = stormConf;
@@ -41,22 +182,48 @@ public class ShardGrouping implements CustomStreamGrouping, Serializable {
     cloudSolrClient = client;
   }
 
+  public boolean isWatchClusterState() {
+    return watchClusterState;
+  }
+
+  /**
+   * Set to false to route using the shard layout from when the grouping was prepared until it's redeployed.
+   */
+  public void setWatchClusterState(boolean watchClusterState) {
+    this.watchClusterState = watchClusterState;
+  }
+
+  public TaskSelector.Mode getTaskSelectionMode() {
+    return taskSelectionMode;
+  }
+
+  public void setTaskSelectionMode(TaskSelector.Mode taskSelectionMode) {
+    this.taskSelectionMode = taskSelectionMode;
+  }
+
+  /**
+   * Returns the number of active shards in the collection.
+   */
   public int getNumShards() {
-    if (numShards == null)
-      numShards = new Integer(initShardInfo());
+    if (routingTable == null)
+      return initShardInfo();
 
-    return numShards.intValue();
+    return routingTable.numShards;
   }
 
   public void prepare(WorkerTopologyContext context, GlobalStreamId stream, List<Integer> targetTasks) {
     this.targetTasks = targetTasks;
-    int numTasks = targetTasks.size();
-    int numShards = initShardInfo(); // setup for doing shard to task mapping 
-    if (numTasks % numShards != 0)
-      throw new IllegalArgumentException("Number of tasks ("+numTasks+") should be a multiple of the number of shards ("+numShards+")!");
+    this.taskSelector = new TaskSelector(taskSelectionMode, targetTasks);
+    initShardInfo(); // setup for doing shard to task mapping
 
-    this.tasksPerShard = numTasks/numShards;
-    this.random = new UniformIntegerDistribution(0, tasksPerShard-1);
+    if (watchClusterState) {
+      watcher = new ClusterStateWatcher();
+      try {
+        watchCollectionState();
+      } catch (Exception exc) {
+        log.error("Failed to watch the state of "+collection+" in ZooKeeper; shard layout changes will be missed due to: "+exc, exc);
+      }
+    }
   }
 
   public List<Integer> chooseTasks(int taskId, List<Object> values) {
@@ -67,12 +234,7 @@ public class ShardGrouping implements CustomStreamGrouping, Serializable {
     if (docId == null)
       return Collections.singletonList(targetTasks.get(0));
 
-    Slice slice = docCollection.getRouter().getTargetSlice(docId, null, null, null, docCollection);
-
-    // map this doc into one of the tasks for that shard
-    int shardIndex = shardIndexCache.get(slice.getName());
-    int selectedTask = (tasksPerShard > 1) ? shardIndex + (random.sample() * tasksPerShard) : shardIndex;
-    return Collections.singletonList(targetTasks.get(selectedTask));
+    return Collections.singletonList(targetTasks.get(routingTable.chooseTask(docId, taskSelector)));
   }
 
   protected int initShardInfo() {
@@ -82,20 +244,60 @@ public class ShardGrouping implements CustomStreamGrouping, Serializable {
       cloudSolrClient.connect();
     }
 
-    this.docCollection = cloudSolrClient.getZkStateReader().getClusterState().getCollection(collection);
+    DocCollection docCollection = cloudSolrClient.getZkStateReader().getClusterState().getCollection(collection);
+    routingTable = new RoutingTable(docCollection, (targetTasks != null) ? targetTasks.size() : 0);
+    return routingTable.numShards;
+  }
+
+  /**
+   * Reads the state of the collection from ZooKeeper, leaving a watch to do so again when it changes, and
+   * swaps in a new routing table if the shard layout changed.
+   */
+  protected void watchCollectionState() throws Exception {
+    SolrZkClient zkClient = cloudSolrClient.getZkStateReader().getZkClient();
+    String path = ZkStateReader.getCollectionPath(collection);
+    if (!zkClient.exists(path, true))
+      path = ZkStateReader.CLUSTER_STATE; // collection created with the older, shared state format
 
-    // do basic checks once
-    DocRouter docRouter = docCollection.getRouter();
-    if (docRouter instanceof ImplicitDocRouter)
-      throw new IllegalStateException("Implicit document routing not supported by this Partitioner!");
+    Stat stat = new Stat();
+    byte[] data = zkClient.getData(path, watcher, stat, true);
+    DocCollection docCollection = (data != null) ?
+      ClusterState.load(stat.getVersion(), data, Collections.<String>emptySet(), path).getCollectionOrNull(collection) : null;
+    if (docCollection != null)
+      updateRoutingTable(docCollection);
+  }
 
-    Collection<Slice> shards = docCollection.getSlices();
-    if (shards == null || shards.size() == 0)
-      throw new IllegalStateException("Collection '" + collection + "' does not have any shards!");
+  /**
+   * Swaps in a routing table for the collection if its shard layout is different from the current one.
+   */
+  protected void updateRoutingTable(DocCollection docCollection) {
+    RoutingTable current = routingTable;
+    if (current != null && current.layout.equals(getLayout(docCollection)))
+      return;
 
-    shardIndexCache = new HashMap<String, Integer>(20);
-    int s = 0;
-    for (Slice next : shards) shardIndexCache.put(next.getName(), s++);
-    return shards.size();
+    RoutingTable next;
+    try {
+      next = new RoutingTable(docCollection, (targetTasks != null) ? targetTasks.size() : 0);
+    } catch (RuntimeException exc) {
+      log.error("Keeping the current shard layout of "+collection+" as the new layout can't be used due to: "+exc);
+      return;
+    }
+
+    routingTable = next;
+    log.info("Shard layout of "+collection+" changed to "+next.layout+(next.taskLookup != null ?
+      "; routing to "+next.numTasks+" tasks by hash range" : "; "+next.tasksPerShard+" task(s) per shard"));
+  }
+
+  /**
+   * Describes the active shards and their hash ranges, to detect when they change.
+   */
+  protected static String getLayout(DocCollection docCollection) {
+    StringBuilder sb = new StringBuilder();
+    for (Slice slice : docCollection.getActiveSlices()) {
+      if (sb.length() > 0)
+        sb.append(",");
+      sb.append(slice.getName()).append(":").append(slice.getRange());
+    }
+    return sb.toString();
   }
 }
@@ -2,32 +2,82 @@ package com.lucidworks.storm.solr;
 
 import static com.lucidworks.storm.spring.SpringBolt.ExecuteResult;
 
+import backtype.storm.Config;
 import backtype.storm.task.OutputCollector;
 import backtype.storm.tuple.Tuple;
 import com.codahale.metrics.Counter;
 import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.lucidworks.storm.io.DeadLetterQueue;
+import com.lucidworks.storm.spring.BatchAware;
+import com.lucidworks.storm.spring.BatchListener;
+import com.lucidworks.storm.spring.StormConfAware;
 import com.lucidworks.storm.spring.StreamingDataAction;
 import com.lucidworks.storm.spring.TickTupleAware;
+import com.lucidworks.storm.utils.GzipRequestCompressor;
 import com.ryantenney.metrics.annotation.Metric;
 import org.apache.log4j.Logger;
 import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.request.RequestWriter;
 import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * A simple Spring-managed POJO for sending messages processed by a Storm topology to SolrCloud.
  * Bean implementations do not need to be thread-safe but should be created in the prototype scope
  * to support multiple bolts running in the same JVM in the same Storm topology.
+ * <p>
+ * When running in a SpringBolt, the tuples in each buffer are tracked as a separate batch, so only the tuples
+ * whose docs were actually sent get acked (or failed) and buffers for other collections can keep filling.
+ * When asyncFlush is enabled, full buffers are sent to Solr by a small pool of sender threads,
+ * with at most maxInFlightBatches outstanding, so the bolt keeps filling the next buffer while
+ * waiting on Solr; the tuples in each batch are acked once Solr responds for that batch. Otherwise, when a tick
+ * finds buffers for several collections due, they are sent concurrently by up to maxConcurrentFlushes threads
+ * and the tick waits for all of them, so tick latency is that of the slowest collection rather than the sum.
+ * Likewise, if the updateRequestStrategy is an AsyncSolrUpdateRequestStrategy, failed batches are re-tried
+ * without blocking the bolt. If the updateRequestStrategy is a CircuitBreakingUpdateRequestStrategy, tuples
+ * for collections whose circuit is open are failed right away so they get replayed later.
+ * <p>
+ * If a deadLetterQueue is set, batches that fail after exhausting all re-tries, and docs for collections
+ * whose circuit is open, are written to the queue and their tuples acked; the queue re-drives them once
+ * the collection is accepting requests again.
+ * <p>
+ * If a spillBuffer is set, docs are written to a WriteAheadSpillBuffer on local disk instead of being buffered
+ * in memory, and their tuples are acked as soon as the docs are synced to disk; the spill buffer sends them to
+ * Solr in the background, so Solr latency doesn't hold up acking tuples.
  */
-public class SolrBoltAction implements StreamingDataAction, TickTupleAware, Closeable {
+public class SolrBoltAction implements StreamingDataAction, TickTupleAware, BatchAware, StormConfAware, Closeable {
 
   public static Logger log = Logger.getLogger(SolrBoltAction.class);
+
+  public static final String DEAD_LETTER_TARGET = "solr";
+
+  // Solr includes the ID of the doc that failed in errors like: ERROR: [doc=1] Error adding field ...
+  private static final Pattern DOC_ID_IN_ERROR = Pattern.compile("\\[doc=([^\\]]+)\\]");
   
   @Metric
   public Timer sendBatchToSolr;
@@ -38,15 +88,58 @@ public class SolrBoltAction implements StreamingDataAction, TickTupleAware, Clos
   @Metric
   public Counter tuplesReceived;
 
+  @Metric
+  public Counter tuplesShed;
+
+  @Metric
+  public Counter rejectedDocs;
+
+  @Metric
+  public Counter coalescedDocs;
+
   protected CloudSolrClient cloudSolrClient;
   protected SolrInputDocumentMapper solrInputDocumentMapper;
   protected int maxBufferSize = 100; // avoids sending 100's of requests per second to Solr in high-throughput envs
   protected long bufferTimeoutMs = 500L;
+  protected long maxBufferBytes = -1L; // flush before the estimated request size exceeds this; disabled by default
   protected SolrUpdateRequestStrategy updateRequestStrategy;
   protected DocumentAssignmentStrategy documentAssignmentStrategy;
+  protected BufferPolicy bufferPolicy;
+  protected boolean asyncFlush = false;
+  protected int maxInFlightBatches = 2;
+  protected int maxConcurrentFlushes = 4;
+  protected long maxIdleBufferMs = 300000L;
+  protected int coldMaxBufferSize = 1000;
+  protected long coldBufferTimeoutMs = 10000L;
+  protected RequestWriter requestWriter;
+  protected GzipRequestCompressor requestCompressor;
+  protected String idFieldName = "id";
+  protected boolean tolerant = false;
+  protected boolean coalesceUpdates = false;
+  protected int maxTolerantRequests = 20;
+  protected String tolerantUpdateChain;
+  protected DeadLetterQueue deadLetterQueue;
+  protected WriteAheadSpillBuffer spillBuffer;
 
   // used internally for buffering docs before sending to Solr
   private Map<String,DocBuffer> buffers = new HashMap<String,DocBuffer>();
+  private Set<String> coldBuffers = new HashSet<String>();
+
+  // set when running in a SpringBolt to track tuples per batch
+  protected BatchListener batchListener;
+
+  // docs shed while the circuit for their collection is open, written to the deadLetterQueue a batch at a time
+  private Map<String,DocBuffer> shedBuffers = new HashMap<String,DocBuffer>();
+
+  // tracks the tuples for docs spilled since the last sync
+  private Long spillBatchId = DocBuffer.nextBatchId();
+
+  // used internally for sending batches asynchronously
+  private ExecutorService senderPool;
+  private Semaphore inFlightBatches;
+
+  // used internally for flushing buffers for several collections at once on a tick
+  private ExecutorService flushPool;
 
   @Autowired
   public SolrBoltAction(CloudSolrClient cloudSolrClient) {
@@ -54,7 +147,57 @@ public class SolrBoltAction implements StreamingDataAction, TickTupleAware, Clos
     this.cloudSolrClient.connect();
   }
 
+  /**
+   * Caps the cold buffer timeout so that tuples buffered for cold collections are acked before Storm times
+   * them out; replayed tuples would only be buffered again, as their docs are still late. Buffers are flushed
+   * on ticks, so the cap leaves one tick interval to spare.
+   */
+  public void prepare(Map stormConf) {
+    long messageTimeoutMs = getConfMillis(stormConf, Config.TOPOLOGY_MESSAGE_TIMEOUT_SECS);
+    if (messageTimeoutMs <= 0)
+      return;
+
+    long tickMs = Math.max(0L, getConfMillis(stormConf, Config.TOPOLOGY_TICK_TUPLE_FREQ_SECS));
+    long maxColdBufferTimeoutMs = Math.max(bufferTimeoutMs, messageTimeoutMs - tickMs);
+    if (coldBufferTimeoutMs > maxColdBufferTimeoutMs) {
+      log.warn("Reducing coldBufferTimeoutMs from "+coldBufferTimeoutMs+" to "+maxColdBufferTimeoutMs+
+        " so cold batches are acked within the "+messageTimeoutMs+"ms message timeout");
+      coldBufferTimeoutMs = maxColdBufferTimeoutMs;
+    }
+  }
+
+  protected static long getConfMillis(Map stormConf, String secsKey) {
+    Object secs = (stormConf != null) ? stormConf.get(secsKey) : null;
+    if (secs instanceof Number)
+      return ((Number)secs).longValue() * 1000L;
+    if (secs instanceof String)
+      return Long.parseLong(((String)secs).trim()) * 1000L;
+    return -1L;
+  }
+
   public ExecuteResult onTick() {
+    // create collections that will be needed soon in the background
+    if (documentAssignmentStrategy instanceof ProvisioningAssignmentStrategy)
+      ((ProvisioningAssignmentStrategy)documentAssignmentStrategy).provisionCollections(cloudSolrClient);
+
+    if (spillBuffer != null)
+      return spillBuffer.hasUnsyncedDocs() ? syncSpillBuffer() : ExecuteResult.IGNORED;
+
+    evictIdleBuffers();
+
+    if (batchListener != null) {
+      flushShedDocs(false);
+
+      // each batch is acked independently, so only send the buffers that are due
+      List<DocBuffer> due = new ArrayList<DocBuffer>();
+      for (DocBuffer b : buffers.values()) {
+        if (b.shouldFlushBuffer())
+          due.add(b);
+      }
+      flushBuffers(due);
+      return ExecuteResult.IGNORED;
+    }
+
     boolean anyNeedsFlush = false;
     for (DocBuffer b : buffers.values()) {
       // this catches the case where we have buffered docs, but don't see any more docs flowing in for a while
@@ -65,19 +208,85 @@ public class SolrBoltAction implements StreamingDataAction, TickTupleAware, Clos
     }
 
     if (anyNeedsFlush) {
-      // have to flush them all so we can ack correctly
+      // not tracking batches, so have to flush them all so we can ack correctly
+      List<DocBuffer> nonEmpty = new ArrayList<DocBuffer>();
       for (DocBuffer b : buffers.values()) {
-        flushBufferedDocs(b);
+        if (!b.buffer.isEmpty())
+          nonEmpty.add(b);
       }
+      flushBuffers(nonEmpty);
       return ExecuteResult.ACK;
     }
 
-    // todo: remove old DocBuffer objects from the map
-    // todo: could pro-actively create collections that will be needed soon here
-
     return ExecuteResult.IGNORED;
   }
 
+  /**
+   * Removes buffers that have been empty for maxIdleBufferMs, such as for collections of past time frames.
+   */
+  protected void evictIdleBuffers() {
+    if (maxIdleBufferMs < 0)
+      return;
+
+    Iterator<DocBuffer> iter = buffers.values().iterator();
+    while (iter.hasNext()) {
+      DocBuffer b = iter.next();
+      if (b.isIdle(maxIdleBufferMs)) {
+        iter.remove();
+        coldBuffers.remove(b.collection);
+        if (log.isDebugEnabled())
+          log.debug("Removed idle buffer for "+b.collection);
+      }
+    }
+  }
+
+  /**
+   * Flushes the buffers, sending several at once on the flushPool if more than one is due, and waits for
+   * all of them to be sent; if any fails, the first error is thrown after the rest have been sent.
+   */
+  protected void flushBuffers(List<DocBuffer> due) {
+    if (due.size() <= 1 || maxConcurrentFlushes <= 1 || useAsyncFlush()) {
+      // async flushes hand off to the sender pool right away
+      for (DocBuffer b : due)
+        flushBufferedDocs(b);
+      return;
+    }
+
+    synchronized (this) {
+      if (flushPool == null) {
+        flushPool = Executors.newFixedThreadPool(maxConcurrentFlushes,
+          new ThreadFactoryBuilder().setDaemon(true).setNameFormat("solr-bolt-flush-%d").build());
+      }
+    }
+
+    List<Future<ExecuteResult>> flushes = new ArrayList<Future<ExecuteResult>>(due.size());
+    for (final DocBuffer b : due) {
+      flushes.add(flushPool.submit(new Callable<ExecuteResult>() {
+        public ExecuteResult call() throws Exception {
+          return flushBufferedDocs(b);
+        }
+      }));
+    }
+
+    RuntimeException error = null;
+    for (Future<ExecuteResult> flush : flushes) {
+      try {
+        flush.get();
+      } catch (ExecutionException ee) {
+        Throwable cause = ee.getCause();
+        if (error == null)
+          error = (cause instanceof RuntimeException) ? (RuntimeException)cause : new RuntimeException(cause);
+      } catch (InterruptedException ie) {
+        Thread.interrupted();
+        if (error == null)
+          error = new RuntimeException(ie);
+      }
+    }
+
+    if (error != null)
+      throw error;
+  }
+
   public ExecuteResult execute(Tuple input, OutputCollector outputCollector) {
 
     if (tuplesReceived != null) {
@@ -123,7 +332,176 @@ public class SolrBoltAction implements StreamingDataAction, TickTupleAware, Clos
       documentAssignmentStrategy = new DefaultDocumentAssignmentStrategy();
     }
 
-    return bufferDoc(documentAssignmentStrategy.getCollectionForDoc(cloudSolrClient, doc), doc);
+    String collection = documentAssignmentStrategy.getCollectionForDoc(cloudSolrClient, doc);
+    if (spillBuffer != null)
+      return spillDoc(collection, doc);
+
+    if (isCircuitOpen(collection, null))
+      return shedDoc(collection, null, doc);
+
+    return bufferDoc(collection, doc);
+  }
+
+  /**
+   * Returns true if the updateRequestStrategy is currently rejecting requests to the collection,
+   * or to the shard if not null.
+   */
+  protected boolean isCircuitOpen(String collection, String shard) {
+    return (updateRequestStrategy instanceof CircuitBreakingUpdateRequestStrategy) &&
+      ((CircuitBreakingUpdateRequestStrategy)updateRequestStrategy).isCircuitOpen(collection, shard);
+  }
+
+  /**
+   * Fails the tuple for a doc that can't be sent right away, so it gets replayed later instead of
+   * waiting in a buffer for a request that will fail anyway; if there is a deadLetterQueue, the doc
+   * is written to the queue instead. When batches are tracked, shed docs are collected into batches of
+   * up to maxBufferSize docs per collection, so the queue gets one record per batch rather than per doc.
+   */
+  protected ExecuteResult shedDoc(String collection, String shard, SolrInputDocument doc) {
+    if (tuplesShed != null)
+      tuplesShed.inc();
+
+    String circuit = collection + ((shard != null) ? "/"+shard : "");
+    if (deadLetterQueue != null && batchListener != null) {
+      DocBuffer shed = shedBuffers.get(collection);
+      if (shed == null) {
+        shed = new DocBuffer(collection, maxBufferSize, bufferTimeoutMs, maxBufferBytes);
+        shedBuffers.put(collection, shed);
+      }
+      shed.add(doc, DocSizeEstimator.estimate(doc));
+      batchListener.tupleBuffered(shed.getBatchId(), getDocKey(doc));
+      if (shed.shouldFlushBuffer())
+        deadLetterShedDocs(shed);
+      return ExecuteResult.BUFFERED;
+    }
+
+    if (deadLetterQueue != null) {
+      List<SolrInputDocument> docs = new ArrayList<SolrInputDocument>(1);
+      docs.add(doc);
+      if (deadLetter(collection, docs, new CircuitOpenException("Circuit for "+circuit+" is open")))
+        return ExecuteResult.ACK;
+    }
+
+    if (log.isDebugEnabled())
+      log.debug("Failing tuple for doc "+getDocKey(doc)+" because the circuit for "+circuit+" is open");
+
+    return ExecuteResult.FAIL;
+  }
+
+  /**
+   * Writes a batch of shed docs to the deadLetterQueue, acking their tuples if it was written or failing
+   * them for replay if not.
+   */
+  protected void deadLetterShedDocs(DocBuffer shed) {
+    CircuitOpenException error = new CircuitOpenException("Circuit for "+shed.collection+" is open");
+    batchListener.batchCompleted(shed.getBatchId(), deadLetter(shed.collection, shed.buffer, error) ? null : error);
+    shed.reset();
+  }
+
+  /**
+   * Writes the shed docs that are due, or all of them if force is true, to the deadLetterQueue.
+   */
+  protected void flushShedDocs(boolean force) {
+    for (DocBuffer shed : shedBuffers.values()) {
+      if (force ? !shed.buffer.isEmpty() : shed.shouldFlushBuffer())
+        deadLetterShedDocs(shed);
+    }
+  }
+
+  /**
+   * Appends the doc to the spillBuffer; the tuple is acked once the doc has been synced to disk.
+   */
+  protected ExecuteResult spillDoc(String collection, SolrInputDocument doc) throws IOException {
+    if (!spillBuffer.isOpen()) {
+      spillBuffer.open(new WriteAheadSpillBuffer.Sender() {
+        public boolean send(String collection, List<SolrInputDocument> docs) throws Exception {
+          if (isCircuitOpen(collection, null))
+            return false;
+
+          sendOffline(collection, docs);
+          return true;
+        }
+      });
+    }
+
+    spillBuffer.append(collection, doc);
+    if (batchListener != null)
+      batchListener.tupleBuffered(spillBatchId, getDocKey(doc));
+
+    return spillBuffer.isSyncDue() ? syncSpillBuffer() : ExecuteResult.BUFFERED;
+  }
+
+  /**
+   * Syncs the docs spilled since the last sync to disk and acks their tuples.
+   */
+  protected ExecuteResult syncSpillBuffer() {
+    Throwable error = null;
+    try {
+      spillBuffer.sync();
+    } catch (RuntimeException exc) {
+      log.error("Failed to sync spilled docs to disk due to: "+exc, exc);
+      if (batchListener == null)
+        throw exc;
+      error = exc;
+    }
+
+    if (batchListener == null)
+      return ExecuteResult.ACK;
+
+    batchListener.batchCompleted(spillBatchId, error);
+    spillBatchId = DocBuffer.nextBatchId();
+    return ExecuteResult.IGNORED;
+  }
+
+  /**
+   * Writes docs that could not be sent to the deadLetterQueue, if there is one; returns true if the docs
+   * were written so their tuples can be acked.
+   */
+  protected boolean deadLetter(String collection, List<SolrInputDocument> docs, Throwable error) {
+    if (deadLetterQueue == null || docs.isEmpty())
+      return false;
+
+    try {
+      deadLetterQueue.append(DEAD_LETTER_TARGET, docs.size(), DocBatchCodec.encode(collection, docs));
+    } catch (Exception exc) {
+      log.error("Failed to write "+docs.size()+" docs for "+collection+" to the dead letter queue due to: "+exc, exc);
+      return false;
+    }
+
+    log.warn("Wrote "+docs.size()+" docs for "+collection+" to the dead letter queue after: "+error);
+    return true;
+  }
+
+  /**
+   * Re-sends batches from the deadLetterQueue once the circuit for their collection is closed.
+   */
+  protected boolean redrive(byte[] payload) throws IOException {
+    List<SolrInputDocument> docs = new ArrayList<SolrInputDocument>();
+    String collection = DocBatchCodec.decode(payload, docs);
+    if (isCircuitOpen(collection, null))
+      return false;
+
+    sendOffline(collection, docs);
+    return true;
+  }
+
+  /**
+   * Sends docs whose tuples were already acked, such as from the deadLetterQueue; docs that Solr rejects
+   * as bad are dropped, as they'd never get through.
+   */
+  protected void sendOffline(String collection, List<SolrInputDocument> docs) {
+    DocBuffer batch = new DocBuffer(collection, docs.size(), bufferTimeoutMs);
+    batch.buffer.addAll(docs);
+    Map<Object,Throwable> rejected = sendBatchTolerant(batch);
+    if (!rejected.isEmpty()) {
+      log.error("Dropped "+rejected.size()+" of "+docs.size()+" docs sent to "+collection+
+        " because Solr rejected them: "+rejected);
+      if (rejectedDocs != null)
+        rejectedDocs.inc(rejected.size());
+    }
+
+    if (indexedCounter != null)
+      indexedCounter.inc(docs.size() - rejected.size());
   }
 
   public int getMaxBufferSize() {
@@ -142,6 +520,218 @@ public class SolrBoltAction implements StreamingDataAction, TickTupleAware, Clos
     this.bufferTimeoutMs = bufferTimeoutMs;
   }
 
+  public long getMaxBufferBytes() {
+    return maxBufferBytes;
+  }
+
+  public void setMaxBufferBytes(long maxBufferBytes) {
+    this.maxBufferBytes = maxBufferBytes;
+  }
+
+  public boolean isAsyncFlush() {
+    return asyncFlush;
+  }
+
+  public void setAsyncFlush(boolean asyncFlush) {
+    this.asyncFlush = asyncFlush;
+  }
+
+  public int getMaxInFlightBatches() {
+    return maxInFlightBatches;
+  }
+
+  public void setMaxInFlightBatches(int maxInFlightBatches) {
+    this.maxInFlightBatches = maxInFlightBatches;
+  }
+
+  public int getMaxConcurrentFlushes() {
+    return maxConcurrentFlushes;
+  }
+
+  /**
+   * Maximum number of buffers for different collections sent at once when a tick finds several due; 1 to
+   * send them one after another.
+   */
+  public void setMaxConcurrentFlushes(int maxConcurrentFlushes) {
+    this.maxConcurrentFlushes = maxConcurrentFlushes;
+  }
+
+  public long getMaxIdleBufferMs() {
+    return maxIdleBufferMs;
+  }
+
+  /**
+   * Buffers that stay empty this long are removed on the next tick; -1 to keep them.
+   */
+  public void setMaxIdleBufferMs(long maxIdleBufferMs) {
+    this.maxIdleBufferMs = maxIdleBufferMs;
+  }
+
+  public int getColdMaxBufferSize() {
+    return coldMaxBufferSize;
+  }
+
+  /**
+   * Number of docs that triggers a flush for collections the ColdCollectionAssignmentStrategy reports as cold.
+   */
+  public void setColdMaxBufferSize(int coldMaxBufferSize) {
+    this.coldMaxBufferSize = coldMaxBufferSize;
+  }
+
+  public long getColdBufferTimeoutMs() {
+    return coldBufferTimeoutMs;
+  }
+
+  /**
+   * Buffer timeout for cold collections; only holds when batches are tracked by a SpringBolt, otherwise all
+   * buffers are flushed whenever any one of them is due so their tuples can be acked. Capped in prepare to
+   * the topology's message timeout less one tick interval.
+   */
+  public void setColdBufferTimeoutMs(long coldBufferTimeoutMs) {
+    this.coldBufferTimeoutMs = coldBufferTimeoutMs;
+  }
+
+  public void setBatchListener(BatchListener batchListener) {
+    this.batchListener = batchListener;
+  }
+
+  /**
+   * Batches can only be tracked and sent asynchronously if there is a listener to ack the tuples when
+   * they complete, such as when running in a SpringBolt; otherwise, fall back to sending synchronously.
+   */
+  protected boolean useAsyncFlush() {
+    return asyncFlush && batchListener != null;
+  }
+
+  public BufferPolicy getBufferPolicy() {
+    return bufferPolicy;
+  }
+
+  /**
+   * Plug-in a policy, such as the AdaptiveBufferPolicy, to adjust the number of docs buffered per collection
+   * instead of always flushing at maxBufferSize.
+   */
+  public void setBufferPolicy(BufferPolicy bufferPolicy) {
+    this.bufferPolicy = bufferPolicy;
+  }
+
+  public String getIdFieldName() {
+    return idFieldName;
+  }
+
+  public void setIdFieldName(String idFieldName) {
+    this.idFieldName = idFieldName;
+  }
+
+  public boolean isCoalesceUpdates() {
+    return coalesceUpdates;
+  }
+
+  /**
+   * Keep only one doc per ID in each buffer, so Solr gets one write per doc per batch; a newer full doc
+   * replaces the buffered one and atomic updates are merged where possible, see UpdateCoalescer.
+   */
+  public void setCoalesceUpdates(boolean coalesceUpdates) {
+    this.coalesceUpdates = coalesceUpdates;
+  }
+
+  public boolean isTolerant() {
+    return tolerant;
+  }
+
+  /**
+   * When running in a SpringBolt, only fail the tuples for docs rejected by Solr instead of the whole batch.
+   * Tolerant batches are sent using the synchronous sendUpdateRequest of the updateRequestStrategy, so
+   * use asyncFlush to avoid blocking the bolt while waiting on Solr.
+   */
+  public void setTolerant(boolean tolerant) {
+    this.tolerant = tolerant;
+  }
+
+  public int getMaxTolerantRequests() {
+    return maxTolerantRequests;
+  }
+
+  public void setMaxTolerantRequests(int maxTolerantRequests) {
+    this.maxTolerantRequests = maxTolerantRequests;
+  }
+
+  public String getTolerantUpdateChain() {
+    return tolerantUpdateChain;
+  }
+
+  /**
+   * Name of an update chain that includes Solr's TolerantUpdateProcessorFactory (Solr 6.1+), if available,
+   * so Solr reports all rejected docs in one response instead of failing at the first bad doc.
+   */
+  public void setTolerantUpdateChain(String tolerantUpdateChain) {
+    this.tolerantUpdateChain = tolerantUpdateChain;
+  }
+
+  public DeadLetterQueue getDeadLetterQueue() {
+    return deadLetterQueue;
+  }
+
+  /**
+   * Writes batches that fail after all re-tries to the queue instead of failing their tuples; the queue
+   * should be a singleton shared by all bolts in the worker. A disabled queue is ignored.
+   */
+  public void setDeadLetterQueue(DeadLetterQueue deadLetterQueue) {
+    this.deadLetterQueue = (deadLetterQueue != null && deadLetterQueue.isEnabled()) ? deadLetterQueue : null;
+    if (this.deadLetterQueue != null) {
+      this.deadLetterQueue.setRedriveHandler(DEAD_LETTER_TARGET, new DeadLetterQueue.RedriveHandler() {
+        public boolean redrive(byte[] payload) throws Exception {
+          return SolrBoltAction.this.redrive(payload);
+        }
+      });
+    }
+  }
+
+  public WriteAheadSpillBuffer getSpillBuffer() {
+    return spillBuffer;
+  }
+
+  /**
+   * Enables the durable mode, in which tuples are acked once their docs are on local disk rather than once
+   * Solr has indexed them; the spill buffer should be in the prototype scope so each bolt has its own.
+   * A disabled spill buffer is ignored.
+   */
+  public void setSpillBuffer(WriteAheadSpillBuffer spillBuffer) {
+    this.spillBuffer = (spillBuffer != null && spillBuffer.isEnabled()) ? spillBuffer : null;
+  }
+
+  public RequestWriter getRequestWriter() {
+    return requestWriter;
+  }
+
+  /**
+   * Sets the writer used to serialize update requests, such as the ReusableBufferBinaryRequestWriter;
+   * note that the writer is installed on the CloudSolrClient so applies to all requests it sends.
+   */
+  public void setRequestWriter(RequestWriter requestWriter) {
+    if (requestWriter instanceof ReusableBufferBinaryRequestWriter &&
+        !((ReusableBufferBinaryRequestWriter)requestWriter).isEnabled())
+      requestWriter = null;
+
+    this.requestWriter = requestWriter;
+    if (requestWriter != null)
+      cloudSolrClient.setRequestWriter(requestWriter);
+  }
+
+  public GzipRequestCompressor getRequestCompressor() {
+    return requestCompressor;
+  }
+
+  /**
+   * Compresses update requests sent to Solr; like the requestWriter, this applies to all requests
+   * sent by the HttpClient used by the CloudSolrClient.
+   */
+  public void setRequestCompressor(GzipRequestCompressor requestCompressor) {
+    this.requestCompressor = requestCompressor;
+    if (requestCompressor != null)
+      requestCompressor.install(cloudSolrClient.getLbClient().getHttpClient());
+  }
+
   public SolrInputDocumentMapper getSolrInputDocumentMapper() {
     return solrInputDocumentMapper;
   }
@@ -174,14 +764,57 @@ public class SolrBoltAction implements StreamingDataAction, TickTupleAware, Clos
 
   protected ExecuteResult bufferDoc(String collection, SolrInputDocument doc) {
     DocBuffer docBuffer = buffers.get(collection);
+    if (docBuffer != null && docBuffer.buffer.isEmpty() && isColdCollection(collection) != coldBuffers.contains(collection))
+      docBuffer = null; // the collection went cold since its buffer was created
+
     if (docBuffer == null) {
-      docBuffer = new DocBuffer(collection, maxBufferSize, bufferTimeoutMs);
+      docBuffer = createDocBuffer(collection);
       buffers.put(collection, docBuffer);
+    } else if (bufferPolicy != null && docBuffer.buffer.isEmpty() && !coldBuffers.contains(collection)) {
+      // pick up any adjustments made from feedback about previous batches
+      docBuffer.setMaxBufferSize(bufferPolicy.getTargetBufferSize(collection));
     }
-    docBuffer.add(doc);
+
+    long docBytes = DocSizeEstimator.estimate(doc);
+    if (batchListener != null && docBuffer.wouldExceedMaxBytes(docBytes)) {
+      // send what we have first so this doc doesn't push the request over the limit; only safe when
+      // tracking batches, otherwise acking the flushed batch would also ack the tuple for this doc
+      flushBufferedDocs(docBuffer);
+    }
+    if (!docBuffer.add(doc, docBytes) && coalescedDocs != null)
+      coalescedDocs.inc();
+
+    if (batchListener != null)
+      batchListener.tupleBuffered(docBuffer.getBatchId(), getDocKey(doc));
+
     return docBuffer.shouldFlushBuffer() ? flushBufferedDocs(docBuffer) : ExecuteResult.BUFFERED;
   }
 
+  /**
+   * Creates the buffer for a collection; buffers for cold collections, which only get late docs, hold
+   * up to coldMaxBufferSize docs for coldBufferTimeoutMs so the collection gets a few large batches.
+   */
+  protected DocBuffer createDocBuffer(String collection) {
+    DocBuffer docBuffer;
+    if (isColdCollection(collection)) {
+      docBuffer = new DocBuffer(collection, coldMaxBufferSize, coldBufferTimeoutMs, maxBufferBytes);
+      coldBuffers.add(collection);
+    } else {
+      int bufferSize = (bufferPolicy != null) ? bufferPolicy.getTargetBufferSize(collection) : maxBufferSize;
+      docBuffer = new DocBuffer(collection, bufferSize, bufferTimeoutMs, maxBufferBytes);
+      coldBuffers.remove(collection);
+    }
+
+    if (coalesceUpdates)
+      docBuffer.setCoalesceIdField(idFieldName);
+    return docBuffer;
+  }
+
+  protected boolean isColdCollection(String collection) {
+    return (documentAssignmentStrategy instanceof ColdCollectionAssignmentStrategy) &&
+      ((ColdCollectionAssignmentStrategy)documentAssignmentStrategy).isColdCollection(collection);
+  }
+
   protected ExecuteResult flushBufferedDocs(DocBuffer b) {
     int numDocsInBatch = b.buffer.size();
     if (numDocsInBatch == 0) {
@@ -189,33 +822,365 @@ public class SolrBoltAction implements StreamingDataAction, TickTupleAware, Clos
       return ExecuteResult.ACK;
     }
 
+    if (useAsyncFlush()) {
+      sendBatchAsync(b.detach());
+      return ExecuteResult.BUFFERED;
+    }
+
+    if (batchListener != null && !tolerant && updateRequestStrategy instanceof AsyncSolrUpdateRequestStrategy) {
+      // re-tries are scheduled by the strategy, so don't wait for them here
+      sendBatchWithAsyncRetry(b.detach());
+      return ExecuteResult.BUFFERED;
+    }
+
+    if (batchListener != null) {
+      // only the tuples in this batch get acked or failed
+      Long batchId = b.getBatchId();
+      Map<Object,Throwable> rejected = null;
+      Throwable error = null;
+      try {
+        rejected = sendTrackedBatch(b);
+      } catch (Exception exc) {
+        log.error("Failed to send batch of "+numDocsInBatch+" docs to "+b.collection+" due to: "+exc, exc);
+        error = deadLetter(b.collection, b.buffer, exc) ? null : exc;
+      } finally {
+        b.reset();
+      }
+      completeBatch(batchId, rejected, error);
+      return (error == null) ? ExecuteResult.ACK : ExecuteResult.BUFFERED;
+    }
+
+    try {
+      sendBatch(b);
+    } catch (RuntimeException exc) {
+      if (!deadLetter(b.collection, b.buffer, exc))
+        throw exc;
+    } finally {
+      b.reset();
+    }
+
+    return ExecuteResult.ACK;
+  }
+
+  protected void sendBatch(DocBuffer b) {
     Timer.Context timer = (sendBatchToSolr != null) ? sendBatchToSolr.time() : null;
+    long startNanos = System.nanoTime();
+    boolean success = false;
     try {
       sendBatchToSolr(b);
+      success = true;
+    } finally {
+      batchSent(b, timer, startNanos, success);
+    }
+  }
+
+  /**
+   * Sends a batch whose tuples are tracked by the batch listener; in tolerant mode, returns the errors
+   * for docs that Solr rejected, keyed by doc ID, while the rest of the batch was indexed.
+   */
+  protected Map<Object,Throwable> sendTrackedBatch(DocBuffer b) {
+    if (!tolerant) {
+      sendBatch(b);
+      return null;
+    }
+
+    Timer.Context timer = (sendBatchToSolr != null) ? sendBatchToSolr.time() : null;
+    long startNanos = System.nanoTime();
+    boolean success = false;
+    Map<Object,Throwable> rejected = null;
+    try {
+      rejected = sendBatchTolerant(b);
+      success = true;
     } finally {
-      if (timer != null)
-        timer.stop();
+      batchSent(b, timer, startNanos, success);
+    }
 
+    if (!rejected.isEmpty()) {
+      log.warn("Solr rejected "+rejected.size()+" of "+b.buffer.size()+" docs sent to "+b.collection+
+        ": "+rejected.keySet());
+      if (rejectedDocs != null)
+        rejectedDocs.inc(rejected.size());
       if (indexedCounter != null)
-        indexedCounter.inc(numDocsInBatch);
+        indexedCounter.dec(rejected.size());
+    }
+    return rejected;
+  }
 
-      b.reset();
+  /**
+   * Sends the docs in the batch, leaving out docs that Solr rejects with a bad request error. Solr 5 fails
+   * the whole request at the first bad doc, so the bad doc is identified from the [doc=ID] in the error
+   * message and the rest of the docs are re-sent; if the error doesn't identify the doc, the docs are
+   * split in half and each half is re-sent until the bad docs are found. Non-idempotent atomic updates
+   * are never re-sent, since the failed request may have applied them (see getResendableDocs). Per-doc errors reported in the
+   * response header, such as by Solr's TolerantUpdateProcessor, are collected as well. Fails the whole
+   * batch for any other error or after maxTolerantRequests extra requests.
+   */
+  protected Map<Object,Throwable> sendBatchTolerant(DocBuffer b) {
+    Map<Object,Throwable> rejected = new LinkedHashMap<Object,Throwable>();
+    LinkedList<List<SolrInputDocument>> pending = new LinkedList<List<SolrInputDocument>>();
+    pending.add(b.buffer);
+    int extraRequests = 0;
+    while (!pending.isEmpty()) {
+      List<SolrInputDocument> docs = pending.removeFirst();
+      if (docs.isEmpty())
+        continue;
+
+      UpdateRequest req = createUpdateRequest(b.collection);
+      if (tolerantUpdateChain != null) {
+        req.setParam("update.chain", tolerantUpdateChain);
+        req.setParam("maxErrors", "-1");
+      }
+      req.add(docs);
+
+      try {
+        addReportedErrors(updateRequestStrategy.sendUpdateRequest(cloudSolrClient, b.collection, req), rejected);
+      } catch (RuntimeException exc) {
+        SolrException docError = getDocError(exc);
+        if (docError == null || ++extraRequests > maxTolerantRequests)
+          throw exc;
+
+        if (docs.size() == 1) {
+          rejected.put(getDocKey(docs.get(0)), docError);
+          continue;
+        }
+
+        int badDoc = indexOfDoc(docs, parseDocId(docError.getMessage()));
+        if (badDoc != -1) {
+          rejected.put(getDocKey(docs.get(badDoc)), docError);
+          List<SolrInputDocument> rest = new ArrayList<SolrInputDocument>(docs);
+          rest.remove(badDoc);
+          pending.addFirst(getResendableDocs(rest, docError, rejected));
+        } else {
+          List<SolrInputDocument> rest = getResendableDocs(docs, docError, rejected);
+          int mid = rest.size() / 2;
+          pending.addFirst(rest.subList(mid, rest.size()));
+          pending.addFirst(rest.subList(0, mid));
+        }
+      }
     }
+    return rejected;
+  }
 
-    return ExecuteResult.ACK;
+  /**
+   * Returns the docs that are safe to re-send after a request failed due to a bad doc. Solr may have applied
+   * some of the docs before failing (the docs ahead of the bad doc, or the docs for another shard), so atomic
+   * updates that aren't idempotent are reported as rejected instead of risking applying them twice.
+   */
+  protected List<SolrInputDocument> getResendableDocs(List<SolrInputDocument> docs, SolrException docError, Map<Object,Throwable> rejected) {
+    List<SolrInputDocument> resendable = new ArrayList<SolrInputDocument>(docs.size());
+    for (SolrInputDocument doc : docs) {
+      if (UpdateCoalescer.isIdempotent(doc)) {
+        resendable.add(doc);
+      } else {
+        rejected.put(getDocKey(doc), new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+          "Not re-sending atomic update "+getDocKey(doc)+" because the failed request may have applied it", docError));
+      }
+    }
+    return resendable;
+  }
+
+  /**
+   * Returns the bad request error if the exception is due to bad docs rather than Solr being unavailable.
+   */
+  protected SolrException getDocError(Throwable exc) {
+    if (exc instanceof CloudSolrClient.RouteException) {
+      // only a doc error if every shard that failed rejected the request
+      NamedList<Throwable> errors = ((CloudSolrClient.RouteException)exc).getThrowables();
+      SolrException docError = null;
+      for (int e=0; e < errors.size(); e++) {
+        docError = getDocError(errors.getVal(e));
+        if (docError == null)
+          return null;
+      }
+      return docError;
+    }
+
+    for (Throwable t = exc; t != null; t = t.getCause()) {
+      if (t instanceof SolrException && ((SolrException)t).code() == SolrException.ErrorCode.BAD_REQUEST.code)
+        return (SolrException)t;
+      if (t.getCause() == t)
+        break;
+    }
+    return null;
+  }
+
+  protected void addReportedErrors(NamedList<Object> resp, Map<Object,Throwable> rejected) {
+    Object header = (resp != null) ? resp.get("responseHeader") : null;
+    Object errors = (header instanceof NamedList) ? ((NamedList)header).get("errors") : null;
+    if (!(errors instanceof List))
+      return;
+
+    for (Object error : (List)errors) {
+      if (error instanceof NamedList) {
+        NamedList err = (NamedList)error;
+        Object id = err.get("id");
+        if (id != null)
+          rejected.put(String.valueOf(id), new SolrException(SolrException.ErrorCode.BAD_REQUEST, String.valueOf(err.get("message"))));
+      }
+    }
+  }
+
+  protected String parseDocId(String msg) {
+    if (msg == null)
+      return null;
+
+    Matcher matcher = DOC_ID_IN_ERROR.matcher(msg);
+    return matcher.find() ? matcher.group(1) : null;
+  }
+
+  protected int indexOfDoc(List<SolrInputDocument> docs, String docId) {
+    if (docId != null) {
+      for (int d=0; d < docs.size(); d++) {
+        if (docId.equals(getDocKey(docs.get(d))))
+          return d;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Identifies the doc, and the tuple it came from, within a batch.
+   */
+  protected String getDocKey(SolrInputDocument doc) {
+    Object id = doc.getFieldValue(idFieldName);
+    return (id != null) ? String.valueOf(id) : null;
+  }
+
+  /**
+   * Notifies the batch listener that a batch it is tracking has completed.
+   */
+  protected void completeBatch(Long batchId, Map<Object,Throwable> rejected, Throwable error) {
+    if (error == null && rejected != null && !rejected.isEmpty()) {
+      batchListener.batchPartiallyFailed(batchId, rejected);
+    } else {
+      batchListener.batchCompleted(batchId, error);
+    }
+  }
+
+  /**
+   * Updates metrics and the buffer policy after a batch has been sent, successfully or not.
+   */
+  protected void batchSent(DocBuffer b, Timer.Context timer, long startNanos, boolean success) {
+    long elapsedNanos = (timer != null) ? timer.stop() : System.nanoTime() - startNanos;
+
+    if (indexedCounter != null)
+      indexedCounter.inc(b.buffer.size());
+
+    if (bufferPolicy != null)
+      bufferPolicy.onBatchSent(b.collection, b.buffer.size(), b.getEstimatedBytes(), elapsedNanos, success);
+  }
+
+  /**
+   * Sends the batch using an AsyncSolrUpdateRequestStrategy, which notifies the batch listener when
+   * the request completes, possibly after being re-tried on another thread.
+   */
+  protected void sendBatchWithAsyncRetry(final DocBuffer batch) {
+    final Long batchId = batch.getBatchId();
+    final Timer.Context timer = (sendBatchToSolr != null) ? sendBatchToSolr.time() : null;
+    final long startNanos = System.nanoTime();
+
+    if (log.isDebugEnabled())
+      log.debug("Sending buffer of " + batch.buffer.size() + " to collection " + batch.collection);
+
+    AsyncSolrUpdateRequestStrategy strategy = (AsyncSolrUpdateRequestStrategy)updateRequestStrategy;
+    try {
+      strategy.sendUpdateRequestAsync(cloudSolrClient, batch.collection, createBatchRequest(batch),
+        new AsyncSolrUpdateRequestStrategy.Callback() {
+          public void onSuccess(NamedList<Object> resp) {
+            batchSent(batch, timer, startNanos, true);
+            batchListener.batchCompleted(batchId, null);
+          }
+
+          public void onFailure(Exception exc) {
+            log.error("Failed to send batch of "+batch.buffer.size()+" docs to "+batch.collection+" due to: "+exc);
+            batchSent(batch, timer, startNanos, false);
+            batchListener.batchCompleted(batchId, deadLetter(batch.collection, batch.buffer, exc) ? null : exc);
+          }
+        });
+    } catch (RuntimeException exc) {
+      log.error("Failed to send batch of "+batch.buffer.size()+" docs to "+batch.collection+" due to: "+exc, exc);
+      batchSent(batch, timer, startNanos, false);
+      batchListener.batchCompleted(batchId, deadLetter(batch.collection, batch.buffer, exc) ? null : exc);
+    }
+  }
+
+  /**
+   * Hands the batch off to a sender thread, blocking the executor only if maxInFlightBatches
+   * are already outstanding; the batch listener is notified when Solr responds.
+   */
+  protected void sendBatchAsync(final DocBuffer batch) {
+    final Long batchId = batch.getBatchId();
+    synchronized (this) {
+      if (senderPool == null) {
+        senderPool = Executors.newFixedThreadPool(maxInFlightBatches,
+          new ThreadFactoryBuilder().setDaemon(true).setNameFormat("solr-bolt-sender-%d").build());
+        inFlightBatches = new Semaphore(maxInFlightBatches);
+      }
+    }
+
+    try {
+      inFlightBatches.acquire();
+    } catch (InterruptedException ie) {
+      Thread.interrupted();
+      batchListener.batchCompleted(batchId, ie);
+      return;
+    }
+
+    try {
+      senderPool.execute(new Runnable() {
+        public void run() {
+          Map<Object,Throwable> rejected = null;
+          Throwable error = null;
+          try {
+            rejected = sendTrackedBatch(batch);
+          } catch (Throwable exc) {
+            log.error("Failed to send batch of "+batch.buffer.size()+" docs to "+batch.collection+" due to: "+exc, exc);
+            error = deadLetter(batch.collection, batch.buffer, exc) ? null : exc;
+          } finally {
+            inFlightBatches.release();
+          }
+          completeBatch(batchId, rejected, error);
+        }
+      });
+    } catch (RuntimeException exc) {
+      inFlightBatches.release();
+      batchListener.batchCompleted(batchId, exc);
+    }
   }
 
   protected void sendBatchToSolr(DocBuffer b) {
     if (log.isDebugEnabled())
       log.debug("Sending buffer of " + b.buffer.size() + " to collection " + b.collection);
 
+    updateRequestStrategy.sendUpdateRequest(cloudSolrClient, b.collection, createBatchRequest(b));
+  }
+
+  protected UpdateRequest createBatchRequest(DocBuffer b) {
     UpdateRequest req = createUpdateRequest(b.collection);
     req.add(b.buffer);
-    updateRequestStrategy.sendUpdateRequest(cloudSolrClient, b.collection, req);
+    return req;
   }
 
   public void close() throws IOException {
 
+    // wait for in-flight batches to complete
+    if (senderPool != null) {
+      senderPool.shutdown();
+      try {
+        if (!senderPool.awaitTermination(60, TimeUnit.SECONDS))
+          log.warn("Timed out waiting for in-flight batches to be sent to Solr before shutting down");
+      } catch (InterruptedException ie) {
+        Thread.interrupted();
+      }
+      senderPool = null;
+    }
+    asyncFlush = false;
+
+    if (flushPool != null) {
+      flushPool.shutdown();
+      flushPool = null;
+    }
+
     // flush any buffered docs before shutting down
     for (DocBuffer b : buffers.values()) {
       if (!b.buffer.isEmpty()) {
@@ -228,22 +1193,29 @@ public class SolrBoltAction implements StreamingDataAction, TickTupleAware, Clos
     }
     buffers.clear();
 
-    if (documentAssignmentStrategy != null && documentAssignmentStrategy instanceof Closeable) {
+    if (batchListener != null)
+      flushShedDocs(true);
+    shedBuffers.clear();
+
+    // docs that haven't been drained yet are sent after the next start
+    if (spillBuffer != null) {
       try {
-        ((Closeable)documentAssignmentStrategy).close();
-      } catch (Exception ignore) {
-        log.warn("Error when trying to close the documentAssignmentStrategy due to: "+ignore);
+        spillBuffer.close();
+      } catch (Exception exc) {
+        log.warn("Error when trying to close the spillBuffer due to: "+exc);
       }
     }
 
-    if (updateRequestStrategy != null && updateRequestStrategy instanceof Closeable) {
+    if (documentAssignmentStrategy != null && documentAssignmentStrategy instanceof Closeable) {
       try {
-        ((Closeable)updateRequestStrategy).close();
+        ((Closeable)documentAssignmentStrategy).close();
       } catch (Exception ignore) {
-        log.warn("Error when trying to close the updateRequestStrategy due to: "+ignore);
+        log.warn("Error when trying to close the documentAssignmentStrategy due to: "+ignore);
       }
     }
-    
+
+    // the updateRequestStrategy is usually shared by all bolts in the worker, so it's closed by its container
+
     if (solrInputDocumentMapper != null && solrInputDocumentMapper instanceof Closeable) {
       try {
         ((Closeable)solrInputDocumentMapper).close();
@@ -0,0 +1,656 @@
+package com.lucidworks.storm.solr;
+
+import static com.lucidworks.storm.spring.SpringBolt.ExecuteResult;
+
+import com.codahale.metrics.Counter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ryantenney.metrics.annotation.Metric;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.log4j.Logger;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.impl.ConcurrentUpdateSolrClient;
+import org.apache.solr.client.solrj.request.RequestWriter;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.cloud.DocCollection;
+import org.apache.solr.common.cloud.Slice;
+import org.apache.solr.common.cloud.ZkStateReader;
+import org.apache.solr.common.util.ContentStream;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Streams docs directly to the leader of the shard each doc belongs to, instead of sending stop-and-go batches
+ * through the CloudSolrClient. Works best when the bolt is pinned to a single hash range using the
+ * HashRangeGrouping or ShardGrouping, in which case each bolt task keeps streaming to its leader.
+ * <p>
+ * Each leader gets one long-lived ConcurrentUpdateSolrClient with a single runner, so docs are written to the
+ * leader in order as soon as they arrive and keep streaming in the same request for as long as they keep
+ * coming. Solr only acknowledges the docs in a request when the request ends, which happens once no doc has
+ * arrived for pollQueueTimeMs. Every maxBufferSize docs (or bufferTimeoutMs), the docs streamed so far are
+ * sealed into a window, which completes with the batch listener once the leader has acknowledged all of its
+ * docs. If a sealed window has waited maxAckDelayMs to be acknowledged, such as when docs arrive non-stop,
+ * new docs are held back until the current request ends and then carry on streaming in the next one.
+ * Without a batch listener, tuples can only be acked all at once, so a window that is due waits for every
+ * stream to drain before acking.
+ * <p>
+ * If the stream fails, the docs the leader has not acknowledged are re-sent through the CloudSolrClient using
+ * the updateRequestStrategy, except for non-idempotent atomic updates (see UpdateCoalescer.isIdempotent) that
+ * were already written to the leader, which fail instead of risking being applied twice. The collections
+ * streamed to are watched through the CloudSolrClient's ZkStateReader, so a stream moves to the new leader
+ * as soon as leadership of its shard changes. Streaming errors are reported per shard to a
+ * CircuitBreakingUpdateRequestStrategy, so tuples for a shard that keeps failing are failed right away while
+ * its circuit is open.
+ */
+public class StreamingLeaderSolrBoltAction extends SolrBoltAction {
+
+  public static Logger log = Logger.getLogger(StreamingLeaderSolrBoltAction.class);
+
+  @Metric
+  public Counter leaderChanges;
+
+  @Metric
+  public Counter streamErrors;
+
+  protected int queueSize = 1000;
+  protected int leaderWaitMs = 30000;
+  protected int pollQueueTimeMs = 25;
+  protected long maxAckDelayMs = 2000L;
+
+  // one stream per shard leader this bolt has sent docs to, keyed by collection and shard name
+  private Map<String,LeaderStream> streams = new HashMap<String,LeaderStream>();
+  private Map<String,DocCollection> docCollections = new HashMap<String,DocCollection>();
+  private Set<String> watchedCollections = new HashSet<String>();
+  private ExecutorService streamPool;
+
+  /**
+   * Streams docs to a leader; every doc sent to a stream gets the next position in the stream, and the
+   * client reports how far the leader has acknowledged the stream each time one of its requests succeeds.
+   */
+  class LeaderClient extends ConcurrentUpdateSolrClient {
+    private static final long serialVersionUID = 1L;
+
+    final LeaderStream stream;
+    final String leaderUrl;
+    final long base; // position in the stream of the last doc sent before this client was opened
+    final AtomicLong written = new AtomicLong();
+    volatile Throwable error;
+    volatile long writtenAtError = -1L;
+
+    LeaderClient(LeaderStream stream, String leaderUrl, long base) {
+      // a single runner keeps the docs in order, which the positions rely on
+      super(leaderUrl, getHttpClient(), queueSize, 1, getStreamPool());
+      this.stream = stream;
+      this.leaderUrl = leaderUrl;
+      this.base = base;
+      setPollQueueTime(pollQueueTimeMs);
+      setRequestWriter(new StreamWriter(this, (requestWriter != null) ? requestWriter : new RequestWriter()));
+    }
+
+    @Override
+    public void onSuccess(HttpResponse resp) {
+      // the runner writes one request at a time, so every doc written so far was in the request that succeeded
+      stream.acknowledge(this, base + written.get());
+    }
+
+    @Override
+    public void handleError(Throwable ex) {
+      log.error("Error streaming docs to leader "+leaderUrl+" of "+stream.collection+"/"+stream.shard+" due to: "+ex);
+      if (error == null) {
+        writtenAtError = written.get();
+        error = ex;
+      }
+    }
+  }
+
+  /**
+   * Counts the docs the client writes to the leader; once the client has failed, the docs still queued in it
+   * are dropped instead of written, as they get re-sent when the stream recovers.
+   */
+  static class StreamWriter extends RequestWriter {
+    final LeaderClient client;
+    final RequestWriter delegate;
+
+    StreamWriter(LeaderClient client, RequestWriter delegate) {
+      this.client = client;
+      this.delegate = delegate;
+    }
+
+    @Override
+    public Collection<ContentStream> getContentStreams(SolrRequest req) throws IOException {
+      return delegate.getContentStreams(req);
+    }
+
+    @Override
+    public String getPath(SolrRequest req) {
+      return delegate.getPath(req);
+    }
+
+    @Override
+    public String getUpdateContentType() {
+      return delegate.getUpdateContentType();
+    }
+
+    @Override
+    public void write(SolrRequest req, OutputStream os) throws IOException {
+      if (client.error != null)
+        return;
+
+      delegate.write(req, os);
+      client.written.incrementAndGet(); // each queued request holds a single doc
+    }
+  }
+
+  /**
+   * A window of docs that has been sealed but not yet acknowledged by the leader; its docs take the
+   * positions up to and including end in the stream.
+   */
+  static class SealedWindow {
+    final DocBuffer docs;
+    final long end;
+    long waitingSinceNanos = System.nanoTime();
+
+    SealedWindow(DocBuffer docs, long end) {
+      this.docs = docs;
+      this.end = end;
+    }
+  }
+
+  class LeaderStream {
+    final String collection;
+    final String shard;
+    final DocBuffer window;
+    final LinkedList<SealedWindow> sealed = new LinkedList<SealedWindow>();
+    final LinkedList<SolrInputDocument> held = new LinkedList<SolrInputDocument>(); // in the window but not sent yet
+    long assigned = 0L; // position of the last doc added to a window
+    long sent = 0L; // position of the last doc sent to a client
+    long acknowledged = 0L; // position of the last doc the leader acknowledged
+    Exception sendError;
+    LeaderClient client;
+
+    LeaderStream(String collection, String shard) {
+      this.collection = collection;
+      this.shard = shard;
+      this.window = new DocBuffer(collection, maxBufferSize, bufferTimeoutMs, maxBufferBytes);
+    }
+
+    boolean isFailed() {
+      return client != null && (client.error != null || sendError != null);
+    }
+
+    synchronized void acknowledge(LeaderClient from, long position) {
+      if (from != client || from.error != null)
+        return;
+
+      acknowledged = position;
+      completeAcknowledged();
+    }
+
+    synchronized boolean isAcknowledged(long position) {
+      return acknowledged >= position;
+    }
+
+    synchronized long getAcknowledged() {
+      return acknowledged;
+    }
+
+    synchronized void seal() {
+      if (window.buffer.isEmpty()) {
+        window.reset();
+        return;
+      }
+
+      sealed.add(new SealedWindow(window.detach(), assigned));
+      completeAcknowledged(); // the request with its docs may already have ended
+    }
+
+    /**
+     * Returns true if the oldest sealed window has waited at least maxAckDelayMs to be acknowledged.
+     */
+    synchronized boolean isAckOverdue() {
+      return !sealed.isEmpty() &&
+        (System.nanoTime() - sealed.getFirst().waitingSinceNanos) >= TimeUnit.NANOSECONDS.convert(maxAckDelayMs, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void restartAckDelay() {
+      long now = System.nanoTime();
+      for (SealedWindow w : sealed)
+        w.waitingSinceNanos = now;
+    }
+
+    synchronized void setClient(LeaderClient client) {
+      this.client = client;
+    }
+
+    /**
+     * Removes the sealed windows once the stream has failed, leaving the stream with no client.
+     */
+    synchronized List<SealedWindow> takeSealed() {
+      List<SealedWindow> windows = new ArrayList<SealedWindow>(sealed);
+      sealed.clear();
+      client = null;
+      return windows;
+    }
+
+    synchronized void reset(long position) {
+      sent = position;
+      acknowledged = position;
+      sendError = null;
+      held.clear();
+    }
+
+    private void completeAcknowledged() {
+      while (!sealed.isEmpty() && sealed.getFirst().end <= acknowledged)
+        windowAcknowledged(this, sealed.removeFirst().docs);
+    }
+  }
+
+  @Autowired
+  public StreamingLeaderSolrBoltAction(CloudSolrClient cloudSolrClient) {
+    super(cloudSolrClient);
+  }
+
+  @Override
+  public ExecuteResult onTick() {
+    if (batchListener == null) {
+      for (LeaderStream stream : streams.values()) {
+        if (stream.window.shouldFlushBuffer() || stream.isFailed())
+          return drainStreams();
+      }
+      return ExecuteResult.IGNORED;
+    }
+
+    flushShedDocs(false);
+    for (LeaderStream stream : streams.values()) {
+      if (stream.isFailed())
+        recoverStream(stream);
+      if (stream.window.shouldFlushBuffer())
+        stream.seal();
+      sendHeld(stream, false);
+    }
+    return ExecuteResult.IGNORED;
+  }
+
+  @Override
+  protected ExecuteResult bufferDoc(String collection, SolrInputDocument doc) {
+    LeaderStream stream = getLeaderStream(collection, doc);
+    if (isCircuitOpen(collection, stream.shard))
+      return shedDoc(collection, stream.shard, doc);
+
+    stream.window.add(doc);
+    stream.assigned++;
+    if (batchListener != null)
+      batchListener.tupleBuffered(stream.window.getBatchId(), getDocKey(doc));
+
+    sendHeld(stream, false);
+    if (stream.held.isEmpty() && !stream.isAckOverdue()) {
+      send(stream, doc);
+    } else {
+      // let the current request end so the leader acknowledges the sealed windows
+      stream.held.add(doc);
+    }
+
+    if (stream.isFailed() || stream.window.shouldFlushBuffer()) {
+      if (batchListener == null)
+        return drainStreams();
+
+      stream.seal();
+      if (stream.isFailed())
+        recoverStream(stream);
+    }
+    return ExecuteResult.BUFFERED;
+  }
+
+  protected void send(LeaderStream stream, SolrInputDocument doc) {
+    stream.sent++;
+    if (stream.sendError != null)
+      return; // re-sent when the stream recovers
+
+    try {
+      stream.client.add(doc);
+    } catch (Exception exc) {
+      log.error("Failed to queue doc for leader "+stream.client.leaderUrl+" of "+stream.collection+"/"+stream.shard+" due to: "+exc);
+      stream.sendError = exc;
+    }
+  }
+
+  /**
+   * Sends the docs held back while waiting for the leader to acknowledge the docs already sent; unless forced,
+   * waits until the current request has ended.
+   */
+  protected void sendHeld(LeaderStream stream, boolean force) {
+    if (stream.held.isEmpty() || stream.client == null || (!force && !stream.isAcknowledged(stream.sent)))
+      return;
+
+    for (SolrInputDocument doc : stream.held)
+      send(stream, doc);
+    stream.held.clear();
+    stream.restartAckDelay();
+  }
+
+  /**
+   * Called once the leader has acknowledged every doc in a sealed window, from the client's runner thread.
+   */
+  protected void windowAcknowledged(LeaderStream stream, DocBuffer window) {
+    if (indexedCounter != null)
+      indexedCounter.inc(window.buffer.size());
+    recordResult(stream, null);
+    if (batchListener != null)
+      completeBatch(window.getBatchId(), null, null);
+  }
+
+  /**
+   * Seals every stream's window and waits for each stream to drain; throws the first error, if any.
+   */
+  protected ExecuteResult drainStreams() {
+    Throwable firstError = null;
+    for (LeaderStream stream : streams.values()) {
+      Throwable error = drainStream(stream);
+      if (firstError == null)
+        firstError = error;
+    }
+
+    if (firstError != null)
+      throw (firstError instanceof RuntimeException) ? (RuntimeException)firstError : new RuntimeException(firstError);
+
+    return ExecuteResult.ACK;
+  }
+
+  /**
+   * Seals the window and waits for the leader to acknowledge every doc in the stream, recovering the stream if
+   * it failed; returns the error if some docs failed and there is no batch listener to report it to.
+   */
+  protected Throwable drainStream(LeaderStream stream) {
+    stream.seal();
+    if (stream.client == null)
+      return null;
+
+    sendHeld(stream, true);
+    stream.client.blockUntilFinished();
+    return stream.isFailed() ? recoverStream(stream) : null;
+  }
+
+  /**
+   * Re-sends the docs the leader has not acknowledged through the CloudSolrClient after the stream failed;
+   * the stream re-connects to the current leader when the next doc arrives. Returns the error if some docs
+   * failed and there is no batch listener to report it to.
+   */
+  protected Throwable recoverStream(LeaderStream stream) {
+    LeaderClient failed = stream.client;
+    Throwable cause = (failed.error != null) ? failed.error : stream.sendError;
+
+    stream.seal();
+    failed.blockUntilFinished(); // drops the docs still queued, see StreamWriter
+    failed.shutdownNow();
+
+    List<SealedWindow> windows = stream.takeSealed();
+    long acknowledged = stream.getAcknowledged();
+    // docs after the last one written when the client failed never reached the leader
+    long uncertain = (failed.error != null) ? failed.base + failed.writtenAtError : acknowledged;
+    stream.reset(stream.assigned);
+
+    recordResult(stream, cause);
+    if (streamErrors != null)
+      streamErrors.inc();
+
+    Throwable firstError = null;
+    for (SealedWindow window : windows) {
+      Throwable error = resendWindow(stream, window, acknowledged, uncertain, cause);
+      if (firstError == null)
+        firstError = error;
+    }
+    return firstError;
+  }
+
+  /**
+   * Re-sends the docs in the window after the acknowledged position, except for non-idempotent docs up to
+   * the uncertain position, which the leader may have applied before the stream failed.
+   */
+  protected Throwable resendWindow(LeaderStream stream, SealedWindow window, long acknowledged, long uncertain, Throwable cause) {
+    DocBuffer resend = new DocBuffer(stream.collection, window.docs.buffer.size(), bufferTimeoutMs);
+    Map<Object,Throwable> rejected = new LinkedHashMap<Object,Throwable>();
+    SolrException notResent = null;
+    int alreadyIndexed = 0;
+    long position = window.end - window.docs.buffer.size();
+    for (SolrInputDocument doc : window.docs.buffer) {
+      if (++position <= acknowledged) {
+        ++alreadyIndexed;
+      } else if (position <= uncertain && !UpdateCoalescer.isIdempotent(doc)) {
+        if (notResent == null)
+          notResent = new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Not re-sending atomic update to "+
+            stream.collection+"/"+stream.shard+" that may already have been applied before the stream failed due to: "+cause, cause);
+        rejected.put(getDocKey(doc), notResent);
+      } else {
+        resend.buffer.add(doc);
+      }
+    }
+
+    if (indexedCounter != null)
+      indexedCounter.inc(alreadyIndexed);
+    if (!rejected.isEmpty()) {
+      log.warn("Failing "+rejected.size()+" atomic updates to "+stream.collection+"/"+stream.shard+
+        " that may already have been applied: "+rejected.keySet());
+      if (rejectedDocs != null)
+        rejectedDocs.inc(rejected.size());
+    }
+
+    Throwable error = null;
+    if (!resend.buffer.isEmpty()) {
+      log.warn("Re-sending "+resend.buffer.size()+" docs to "+stream.collection+"/"+stream.shard+
+        " through the CloudSolrClient after streaming error: "+cause);
+      try {
+        if (batchListener != null) {
+          Map<Object,Throwable> resendRejected = sendTrackedBatch(resend);
+          if (resendRejected != null)
+            rejected.putAll(resendRejected);
+        } else {
+          sendBatch(resend);
+        }
+      } catch (Exception exc) {
+        log.error("Failed to send "+resend.buffer.size()+" docs to "+stream.collection+"/"+stream.shard+" due to: "+exc, exc);
+        if (!deadLetter(stream.collection, resend.buffer, exc))
+          error = exc;
+      }
+    }
+
+    if (batchListener != null) {
+      completeBatch(window.docs.getBatchId(), rejected, error);
+      return null;
+    }
+    return (error == null && !rejected.isEmpty()) ? rejected.values().iterator().next() : error;
+  }
+
+  protected synchronized ExecutorService getStreamPool() {
+    if (streamPool == null) {
+      // runs the clients' runners
+      streamPool = Executors.newCachedThreadPool(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("leader-stream-%d").build());
+    }
+    return streamPool;
+  }
+
+  protected HttpClient getHttpClient() {
+    return cloudSolrClient.getLbClient().getHttpClient();
+  }
+
+  /**
+   * Lets a CircuitBreakingUpdateRequestStrategy track failures streaming to each shard's leader.
+   */
+  protected void recordResult(LeaderStream stream, Throwable error) {
+    if (updateRequestStrategy instanceof CircuitBreakingUpdateRequestStrategy)
+      ((CircuitBreakingUpdateRequestStrategy)updateRequestStrategy).recordResult(stream.collection, stream.shard, error);
+  }
+
+  protected LeaderStream getLeaderStream(String collection, SolrInputDocument doc) {
+    String shard = getTargetShard(collection, doc);
+    String key = collection+"/"+shard;
+    LeaderStream stream = streams.get(key);
+    if (stream == null) {
+      stream = new LeaderStream(collection, shard);
+      streams.put(key, stream);
+    }
+
+    if (stream.isFailed()) {
+      Throwable error = recoverStream(stream);
+      if (error != null)
+        throw (error instanceof RuntimeException) ? (RuntimeException)error : new RuntimeException(error);
+    }
+
+    if (stream.client == null)
+      connect(stream, getLeaderUrl(collection, shard)); // new or failed, so leadership may have moved
+
+    return stream;
+  }
+
+  protected String getTargetShard(String collection, SolrInputDocument doc) {
+    DocCollection docCollection = getDocCollection(collection);
+    Object idObj = doc.getFieldValue(idFieldName);
+    String docId = (idObj != null) ? idObj.toString() : null;
+    Slice slice = docCollection.getRouter().getTargetSlice(docId, doc, null, null, docCollection);
+    return slice.getName();
+  }
+
+  /**
+   * Returns the state of the collection from the ZkStateReader, which watches the collection for changes;
+   * the streams to the collection are checked for a new leader whenever its state has changed.
+   */
+  protected DocCollection getDocCollection(String collection) {
+    ZkStateReader zkStateReader = cloudSolrClient.getZkStateReader();
+    if (watchedCollections.add(collection))
+      zkStateReader.addCollectionWatch(collection);
+
+    DocCollection docCollection = zkStateReader.getClusterState().getCollection(collection);
+    DocCollection previous = docCollections.put(collection, docCollection);
+    if (previous != null && previous != docCollection)
+      checkLeaders(collection);
+    return docCollection;
+  }
+
+  protected String getLeaderUrl(String collection, String shard) {
+    try {
+      return cloudSolrClient.getZkStateReader().getLeaderUrl(collection, shard, leaderWaitMs);
+    } catch (Exception exc) {
+      if (exc instanceof InterruptedException)
+        Thread.interrupted();
+      throw new IllegalStateException("Failed to find the leader of "+collection+"/"+shard+" due to: "+exc, exc);
+    }
+  }
+
+  /**
+   * Moves the streams to the collection whose shard leadership has moved to another replica.
+   */
+  protected void checkLeaders(String collection) {
+    for (LeaderStream stream : streams.values()) {
+      if (!stream.collection.equals(collection) || stream.client == null)
+        continue;
+
+      String leaderUrl = getLeaderUrl(stream.collection, stream.shard);
+      if (!leaderUrl.equals(stream.client.leaderUrl)) {
+        log.info("Leader of "+stream.collection+"/"+stream.shard+" moved from "+stream.client.leaderUrl+" to "+leaderUrl);
+        if (leaderChanges != null)
+          leaderChanges.inc();
+        connect(stream, leaderUrl);
+      }
+    }
+  }
+
+  /**
+   * Opens a client to the leader, after the docs already sent to the old leader have drained; docs
+   * that were held back are sent to the new leader.
+   */
+  protected void connect(LeaderStream stream, String leaderUrl) {
+    LeaderClient current = stream.client;
+    if (current != null) {
+      current.blockUntilFinished();
+      if (stream.isFailed()) {
+        Throwable error = recoverStream(stream);
+        if (error != null)
+          log.error("Failed to send docs streamed to "+current.leaderUrl+" before the leader moved due to: "+error, error);
+      } else {
+        current.shutdownNow();
+      }
+    }
+
+    stream.setClient(new LeaderClient(stream, leaderUrl, stream.sent));
+    sendHeld(stream, true);
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (LeaderStream stream : streams.values()) {
+      Throwable error = drainStream(stream);
+      if (error != null)
+        log.error("Failed to flush streamed docs before shutting down due to: "+error, error);
+      if (stream.client != null)
+        stream.client.shutdownNow();
+    }
+    streams.clear();
+
+    synchronized (this) {
+      if (streamPool != null) {
+        streamPool.shutdown();
+        streamPool = null;
+      }
+    }
+
+    super.close();
+  }
+
+  public int getQueueSize() {
+    return queueSize;
+  }
+
+  public void setQueueSize(int queueSize) {
+    this.queueSize = queueSize;
+  }
+
+  public int getLeaderWaitMs() {
+    return leaderWaitMs;
+  }
+
+  public void setLeaderWaitMs(int leaderWaitMs) {
+    this.leaderWaitMs = leaderWaitMs;
+  }
+
+  public int getPollQueueTimeMs() {
+    return pollQueueTimeMs;
+  }
+
+  /**
+   * How long a client waits for more docs before ending its request to the leader; docs that arrive more
+   * often than this keep streaming in the same request, and the leader acknowledges the docs in a request
+   * this long after its last doc was written at the earliest.
+   */
+  public void setPollQueueTimeMs(int pollQueueTimeMs) {
+    this.pollQueueTimeMs = pollQueueTimeMs;
+  }
+
+  public long getMaxAckDelayMs() {
+    return maxAckDelayMs;
+  }
+
+  /**
+   * Once a sealed window has waited this long for the leader to acknowledge its docs, new docs are held
+   * back until the current request ends; keep this well below the topology message timeout.
+   */
+  public void setMaxAckDelayMs(long maxAckDelayMs) {
+    this.maxAckDelayMs = maxAckDelayMs;
+  }
+}
@@ -0,0 +1,111 @@
+package com.lucidworks.storm.solr;
+
+import com.lucidworks.storm.spring.TaskLoad;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks one of the tasks for a shard when a grouping has several tasks per shard; the tasks for shard s are
+ * targetTasks s, s+numShards, s+2*numShards, and so on.
+ * <p>
+ * In POWER_OF_TWO_CHOICES mode, two of the shard's tasks are drawn at random and the one with fewer pending
+ * tuples, as published to the TaskLoad by the SpringBolt tasks in this worker, is chosen. The load of tasks in
+ * other workers isn't known here, so if either task is remote the first one drawn is chosen, which keeps the
+ * choice random rather than favoring remote tasks over busy local ones.
+ * <p>
+ * In KEY_AFFINITY mode, the task is chosen by the low 16 bits of the doc ID hash, which Solr's
+ * CompositeIdRouter always takes from the doc part of the ID, so every update to a doc goes to the same task
+ * and updates to one doc don't race each other to Solr from different tasks. A grouping is only
+ * used by the executor thread that emits the tuples, so the selector keeps its state without locking.
+ */
+public class TaskSelector {
+
+  public enum Mode {
+    RANDOM, ROUND_ROBIN, POWER_OF_TWO_CHOICES, KEY_AFFINITY
+  }
+
+  // re-check tasks that hadn't published their load yet, as bolts may be prepared after the grouping
+  private static final int RESOLVE_INTERVAL = 1024;
+  private static final AtomicInteger UNKNOWN_LOAD = new AtomicInteger();
+  private static final int UNKNOWN = -1;
+
+  private final Mode mode;
+  private final List<Integer> targetTasks;
+  private final AtomicInteger[] loads;
+  private int[] nextTask = new int[0];
+  private int untilResolve = 0;
+
+  public TaskSelector(Mode mode, List<Integer> targetTasks) {
+    this.mode = (mode != null) ? mode : Mode.RANDOM;
+    this.targetTasks = targetTasks;
+    this.loads = new AtomicInteger[targetTasks.size()];
+  }
+
+  public Mode getMode() {
+    return mode;
+  }
+
+  /**
+   * Returns the index into targetTasks of the task to send a tuple for the shard to, given the hash of its doc ID.
+   */
+  public int select(int shardIndex, int numShards, int tasksPerShard, int hash) {
+    if (tasksPerShard <= 1)
+      return shardIndex;
+
+    switch (mode) {
+      case KEY_AFFINITY:
+        return shardIndex + ((hash & 0xFFFF) % tasksPerShard) * numShards;
+      case ROUND_ROBIN:
+        return shardIndex + nextTask(shardIndex, tasksPerShard) * numShards;
+      case POWER_OF_TWO_CHOICES:
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(tasksPerShard);
+        int second = random.nextInt(tasksPerShard - 1);
+        if (second >= first)
+          ++second; // two different tasks
+
+        int firstIndex = shardIndex + first * numShards;
+        int secondIndex = shardIndex + second * numShards;
+        int firstPending = getPending(firstIndex);
+        int secondPending = getPending(secondIndex);
+        if (firstPending == UNKNOWN || secondPending == UNKNOWN)
+          return firstIndex;
+        return (secondPending < firstPending) ? secondIndex : firstIndex;
+      default:
+        return shardIndex + ThreadLocalRandom.current().nextInt(tasksPerShard) * numShards;
+    }
+  }
+
+  protected int nextTask(int shardIndex, int tasksPerShard) {
+    if (shardIndex >= nextTask.length) {
+      int[] grown = new int[shardIndex + 1];
+      System.arraycopy(nextTask, 0, grown, 0, nextTask.length);
+      nextTask = grown;
+    }
+
+    int next = nextTask[shardIndex];
+    if (next >= tasksPerShard)
+      next = 0;
+    nextTask[shardIndex] = next + 1;
+    return next;
+  }
+
+  /**
+   * Returns the number of tuples pending for the task, or -1 if the task hasn't published its load here.
+   */
+  protected int getPending(int targetIndex) {
+    if (--untilResolve <= 0) {
+      untilResolve = RESOLVE_INTERVAL;
+      for (int t=0; t < loads.length; t++) {
+        if (loads[t] == null || loads[t] == UNKNOWN_LOAD) {
+          AtomicInteger load = TaskLoad.get(targetTasks.get(t));
+          loads[t] = (load != null) ? load : UNKNOWN_LOAD;
+        }
+      }
+    }
+    AtomicInteger load = loads[targetIndex];
+    return (load != UNKNOWN_LOAD) ? load.get() : UNKNOWN;
+  }
+}
@@ -0,0 +1,161 @@
+package com.lucidworks.storm.solr;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Combines two updates to the same doc into one, so a buffer only sends one write per doc ID. A full doc
+ * replaces whatever was buffered for its ID; an atomic update is merged into the buffered doc when the
+ * result is the same as applying both in order: set replaces the buffered value, inc adds to a buffered
+ * inc or number, and add appends to a buffered add or value. Anything else, such as a remove, an inc on
+ * top of an add, or docs using _version_ for optimistic concurrency, can't be merged.
+ */
+public class UpdateCoalescer {
+
+  static final String VERSION_FIELD = "_version_";
+
+  static final String SET = "set";
+  static final String ADD = "add";
+  static final String INC = "inc";
+
+  /**
+   * Returns the doc to buffer in place of the buffered doc, which may be modified, or null if the two
+   * can't be combined and must both be sent in order.
+   */
+  public static SolrInputDocument merge(SolrInputDocument buffered, SolrInputDocument update) {
+    if (buffered.hasChildDocuments() || update.hasChildDocuments() ||
+        buffered.containsKey(VERSION_FIELD) || update.containsKey(VERSION_FIELD))
+      return null;
+
+    if (!isAtomicUpdate(update))
+      return update; // latest version of the doc wins
+
+    boolean bufferedIsAtomic = isAtomicUpdate(buffered);
+    List<Object> merged = new ArrayList<Object>(update.size());
+    for (SolrInputField field : update.values()) {
+      SolrInputField bufferedField = buffered.getField(field.getName());
+      Object value = mergeValue((bufferedField != null) ? bufferedField.getValue() : null, field.getValue(), bufferedIsAtomic);
+      if (value == null && !isSetToNull(field.getValue()))
+        return null;
+      merged.add(value);
+    }
+
+    // only change the buffered doc once all fields are known to merge
+    int f = 0;
+    for (SolrInputField field : update.values()) {
+      Object value = merged.get(f++);
+      if (!bufferedIsAtomic && value == null) {
+        buffered.removeField(field.getName());
+      } else {
+        buffered.setField(field.getName(), value);
+      }
+    }
+    return buffered;
+  }
+
+  public static boolean isAtomicUpdate(SolrInputDocument doc) {
+    for (SolrInputField field : doc.values()) {
+      if (field.getValue() instanceof Map)
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns false if applying the doc twice gives a different result than applying it once, such as an
+   * atomic update that increments a number or adds a value to a multi-valued field; such a doc must not
+   * be re-sent after a request that may already have applied it.
+   */
+  public static boolean isIdempotent(SolrInputDocument doc) {
+    for (SolrInputField field : doc.values()) {
+      Object value = field.getValue();
+      if (value instanceof Map && (((Map)value).containsKey(INC) || ((Map)value).containsKey(ADD)))
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns the value of a field after applying the update to the buffered value, in the form of the
+   * buffered doc: plain values for a full doc, or an operation for an atomic update. Returns null if the
+   * two can't be merged.
+   */
+  protected static Object mergeValue(Object bufferedValue, Object updateValue, boolean bufferedIsAtomic) {
+    String op = getOp(updateValue);
+    Object opValue = (op != null) ? ((Map)updateValue).values().iterator().next() : updateValue;
+    if (op == null || SET.equals(op))
+      return (bufferedIsAtomic && op != null) ? updateValue : opValue;
+
+    if (bufferedValue == null && bufferedIsAtomic)
+      return updateValue;
+
+    // a plain value in an atomic update is set, and a field missing from a full doc starts out empty
+    String bufferedOp = getOp(bufferedValue);
+    if (bufferedOp == null && bufferedValue instanceof Map)
+      return null;
+    Object bufferedOpValue = (bufferedOp != null) ? ((Map)bufferedValue).values().iterator().next() : bufferedValue;
+    if (bufferedOp == null)
+      bufferedOp = SET;
+
+    Object value;
+    if (INC.equals(op)) {
+      if (!(opValue instanceof Number) || (bufferedOpValue != null && !(bufferedOpValue instanceof Number)))
+        return null;
+      if (!INC.equals(bufferedOp) && !SET.equals(bufferedOp))
+        return null;
+      value = add((Number)bufferedOpValue, (Number)opValue);
+    } else if (ADD.equals(op)) {
+      if (!ADD.equals(bufferedOp) && !SET.equals(bufferedOp))
+        return null;
+      List<Object> values = new ArrayList<Object>();
+      addValues(values, bufferedOpValue);
+      addValues(values, opValue);
+      value = values;
+    } else {
+      return null;
+    }
+
+    if (!bufferedIsAtomic)
+      return value;
+    return Collections.singletonMap(bufferedValue instanceof Map ? bufferedOp : SET, value);
+  }
+
+  protected static String getOp(Object value) {
+    if (!(value instanceof Map) || ((Map)value).size() != 1)
+      return null;
+
+    Object op = ((Map)value).keySet().iterator().next();
+    return (op instanceof String) ? (String)op : null;
+  }
+
+  protected static boolean isSetToNull(Object updateValue) {
+    return updateValue == null || (SET.equals(getOp(updateValue)) && ((Map)updateValue).values().iterator().next() == null);
+  }
+
+  protected static Number add(Number a, Number b) {
+    if (a == null)
+      return b;
+
+    if (a instanceof Double || a instanceof Float || b instanceof Double || b instanceof Float)
+      return a.doubleValue() + b.doubleValue();
+
+    if (a instanceof Integer && b instanceof Integer)
+      return a.intValue() + b.intValue();
+
+    return a.longValue() + b.longValue();
+  }
+
+  protected static void addValues(List<Object> values, Object value) {
+    if (value instanceof Collection) {
+      values.addAll((Collection<?>)value);
+    } else if (value != null) {
+      values.add(value);
+    }
+  }
+}
@@ -0,0 +1,399 @@
+package com.lucidworks.storm.solr;
+
+import com.codahale.metrics.Counter;
+import com.lucidworks.storm.io.MappedLog;
+import com.ryantenney.metrics.annotation.Metric;
+import org.apache.log4j.Logger;
+import org.apache.solr.common.SolrInputDocument;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Write-ahead log of docs on local disk, so the SolrBoltAction can ack tuples once their docs are safely on
+ * disk instead of waiting for Solr. Docs are appended to a MappedLog and synced to disk in groups, at most
+ * every syncIntervalMs or maxUnsyncedDocs docs, and the tuples in each group are acked once it's synced.
+ * A drain thread reads up to drainBatchSize docs at a time, sends them to Solr using the Sender, one request
+ * per collection, and truncates the log once they've all been sent; if Solr is unavailable, the drain thread
+ * backs off and tries again, while the bolt keeps accepting docs. Once draining has made no progress for
+ * maxDrainStallMs, the drainStalls metric is incremented and isHealthy returns false until it catches up.
+ * <p>
+ * Declare this bean in the prototype scope so each bolt gets its own buffer; each buffer locks its own slot
+ * directory under dir, and after a restart, picks up the docs left in whichever free slot it locks.
+ * Docs may be sent more than once if the worker dies while draining, so avoid non-idempotent atomic updates.
+ */
+public class WriteAheadSpillBuffer implements Closeable {
+
+  public static Logger log = Logger.getLogger(WriteAheadSpillBuffer.class);
+
+  /**
+   * Sends batches of docs drained from the buffer.
+   */
+  public interface Sender {
+    /**
+     * Sends docs for a collection; returns false if the collection can't accept requests yet, or throws if
+     * sending failed. Either way, the docs are sent again after backing off.
+     */
+    boolean send(String collection, List<SolrInputDocument> docs) throws Exception;
+  }
+
+  @Metric
+  public Counter spilledDocs;
+
+  @Metric
+  public Counter drainedDocs;
+
+  @Metric
+  public Counter drainFailures;
+
+  @Metric
+  public Counter drainErrors;
+
+  @Metric
+  public Counter drainStalls;
+
+  protected boolean enabled = true;
+  protected String dir = new File(System.getProperty("java.io.tmpdir"), "storm-solr-spill").getAbsolutePath();
+  protected int maxSlots = 32;
+  protected int segmentSize = 64 * 1024 * 1024;
+  protected long syncIntervalMs = 50L;
+  protected int maxUnsyncedDocs = 1000;
+  protected int drainBatchSize = 1000;
+  protected long drainPollMs = 50L;
+  protected long drainBackoffMs = 1000L;
+  protected long maxDrainBackoffMs = 60000L;
+  protected long maxDrainStallMs = 300000L;
+
+  private MappedLog mappedLog;
+  private Sender sender;
+  private Thread drainThread;
+  private volatile boolean closed = false;
+  private volatile long stalledSinceMs = -1L;
+  private volatile boolean stallReported = false;
+  private int unsyncedDocs = 0;
+  private long firstUnsyncedAtMs = -1L;
+
+  /**
+   * Opens the log and starts draining it, including any docs left from before a restart, using the sender.
+   */
+  public synchronized void open(Sender sender) throws IOException {
+    if (mappedLog != null)
+      return;
+
+    this.sender = sender;
+    mappedLog = MappedLog.openInFreeSlot(new File(dir), maxSlots, segmentSize);
+    log.info("Spilling docs to "+mappedLog.getDir().getAbsolutePath());
+
+    drainThread = new Thread(new Runnable() {
+      public void run() {
+        drainLoop();
+      }
+    }, "solr-spill-drain");
+    drainThread.setDaemon(true);
+    drainThread.start();
+  }
+
+  public boolean isOpen() {
+    return mappedLog != null;
+  }
+
+  /**
+   * Appends a doc to the log; the doc is not guaranteed to survive the machine going down until the next sync.
+   */
+  public void append(String collection, SolrInputDocument doc) throws IOException {
+    if (mappedLog == null)
+      throw new IOException("Spill buffer is not open!");
+
+    mappedLog.append(DocBatchCodec.encode(collection, Collections.singletonList(doc)));
+    if (unsyncedDocs++ == 0)
+      firstUnsyncedAtMs = System.currentTimeMillis();
+
+    if (spilledDocs != null)
+      spilledDocs.inc();
+  }
+
+  /**
+   * Returns true if there are appended docs that haven't been synced to disk.
+   */
+  public boolean hasUnsyncedDocs() {
+    return unsyncedDocs > 0;
+  }
+
+  /**
+   * Returns true once enough docs have been appended, or the oldest unsynced doc has waited long enough,
+   * to sync the group to disk.
+   */
+  public boolean isSyncDue() {
+    return unsyncedDocs > 0 &&
+      (unsyncedDocs >= maxUnsyncedDocs || System.currentTimeMillis() - firstUnsyncedAtMs >= syncIntervalMs);
+  }
+
+  /**
+   * Flushes all appended docs to disk.
+   */
+  public void sync() {
+    if (mappedLog != null)
+      mappedLog.force();
+    unsyncedDocs = 0;
+    firstUnsyncedAtMs = -1L;
+  }
+
+  protected void drainLoop() {
+    long backoffMs = drainBackoffMs;
+    while (!closed) {
+      try {
+        List<byte[]> records = mappedLog.peek(drainBatchSize);
+        if (records.isEmpty()) {
+          drained();
+          Thread.sleep(drainPollMs);
+          continue;
+        }
+
+        Map<String,List<SolrInputDocument>> byCollection = new LinkedHashMap<String,List<SolrInputDocument>>();
+        List<SolrInputDocument> docs = new ArrayList<SolrInputDocument>(1);
+        for (byte[] record : records) {
+          String collection;
+          try {
+            collection = DocBatchCodec.decode(record, docs);
+          } catch (RuntimeException exc) {
+            // re-reading it won't help, so don't let it hold up the rest of the log
+            log.error("Dropping unreadable record of "+record.length+" bytes from spill buffer due to: "+exc, exc);
+            if (drainErrors != null)
+              drainErrors.inc();
+            docs.clear();
+            continue;
+          }
+
+          List<SolrInputDocument> collectionDocs = byCollection.get(collection);
+          if (collectionDocs == null) {
+            collectionDocs = new ArrayList<SolrInputDocument>();
+            byCollection.put(collection, collectionDocs);
+          }
+          collectionDocs.addAll(docs);
+          docs.clear();
+        }
+
+        // only re-send the collections that haven't been sent yet
+        while (!byCollection.isEmpty() && !closed) {
+          if (sendAll(byCollection)) {
+            backoffMs = drainBackoffMs;
+          } else {
+            stalled();
+            Thread.sleep(backoffMs);
+            backoffMs = Math.min(maxDrainBackoffMs, backoffMs * 2);
+          }
+        }
+
+        if (byCollection.isEmpty()) {
+          mappedLog.advance(records.size());
+          if (drainedDocs != null)
+            drainedDocs.inc(records.size());
+          drained();
+        }
+      } catch (InterruptedException ie) {
+        Thread.interrupted();
+        return;
+      } catch (Exception exc) {
+        if (closed)
+          return;
+        // keep the thread alive, as the docs in the log were already acked and have no other way to Solr
+        log.error("Failed to drain spill buffer due to: "+exc, exc);
+        if (drainErrors != null)
+          drainErrors.inc();
+        stalled();
+        try {
+          Thread.sleep(backoffMs);
+        } catch (InterruptedException ie) {
+          Thread.interrupted();
+          return;
+        }
+        backoffMs = Math.min(maxDrainBackoffMs, backoffMs * 2);
+      }
+    }
+  }
+
+  protected void drained() {
+    if (stallReported)
+      log.info("Spill buffer is draining again after stalling for "+(System.currentTimeMillis() - stalledSinceMs)+"ms");
+    stalledSinceMs = -1L;
+    stallReported = false;
+  }
+
+  protected void stalled() {
+    long nowMs = System.currentTimeMillis();
+    if (stalledSinceMs == -1L)
+      stalledSinceMs = nowMs;
+
+    if (!stallReported && nowMs - stalledSinceMs >= maxDrainStallMs) {
+      stallReported = true;
+      log.error("Spill buffer hasn't drained any docs for "+(nowMs - stalledSinceMs)+"ms!");
+      if (drainStalls != null)
+        drainStalls.inc();
+    }
+  }
+
+  /**
+   * Returns false if the drain thread has stopped, or hasn't been able to drain any docs for maxDrainStallMs.
+   */
+  public synchronized boolean isHealthy() {
+    Thread thread = drainThread;
+    if (mappedLog != null && !closed && (thread == null || !thread.isAlive()))
+      return false;
+
+    long since = stalledSinceMs;
+    return since == -1L || System.currentTimeMillis() - since < maxDrainStallMs;
+  }
+
+  /**
+   * Sends the docs for each collection, removing the collections that were sent; returns false if any failed.
+   */
+  protected boolean sendAll(Map<String,List<SolrInputDocument>> byCollection) {
+    Iterator<Map.Entry<String,List<SolrInputDocument>>> iter = byCollection.entrySet().iterator();
+    while (iter.hasNext()) {
+      Map.Entry<String,List<SolrInputDocument>> entry = iter.next();
+      boolean sent = false;
+      try {
+        sent = sender.send(entry.getKey(), entry.getValue());
+      } catch (Exception exc) {
+        log.warn("Failed to send "+entry.getValue().size()+" spilled docs to "+entry.getKey()+" due to: "+exc);
+        if (drainFailures != null)
+          drainFailures.inc();
+      }
+
+      if (!sent)
+        return false;
+
+      iter.remove();
+    }
+    return true;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Bolts ignore a disabled spill buffer and only ack tuples once Solr has indexed their docs.
+   */
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public String getDir() {
+    return dir;
+  }
+
+  public void setDir(String dir) {
+    this.dir = dir;
+  }
+
+  public int getMaxSlots() {
+    return maxSlots;
+  }
+
+  public void setMaxSlots(int maxSlots) {
+    this.maxSlots = maxSlots;
+  }
+
+  public int getSegmentSize() {
+    return segmentSize;
+  }
+
+  public void setSegmentSize(int segmentSize) {
+    this.segmentSize = segmentSize;
+  }
+
+  public long getSyncIntervalMs() {
+    return syncIntervalMs;
+  }
+
+  public void setSyncIntervalMs(long syncIntervalMs) {
+    this.syncIntervalMs = syncIntervalMs;
+  }
+
+  public int getMaxUnsyncedDocs() {
+    return maxUnsyncedDocs;
+  }
+
+  public void setMaxUnsyncedDocs(int maxUnsyncedDocs) {
+    this.maxUnsyncedDocs = maxUnsyncedDocs;
+  }
+
+  public int getDrainBatchSize() {
+    return drainBatchSize;
+  }
+
+  public void setDrainBatchSize(int drainBatchSize) {
+    this.drainBatchSize = drainBatchSize;
+  }
+
+  public long getDrainPollMs() {
+    return drainPollMs;
+  }
+
+  public void setDrainPollMs(long drainPollMs) {
+    this.drainPollMs = drainPollMs;
+  }
+
+  public long getDrainBackoffMs() {
+    return drainBackoffMs;
+  }
+
+  public void setDrainBackoffMs(long drainBackoffMs) {
+    this.drainBackoffMs = drainBackoffMs;
+  }
+
+  public long getMaxDrainBackoffMs() {
+    return maxDrainBackoffMs;
+  }
+
+  public void setMaxDrainBackoffMs(long maxDrainBackoffMs) {
+    this.maxDrainBackoffMs = maxDrainBackoffMs;
+  }
+
+  public long getMaxDrainStallMs() {
+    return maxDrainStallMs;
+  }
+
+  public void setMaxDrainStallMs(long maxDrainStallMs) {
+    this.maxDrainStallMs = maxDrainStallMs;
+  }
+
+  /**
+   * Syncs any appended docs and stops draining; docs not sent yet stay on disk for the next run.
+   */
+  public void close() throws IOException {
+    Thread thread;
+    synchronized (this) {
+      if (closed)
+        return;
+      closed = true;
+      thread = drainThread;
+      drainThread = null;
+    }
+
+    if (thread != null) {
+      thread.interrupt();
+      try {
+        thread.join(5000L);
+      } catch (InterruptedException ie) {
+        Thread.interrupted();
+      }
+    }
+
+    synchronized (this) {
+      if (mappedLog != null) {
+        sync();
+        mappedLog.close();
+        mappedLog = null;
+      }
+    }
+  }
+}
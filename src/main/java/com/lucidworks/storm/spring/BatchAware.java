@@ -0,0 +1,10 @@
+package com.lucidworks.storm.spring;
+
+/**
+ * Interface to be implemented by any action bean that groups buffered tuples into batches
+ * and wants the SpringBolt to ack (or fail) the tuples in each batch once that batch completes,
+ * which may happen on a thread other than the bolt executor.
+ */
+public interface BatchAware {
+  void setBatchListener(BatchListener batchListener);
+}
@@ -0,0 +1,29 @@
+package com.lucidworks.storm.spring;
+
+import java.util.Map;
+
+/**
+ * Callback used by BatchAware action beans to tell the SpringBolt which batch the tuple currently
+ * being executed was buffered into and when that batch has completed.
+ */
+public interface BatchListener {
+
+  /**
+   * Must be called from the bolt executor thread while the tuple is being executed; the batch ID is the
+   * token the tuple is tracked under until the batch completes, so once a tuple has been assigned
+   * to a batch, the result returned from execute no longer determines when it gets acked. The key,
+   * such as a doc ID, identifies the tuple within the batch if only some of the batch fails; may be null.
+   */
+  void tupleBuffered(Object batchId, Object key);
+
+  /**
+   * May be called from any thread; a null error means the batch was processed successfully.
+   */
+  void batchCompleted(Object batchId, Throwable error);
+
+  /**
+   * May be called from any thread when only some of the batch failed; tuples buffered with one
+   * of the failed keys fail, all others in the batch are acked.
+   */
+  void batchPartiallyFailed(Object batchId, Map<Object,Throwable> failedKeys);
+}
@@ -3,7 +3,10 @@ package com.lucidworks.storm.spring;
 import java.io.Closeable;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import backtype.storm.Config;
 import backtype.storm.Constants;
@@ -13,11 +16,16 @@ import backtype.storm.topology.OutputFieldsDeclarer;
 import backtype.storm.topology.base.BaseRichBolt;
 import backtype.storm.tuple.Fields;
 import backtype.storm.tuple.Tuple;
+import backtype.storm.tuple.Values;
 import com.lucidworks.storm.StreamingApp;
 import org.apache.log4j.Logger;
 
 /**
  * Executes a Spring-managed BoltAction implementation.
+ * <p>
+ * If a deadLetterStreamId is set, tuples that a BatchAware action reports as failed individually, such as
+ * for a malformed doc, are emitted to that stream with the error and acked instead of being failed, so they
+ * don't get replayed forever.
  */
 public class SpringBolt extends BaseRichBolt {
 
@@ -30,12 +38,13 @@ public class SpringBolt extends BaseRichBolt {
   }
 
   public static enum ExecuteResult {
-    ACK, BUFFERED, IGNORED
+    ACK, BUFFERED, IGNORED, FAIL
   }
 
   protected String boltLogicBeanId;
   protected Fields outputFields;
   protected int tickRate = -1;
+  protected String deadLetterStreamId;
 
   private boolean isTickTupleAware = false;
   private transient StreamingDataAction delegate;
@@ -46,6 +55,64 @@ public class SpringBolt extends BaseRichBolt {
   // but we don't want to ack tuples until the action verifies the buffer was successfully sent
   private transient LinkedList<Tuple> bufferedTuples;
 
+  // tuples buffered by a BatchAware action are tracked per batch until the action reports the batch completed,
+  // completions can arrive from other threads so they are queued and processed on the executor thread
+  private transient Map<Object,List<BatchedTuple>> batches;
+  private transient ConcurrentLinkedQueue<CompletedBatch> completedBatches;
+  private transient Tuple currentInput;
+  private transient boolean currentInputBatched;
+  private transient int batchedTuples;
+
+  // tuples not yet acked or failed, published so groupings can favor the less loaded tasks for a shard
+  private transient int taskId;
+  private transient AtomicInteger pendingTuples;
+
+  static final class BatchedTuple {
+    final Tuple tuple;
+    final Object key;
+
+    BatchedTuple(Tuple tuple, Object key) {
+      this.tuple = tuple;
+      this.key = key;
+    }
+  }
+
+  static final class CompletedBatch {
+    final Object batchId;
+    final Throwable error;
+    final Map<Object,Throwable> failedKeys;
+
+    CompletedBatch(Object batchId, Throwable error, Map<Object,Throwable> failedKeys) {
+      this.batchId = batchId;
+      this.error = error;
+      this.failedKeys = failedKeys;
+    }
+  }
+
+  class TupleBatchListener implements BatchListener {
+    public void tupleBuffered(Object batchId, Object key) {
+      if (currentInput == null || currentInputBatched)
+        return;
+
+      List<BatchedTuple> batch = batches.get(batchId);
+      if (batch == null) {
+        batch = new LinkedList<BatchedTuple>();
+        batches.put(batchId, batch);
+      }
+      batch.add(new BatchedTuple(currentInput, key));
+      currentInputBatched = true;
+      ++batchedTuples;
+    }
+
+    public void batchCompleted(Object batchId, Throwable error) {
+      completedBatches.add(new CompletedBatch(batchId, error, null));
+    }
+
+    public void batchPartiallyFailed(Object batchId, Map<Object,Throwable> failedKeys) {
+      completedBatches.add(new CompletedBatch(batchId, null, failedKeys));
+    }
+  }
+
   public SpringBolt(String boltBeanId) {
     this(boltBeanId, null, -1);
   }
@@ -73,9 +140,19 @@ public class SpringBolt extends BaseRichBolt {
     this.collector = outputCollector;
     getStreamingDataActionBean();
     bufferedTuples = new LinkedList<Tuple>();
+    batches = new HashMap<Object,List<BatchedTuple>>();
+    completedBatches = new ConcurrentLinkedQueue<CompletedBatch>();
+    taskId = topologyContext.getThisTaskId();
+    pendingTuples = TaskLoad.register(taskId);
+    if (delegate instanceof BatchAware)
+      ((BatchAware) delegate).setBatchListener(new TupleBatchListener());
+    if (delegate instanceof StormConfAware)
+      ((StormConfAware) delegate).prepare(map);
   }
 
   public void execute(Tuple input) {
+    currentInput = input;
+    currentInputBatched = false;
     try {
       ExecuteResult result = ExecuteResult.IGNORED;
       if (isTickTuple(input)) {
@@ -85,37 +162,102 @@ public class SpringBolt extends BaseRichBolt {
         result = delegate.execute(input, collector);
       }
 
-      if (result == ExecuteResult.IGNORED) {
+      if (currentInputBatched) {
+        // acked or failed when the batch it was buffered into completes
+      } else if (result == ExecuteResult.IGNORED) {
         // bolt action ignored this tuple, so we just ack and keep processing
         collector.ack(input);
-        return;
-      }
-
-      bufferedTuples.add(input);
+      } else if (result == ExecuteResult.FAIL) {
+        // bolt action rejected this tuple without an error, such as to shed load, so fail it for replay
+        collector.fail(input);
+      } else {
+        bufferedTuples.add(input);
 
-      if (result == ExecuteResult.ACK) {
+        if (result == ExecuteResult.ACK) {
 
-        // ack the current tuple and all buffered tuples
-        try {
-          for (Tuple buffered : bufferedTuples)
-            collector.ack(buffered);
-        } finally {
-          bufferedTuples.clear();
+          // ack the current tuple and all buffered tuples
+          try {
+            for (Tuple buffered : bufferedTuples)
+              collector.ack(buffered);
+          } finally {
+            bufferedTuples.clear();
+          }
         }
       }
     } catch (Throwable exc) {
       collector.reportError(exc);
 
-      bufferedTuples.add(input);
+      if (!currentInputBatched)
+        bufferedTuples.add(input);
+
       try {
         for (Tuple buffered : bufferedTuples)
           collector.fail(buffered);
       } finally {
         bufferedTuples.clear();
       }
+    } finally {
+      currentInput = null;
+      processCompletedBatches();
+      pendingTuples.lazySet(bufferedTuples.size() + batchedTuples);
+    }
+  }
+
+  protected void processCompletedBatches() {
+    CompletedBatch completed;
+    while ((completed = completedBatches.poll()) != null) {
+      List<BatchedTuple> batch = batches.remove(completed.batchId);
+      if (batch == null)
+        continue;
+
+      batchedTuples -= batch.size();
+      if (completed.error != null) {
+        collector.reportError(completed.error);
+        for (BatchedTuple batched : batch)
+          collector.fail(batched.tuple);
+      } else if (completed.failedKeys != null && !completed.failedKeys.isEmpty()) {
+        boolean reported = false;
+        for (BatchedTuple batched : batch) {
+          Throwable error = (batched.key != null) ? completed.failedKeys.get(batched.key) : null;
+          if (error == null) {
+            collector.ack(batched.tuple);
+            continue;
+          }
+
+          if (!reported) {
+            collector.reportError(error); // just the first, to avoid flooding Storm with errors from the same batch
+            reported = true;
+          }
+          failTuple(batched.tuple, batched.key, error);
+        }
+      } else {
+        for (BatchedTuple batched : batch)
+          collector.ack(batched.tuple);
+      }
     }
   }
 
+  /**
+   * Fails a tuple that failed on its own, or sends it to the dead letter stream if there is one.
+   */
+  protected void failTuple(Tuple tuple, Object key, Throwable error) {
+    if (deadLetterStreamId == null) {
+      collector.fail(tuple);
+      return;
+    }
+
+    collector.emit(deadLetterStreamId, tuple, new Values(key, tuple.getValues(), String.valueOf(error)));
+    collector.ack(tuple);
+  }
+
+  /**
+   * Sets the action directly instead of looking it up from the Spring context, such as for testing.
+   */
+  void setStreamingDataAction(StreamingDataAction action) {
+    delegate = action;
+    isTickTupleAware = (action instanceof TickTupleAware);
+  }
+
   protected StreamingDataAction getStreamingDataActionBean() {
     if (delegate == null) {
       // Get the Bolt Logic POJO from Spring
@@ -125,9 +267,20 @@ public class SpringBolt extends BaseRichBolt {
     return delegate;
   }
 
+  public String getDeadLetterStreamId() {
+    return deadLetterStreamId;
+  }
+
+  public void setDeadLetterStreamId(String deadLetterStreamId) {
+    this.deadLetterStreamId = deadLetterStreamId;
+  }
+
   public void declareOutputFields(OutputFieldsDeclarer outputFieldsDeclarer) {
     if (outputFields != null && outputFields.size() > 0)
       outputFieldsDeclarer.declare(outputFields);
+
+    if (deadLetterStreamId != null)
+      outputFieldsDeclarer.declareStream(deadLetterStreamId, new Fields("key", "tuple", "error"));
   }
 
   @Override
@@ -140,6 +293,9 @@ public class SpringBolt extends BaseRichBolt {
 
   @Override
   public void cleanup() {
+    if (pendingTuples != null)
+      TaskLoad.unregister(taskId);
+
     StreamingDataAction sda = getStreamingDataActionBean();
     if (sda instanceof Closeable) {
       try {
@@ -148,5 +304,9 @@ public class SpringBolt extends BaseRichBolt {
         log.warn("Error when trying to close StreamingDataAction due to: "+ignore);
       }
     }
+
+    // ack or fail the tuples in batches that completed while the action was closing
+    if (completedBatches != null)
+      processCompletedBatches();
   }
 }
@@ -0,0 +1,11 @@
+package com.lucidworks.storm.spring;
+
+import java.util.Map;
+
+/**
+ * Interface to be implemented by any action bean that needs the Storm configuration of the bolt
+ * it runs in, such as the message timeout; called when the bolt is prepared.
+ */
+public interface StormConfAware {
+  void prepare(Map stormConf);
+}
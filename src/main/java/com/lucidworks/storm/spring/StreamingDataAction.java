@@ -5,6 +5,9 @@ import backtype.storm.tuple.Tuple;
 
 /**
  * Interface to a POJO that implements some action on streaming data in a Storm topology.
+ * By default, returning ACK acks the current tuple and every tuple buffered before it; actions
+ * that buffer tuples into more than one batch should implement BatchAware to have their tuples
+ * acked (or failed) per batch instead. Returning FAIL fails only the current tuple so it gets replayed.
  */
 public interface StreamingDataAction {
   SpringBolt.ExecuteResult execute(Tuple input, OutputCollector collector);
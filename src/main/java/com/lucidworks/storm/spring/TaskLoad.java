@@ -0,0 +1,34 @@
+package com.lucidworks.storm.spring;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Number of tuples each SpringBolt task in this worker has received but not yet acked or failed, so groupings
+ * can steer tuples away from tasks that are falling behind. Tasks running in other workers aren't known here.
+ */
+public class TaskLoad {
+
+  private static final ConcurrentMap<Integer,AtomicInteger> pendingTuples = new ConcurrentHashMap<Integer,AtomicInteger>();
+
+  /**
+   * Returns the counter a task publishes its number of pending tuples to.
+   */
+  public static AtomicInteger register(int taskId) {
+    AtomicInteger pending = new AtomicInteger();
+    AtomicInteger existing = pendingTuples.putIfAbsent(taskId, pending);
+    return (existing != null) ? existing : pending;
+  }
+
+  public static void unregister(int taskId) {
+    pendingTuples.remove(taskId);
+  }
+
+  /**
+   * Returns the counter for a task in this worker, or null if the task isn't running in this worker.
+   */
+  public static AtomicInteger get(int taskId) {
+    return pendingTuples.get(taskId);
+  }
+}
@@ -0,0 +1,202 @@
+package com.lucidworks.storm.utils;
+
+import com.codahale.metrics.Histogram;
+import com.google.common.io.CountingOutputStream;
+import com.ryantenney.metrics.annotation.Metric;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.client.HttpClient;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip-compresses request bodies as they are written to the socket, so the compressed payload is never
+ * buffered in memory. Requests whose length, or estimated length passed to compress, is below
+ * minCompressBytes are sent as-is; streamed requests that don't know their length up-front are
+ * compressed unless compressStreamedRequests is false.
+ * <p>
+ * Works as an HttpRequestInterceptor for clients that build their own entities, such as the HttpClient
+ * used by the CloudSolrClient (see install), in which case only requests to Solr's update handlers are
+ * compressed; or by wrapping an entity directly using compress.
+ * The compressed size of each request as a percentage of its original size is recorded in the
+ * compressionRatio histogram.
+ * <p>
+ * Note that the server must be able to decompress gzip'd request bodies (Content-Encoding: gzip);
+ * Solr does not do this out-of-the-box, so it requires a decompressing filter or proxy in front of Solr.
+ */
+public class GzipRequestCompressor implements HttpRequestInterceptor {
+
+  public static Logger log = Logger.getLogger(GzipRequestCompressor.class);
+
+  public static final String GZIP = "gzip";
+
+  @Metric
+  public Histogram compressionRatio;
+
+  protected boolean enabled = true;
+  protected long minCompressBytes = 1024L;
+  protected boolean compressStreamedRequests = true;
+  protected int bufferSize = 8192;
+
+  /**
+   * Wraps an entity to compress it while it's being written; reports the ratio once it's fully written.
+   */
+  class GzipCompressingEntity extends HttpEntityWrapper {
+
+    GzipCompressingEntity(HttpEntity wrapped) {
+      super(wrapped);
+    }
+
+    @Override
+    public Header getContentEncoding() {
+      return new BasicHeader(HTTP.CONTENT_ENCODING, GZIP);
+    }
+
+    @Override
+    public long getContentLength() {
+      return -1L;
+    }
+
+    @Override
+    public boolean isChunked() {
+      return true;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+      throw new UnsupportedOperationException("Compressed request entity can only be written");
+    }
+
+    @Override
+    public void writeTo(OutputStream outstream) throws IOException {
+      CountingOutputStream compressed = new CountingOutputStream(outstream);
+      GZIPOutputStream gzip = new GZIPOutputStream(compressed, bufferSize);
+      CountingOutputStream uncompressed = new CountingOutputStream(gzip);
+      wrappedEntity.writeTo(uncompressed);
+      gzip.finish(); // don't close the underlying socket stream
+
+      if (compressionRatio != null && uncompressed.getCount() > 0)
+        compressionRatio.update((int)(compressed.getCount() * 100L / uncompressed.getCount()));
+    }
+  }
+
+  public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+    if (!(request instanceof HttpEntityEnclosingRequest) || request.containsHeader(HTTP.CONTENT_ENCODING) ||
+        !isUpdateRequest(request))
+      return; // queries and admin requests are small, and may go to handlers that can't decompress them
+
+    HttpEntityEnclosingRequest entityRequest = (HttpEntityEnclosingRequest)request;
+    entityRequest.setEntity(compress(entityRequest.getEntity()));
+  }
+
+  /**
+   * Returns true if the request goes to an update handler, such as /update or /update/json.
+   */
+  protected boolean isUpdateRequest(HttpRequest request) {
+    String path = request.getRequestLine().getUri();
+    int query = path.indexOf('?');
+    if (query != -1)
+      path = path.substring(0, query);
+    return path.endsWith("/update") || path.contains("/update/");
+  }
+
+  /**
+   * Returns an entity that compresses the given entity as it is written, or the entity itself if it
+   * should be sent as-is.
+   */
+  public HttpEntity compress(HttpEntity entity) {
+    return compress(entity, -1L);
+  }
+
+  /**
+   * Same as compress(entity), but a streamed entity is only compressed if the estimated number of bytes it
+   * writes is at least minCompressBytes; -1 if unknown.
+   */
+  public HttpEntity compress(HttpEntity entity, long estimatedLength) {
+    if (!shouldCompress(entity, estimatedLength))
+      return entity;
+
+    return new GzipCompressingEntity(entity);
+  }
+
+  protected boolean shouldCompress(HttpEntity entity, long estimatedLength) {
+    if (!enabled || entity == null || entity.getContentEncoding() != null)
+      return false; // disabled, no body, or already encoded
+
+    long length = entity.getContentLength();
+    if (length < 0)
+      length = estimatedLength;
+    return (length < 0) ? compressStreamedRequests : length >= minCompressBytes;
+  }
+
+  /**
+   * Adds this compressor to the interceptors of the HttpClient, such as the one used by the
+   * CloudSolrClient; calling this again for the same client has no effect.
+   */
+  @SuppressWarnings("deprecation") // the clients created by SolrJ 5 are still AbstractHttpClients
+  public void install(HttpClient httpClient) {
+    if (!enabled)
+      return;
+
+    // not imported, as deprecation warnings for imports can't be suppressed
+    if (!(httpClient instanceof org.apache.http.impl.client.AbstractHttpClient)) {
+      log.warn("Cannot compress requests sent with "+httpClient.getClass().getName()+
+        ", use compress to wrap request entities instead");
+      return;
+    }
+
+    org.apache.http.impl.client.AbstractHttpClient client = (org.apache.http.impl.client.AbstractHttpClient)httpClient;
+    synchronized (client) {
+      for (int i=0; i < client.getRequestInterceptorCount(); i++) {
+        if (client.getRequestInterceptor(i) == this)
+          return; // already installed
+      }
+      // must run before the interceptor that sets the content headers from the entity
+      client.addRequestInterceptor(this, 0);
+    }
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public long getMinCompressBytes() {
+    return minCompressBytes;
+  }
+
+  public void setMinCompressBytes(long minCompressBytes) {
+    this.minCompressBytes = minCompressBytes;
+  }
+
+  public boolean isCompressStreamedRequests() {
+    return compressStreamedRequests;
+  }
+
+  public void setCompressStreamedRequests(boolean compressStreamedRequests) {
+    this.compressStreamedRequests = compressStreamedRequests;
+  }
+
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  public void setBufferSize(int bufferSize) {
+    this.bufferSize = bufferSize;
+  }
+}
@@ -23,6 +23,7 @@ environments {
 
     spring.maxBufferSize = 500
     spring.bufferTimeoutMs = 500
+    spring.maxBufferBytes = 5242880
 
     spring.fs.defaultFS = "hdfs://localhost:9000"
     spring.hdfsDirPath = "/user/timpotter/csv_files"
@@ -49,6 +50,7 @@ environments {
 
     spring.maxBufferSize = 100
     spring.bufferTimeoutMs = 500
+    spring.maxBufferBytes = 5242880
   }
 
   production {
@@ -60,5 +62,6 @@ environments {
 
     spring.maxBufferSize = 100
     spring.bufferTimeoutMs = 500
+    spring.maxBufferBytes = 5242880
   }
 }
\ No newline at end of file
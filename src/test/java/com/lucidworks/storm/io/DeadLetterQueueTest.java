@@ -0,0 +1,118 @@
+package com.lucidworks.storm.io;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests that the DeadLetterQueue re-drives batches without one batch holding up the others.
+ */
+public class DeadLetterQueueTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  protected byte[] bytes(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  protected DeadLetterQueue createQueue() throws IOException {
+    DeadLetterQueue dlq = new DeadLetterQueue();
+    dlq.setDir(tmp.newFolder("dlq").getAbsolutePath());
+    dlq.setRedriveBackoffMs(10L);
+    dlq.setMaxRedriveBackoffMs(100L);
+    return dlq;
+  }
+
+  /**
+   * Records the payloads it re-drives; payloads starting with "down" find their target unhealthy.
+   */
+  static class RecordingRedriveHandler implements DeadLetterQueue.RedriveHandler {
+    final Set<String> redriven = Collections.synchronizedSet(new HashSet<String>());
+    final CountDownLatch done;
+    volatile boolean healthy = false;
+
+    RecordingRedriveHandler(int numBatches) {
+      this.done = new CountDownLatch(numBatches);
+    }
+
+    public boolean redrive(byte[] payload) throws Exception {
+      String batch = new String(payload, StandardCharsets.UTF_8);
+      if (batch.startsWith("down") && !healthy)
+        return false;
+      if (batch.startsWith("error"))
+        throw new RuntimeException("oops");
+
+      redriven.add(batch);
+      done.countDown();
+      return true;
+    }
+  }
+
+  @Test
+  public void testRedrive() throws Exception {
+    DeadLetterQueue dlq = createQueue();
+    dlq.append("test", 1, bytes("down1"));
+    dlq.append("test", 1, bytes("doc2"));
+
+    // the first batch finds the target unhealthy, so it's re-driven again after the second
+    RecordingRedriveHandler handler = new RecordingRedriveHandler(2);
+    dlq.setRedriveHandler("test", handler);
+    long waitUntil = System.currentTimeMillis() + 5000L;
+    while (!handler.redriven.contains("doc2") && System.currentTimeMillis() < waitUntil)
+      Thread.sleep(10L);
+    assertEquals(Collections.singleton("doc2"), handler.redriven);
+
+    handler.healthy = true;
+    assertTrue(handler.done.await(5, TimeUnit.SECONDS));
+    assertTrue(handler.redriven.contains("down1"));
+    dlq.close();
+  }
+
+  @Test
+  public void testStuckBatchesDontBlockOthers() throws Exception {
+    DeadLetterQueue dlq = createQueue();
+    dlq.append("other", 1, bytes("no handler"));
+    dlq.append("test", 1, bytes("down"));
+    dlq.append("test", 1, bytes("error"));
+    // unreadable records are dropped rather than killing the re-drive thread
+    dlq.getLog().append(bytes("x"));
+    for (int b=0; b < 5; b++)
+      dlq.append("test", 1, bytes("doc"+b));
+
+    RecordingRedriveHandler handler = new RecordingRedriveHandler(5);
+    dlq.setRedriveHandler("test", handler);
+    assertTrue(handler.done.await(5, TimeUnit.SECONDS));
+    assertEquals(5, handler.redriven.size());
+    dlq.close();
+  }
+
+  @Test
+  public void testMaxBytes() throws Exception {
+    DeadLetterQueue dlq = createQueue();
+    dlq.setSegmentSize(1024);
+    dlq.setMaxBytes(2048L);
+
+    // each batch takes up most of a segment
+    byte[] payload = new byte[600];
+    dlq.append("test", 1, payload);
+    dlq.append("test", 1, payload);
+    try {
+      dlq.append("test", 1, payload);
+      fail("queue should be full");
+    } catch (IOException expected) {}
+    dlq.close();
+  }
+}
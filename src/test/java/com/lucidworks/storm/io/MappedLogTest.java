@@ -0,0 +1,84 @@
+package com.lucidworks.storm.io;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests the MappedLog.
+ */
+public class MappedLogTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  protected byte[] bytes(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  protected String read(MappedLog mappedLog) throws Exception {
+    byte[] data = mappedLog.peek();
+    if (data == null)
+      return null;
+    mappedLog.advance();
+    return new String(data, StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testAppendReadAndReopen() throws Exception {
+    File dir = tmp.newFolder("log");
+    MappedLog mappedLog = new MappedLog(dir, 64);
+    assertNull(mappedLog.peek());
+
+    // small segments so the log rolls over several times
+    for (int r=0; r < 20; r++)
+      mappedLog.append(bytes("record-"+r));
+    for (int r=0; r < 5; r++)
+      assertEquals("record-"+r, read(mappedLog));
+    mappedLog.close();
+
+    // reading resumes where it left off
+    mappedLog = new MappedLog(dir, 64);
+    assertEquals("record-5", new String(mappedLog.peek(), StandardCharsets.UTF_8));
+    assertEquals("record-5", read(mappedLog));
+    mappedLog.append(bytes("a record bigger than the segment size of the log"));
+    for (int r=6; r < 20; r++)
+      assertEquals("record-"+r, read(mappedLog));
+    assertEquals("a record bigger than the segment size of the log", read(mappedLog));
+    assertNull(mappedLog.peek());
+
+    // consumed segments were deleted
+    assertEquals(1, dir.listFiles().length - 1);
+    mappedLog.close();
+  }
+
+  @Test
+  public void testRecoverAfterPartialWrite() throws Exception {
+    File dir = tmp.newFolder("log");
+    MappedLog mappedLog = new MappedLog(dir, 1024);
+    mappedLog.append(bytes("first"));
+    mappedLog.append(bytes("second"));
+    mappedLog.close();
+
+    // corrupt the last record as if the process died while writing it
+    File segment = new File(dir, String.format("%020d%s", 0, MappedLog.SEGMENT_FILE_SUFFIX));
+    RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+    raf.seek(MappedLog.RECORD_HEADER_BYTES + 5 + MappedLog.RECORD_HEADER_BYTES);
+    raf.write(bytes("XX"));
+    raf.close();
+
+    mappedLog = new MappedLog(dir, 1024);
+    mappedLog.append(bytes("third"));
+    assertEquals("first", read(mappedLog));
+    assertEquals("third", read(mappedLog));
+    assertNull(read(mappedLog));
+    mappedLog.close();
+  }
+}
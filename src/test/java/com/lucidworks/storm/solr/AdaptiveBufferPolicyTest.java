@@ -0,0 +1,59 @@
+package com.lucidworks.storm.solr;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the AdaptiveBufferPolicy
+ */
+public class AdaptiveBufferPolicyTest {
+
+  static final long MS = TimeUnit.NANOSECONDS.convert(1, TimeUnit.MILLISECONDS);
+
+  @Test
+  public void testAdjustsToObservedLatency() throws Exception {
+    AdaptiveBufferPolicy policy = new AdaptiveBufferPolicy();
+    policy.setInitialBufferSize(100);
+    policy.setTargetLatencyMs(200);
+
+    String coll = "test";
+    assertEquals(100, policy.getTargetBufferSize(coll));
+
+    // fast, full batches let the target grow
+    policy.onBatchSent(coll, 100, 100 * 500, 50 * MS, true);
+    assertEquals(125, policy.getTargetBufferSize(coll));
+
+    // a batch flushed by the timeout doesn't grow the target
+    policy.onBatchSent(coll, 20, 20 * 500, 10 * MS, true);
+    assertEquals(125, policy.getTargetBufferSize(coll));
+
+    // slow batches shrink it in proportion to the latency overshoot
+    policy.onBatchSent(coll, 125, 125 * 500, 400 * MS, true);
+    assertEquals(62, policy.getTargetBufferSize(coll));
+
+    // failures back off by half but never below the min
+    policy.setMinBufferSize(40);
+    policy.onBatchSent(coll, 62, 62 * 500, 10 * MS, false);
+    assertEquals(40, policy.getTargetBufferSize(coll));
+
+    // other collections are tracked separately
+    assertEquals(100, policy.getTargetBufferSize("other"));
+  }
+
+  @Test
+  public void testCapsBatchBytes() throws Exception {
+    AdaptiveBufferPolicy policy = new AdaptiveBufferPolicy();
+    policy.setInitialBufferSize(100);
+    policy.setMaxRequestBytes(1024 * 1024);
+
+    // 100 docs of 64K each is way over the 1M ceiling
+    String coll = "big";
+    policy.onBatchSent(coll, 100, 100 * 65536L, 10 * MS, true);
+    int target = policy.getTargetBufferSize(coll);
+    assertTrue("expected target <= 16 but was "+target, target <= 16);
+  }
+}
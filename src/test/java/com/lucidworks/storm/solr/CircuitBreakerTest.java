@@ -0,0 +1,141 @@
+package com.lucidworks.storm.solr;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+
+import java.net.ConnectException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests the CircuitBreaker and how the DefaultUpdateRequestStrategy uses it.
+ */
+public class CircuitBreakerTest {
+
+  @Test
+  public void testOpenProbeAndClose() throws Exception {
+    CircuitBreaker circuitBreaker = new CircuitBreaker("test", 2, 50L);
+    assertTrue(circuitBreaker.allowRequest());
+
+    circuitBreaker.onFailure();
+    assertFalse(circuitBreaker.isOpen());
+    circuitBreaker.onFailure();
+    assertTrue(circuitBreaker.isOpen());
+    assertFalse(circuitBreaker.allowRequest());
+
+    Thread.sleep(100L);
+
+    // probe is due, only one request gets through
+    assertFalse(circuitBreaker.isOpen());
+    assertTrue(circuitBreaker.allowRequest());
+    assertFalse(circuitBreaker.allowRequest());
+    assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+
+    // docs keep being buffered rather than shed while the probe is in flight
+    assertFalse(circuitBreaker.isOpen());
+
+    // failed probe re-opens right away
+    circuitBreaker.onFailure();
+    assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+
+    Thread.sleep(100L);
+    assertTrue(circuitBreaker.allowRequest());
+    circuitBreaker.onSuccess();
+    assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    assertTrue(circuitBreaker.allowRequest());
+  }
+
+  @Test
+  public void testReopenAfterResetTimeout() throws Exception {
+    CircuitBreaker circuitBreaker = new CircuitBreaker("test", 1, 50L);
+    circuitBreaker.onFailure();
+    assertTrue(circuitBreaker.isOpen());
+
+    Thread.sleep(100L);
+
+    // callers that only check isOpen send again once the reset timeout passes ...
+    assertFalse(circuitBreaker.isOpen());
+
+    // ... and a failure re-opens the circuit for another reset timeout
+    circuitBreaker.onFailure();
+    assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+    assertTrue(circuitBreaker.isOpen());
+
+    Thread.sleep(100L);
+    assertFalse(circuitBreaker.isOpen());
+    circuitBreaker.onSuccess();
+    assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+  }
+
+  @Test
+  public void testDisabledByDefault() throws Exception {
+    SolrClient solrClient = mock(SolrClient.class);
+    when(solrClient.request(any(UpdateRequest.class), (String)isNull())).thenThrow(
+      new SolrServerException("Server refused connection", new ConnectException("Connection refused")));
+
+    DefaultUpdateRequestStrategy strategy = new DefaultUpdateRequestStrategy();
+    strategy.setMaxRetryAttempts(0);
+    for (int r=0; r < 10; r++) {
+      try {
+        strategy.sendUpdateRequest(solrClient, "test", new UpdateRequest());
+        fail("request should have failed");
+      } catch (CircuitOpenException coe) {
+        fail("circuit breakers should be disabled by default");
+      } catch (RuntimeException expected) {}
+    }
+    assertFalse(strategy.isCircuitOpen("test", null));
+    verify(solrClient, times(10)).request(any(UpdateRequest.class), (String)isNull());
+  }
+
+  @Test
+  public void testFailFastWhenOpen() throws Exception {
+    SolrClient solrClient = mock(SolrClient.class);
+    when(solrClient.request(any(UpdateRequest.class), (String)isNull())).thenThrow(
+      new SolrServerException("Server refused connection", new ConnectException("Connection refused")));
+
+    DefaultUpdateRequestStrategy strategy = new DefaultUpdateRequestStrategy();
+    strategy.setMaxRetryAttempts(0);
+    strategy.setCircuitBreakerFailureThreshold(3);
+    strategy.setCircuitBreakerResetMs(60000L);
+
+    for (int r=0; r < 3; r++) {
+      try {
+        strategy.sendUpdateRequest(solrClient, "test", new UpdateRequest());
+        fail("request should have failed");
+      } catch (CircuitOpenException coe) {
+        fail("circuit should not be open yet");
+      } catch (RuntimeException expected) {}
+    }
+
+    assertTrue(strategy.isCircuitOpen("test", null));
+    assertTrue(strategy.isCircuitOpen("test", "shard1"));
+    assertFalse(strategy.isCircuitOpen("other", null));
+
+    try {
+      strategy.sendUpdateRequest(solrClient, "test", new UpdateRequest());
+      fail("request should have been rejected");
+    } catch (CircuitOpenException expected) {}
+    verify(solrClient, times(3)).request(any(UpdateRequest.class), (String)isNull());
+
+    // shard circuits are driven by the caller
+    strategy.recordResult("other", "shard1", new SolrServerException("oops", new ConnectException()));
+    assertFalse(strategy.isCircuitOpen("other", "shard1"));
+    for (int r=0; r < 2; r++)
+      strategy.recordResult("other", "shard1", new SolrServerException("oops", new ConnectException()));
+    assertTrue(strategy.isCircuitOpen("other", "shard1"));
+    assertFalse(strategy.isCircuitOpen("other", "shard2"));
+    assertFalse(strategy.isCircuitOpen("other", null));
+  }
+}
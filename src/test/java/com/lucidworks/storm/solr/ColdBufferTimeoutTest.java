@@ -0,0 +1,60 @@
+package com.lucidworks.storm.solr;
+
+import backtype.storm.Config;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests that batches for cold collections are acked before Storm's message timeout replays their tuples.
+ */
+public class ColdBufferTimeoutTest {
+
+  @Test
+  public void testColdBatchAckedWithinMessageTimeout() throws Exception {
+    TolerantSolrBoltActionTest.RecordingBatchListener listener = new TolerantSolrBoltActionTest.RecordingBatchListener();
+    TolerantSolrBoltActionTest.RejectingUpdateRequestStrategy strategy = new TolerantSolrBoltActionTest.RejectingUpdateRequestStrategy();
+    ColdCollectionAssignmentStrategy coldStrategy = mock(ColdCollectionAssignmentStrategy.class);
+    when(coldStrategy.isColdCollection("late")).thenReturn(true);
+
+    SolrBoltAction sba = new SolrBoltAction(mock(CloudSolrClient.class));
+    sba.setUpdateRequestStrategy(strategy);
+    sba.setDocumentAssignmentStrategy(coldStrategy);
+    sba.setBatchListener(listener);
+    sba.setColdBufferTimeoutMs(30000L);
+
+    Map<String,Object> stormConf = new HashMap<String,Object>();
+    stormConf.put(Config.TOPOLOGY_MESSAGE_TIMEOUT_SECS, 2);
+    stormConf.put(Config.TOPOLOGY_TICK_TUPLE_FREQ_SECS, 1);
+    sba.prepare(stormConf);
+    assertEquals(1000L, sba.getColdBufferTimeoutMs());
+
+    long startNanos = System.nanoTime();
+    SolrInputDocument doc = new SolrInputDocument();
+    doc.setField("id", "late1");
+    sba.bufferDoc("late", doc);
+
+    // tick until the cold buffer is flushed, or well past the message timeout
+    long elapsedMs = 0L;
+    while (listener.completed.isEmpty() && elapsedMs < 5000L) {
+      Thread.sleep(100L);
+      sba.onTick();
+      elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    assertEquals(1, listener.completed.size());
+    assertNull(listener.completed.get(0)[1]);
+    assertTrue(strategy.indexed.contains("late1"));
+    assertTrue("cold batch took "+elapsedMs+"ms", elapsedMs < 2000L);
+  }
+}
@@ -0,0 +1,200 @@
+package com.lucidworks.storm.solr;
+
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Tests that docs are assigned to the same time frame collections as by walking forward from the start of
+ * the day with a Calendar, including across DST changes.
+ */
+public class CollectionPerTimeFrameAssignmentStrategyTest {
+
+  protected CollectionPerTimeFrameAssignmentStrategy strategy(int timeFrame, TimeUnit timeUnit, String timezoneId) {
+    CollectionPerTimeFrameAssignmentStrategy strategy = new CollectionPerTimeFrameAssignmentStrategy();
+    strategy.setTimeFrame(timeFrame);
+    strategy.setTimeUnit(timeUnit);
+    strategy.setTimezoneId(timezoneId);
+    strategy.setDateTimePattern("yyyy-MM-dd_HH-mm");
+    strategy.setCollectionNameBase("test_");
+    return strategy;
+  }
+
+  protected String expectedCollection(long timeMs, long startFrom, int timeFrame, TimeUnit timeUnit, String timezoneId) {
+    long timeFrameMs = TimeUnit.MILLISECONDS.convert(timeFrame, timeUnit);
+    long prev = startFrom;
+    long next = startFrom;
+    while (timeMs > next) {
+      prev = next;
+      next = prev + timeFrameMs;
+    }
+    SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd_HH-mm");
+    sdf.setTimeZone(TimeZone.getTimeZone(timezoneId));
+    return "test_"+sdf.format(new Date(prev));
+  }
+
+  protected long startOfDay(long timeMs, String timezoneId) {
+    Calendar cal = Calendar.getInstance();
+    cal.setTimeZone(TimeZone.getTimeZone(timezoneId));
+    cal.setTimeInMillis(timeMs);
+    cal.set(Calendar.HOUR_OF_DAY, 0);
+    cal.set(Calendar.MINUTE, 0);
+    cal.set(Calendar.SECOND, 0);
+    cal.set(Calendar.MILLISECOND, 0);
+    return cal.getTimeInMillis();
+  }
+
+  @Test
+  public void testSameBucketsAsCalendar() throws Exception {
+    Random random = new Random(42);
+    long from = 1451606400000L; // 2016-01-01T00:00:00Z
+    String[] zones = new String[]{"UTC", "America/New_York", "Europe/Berlin", "Asia/Kolkata", "America/Sao_Paulo"};
+    int[][] frames = new int[][]{{5, 0}, {12, 1}, {7, 1}, {1, 2}};
+    TimeUnit[] units = new TimeUnit[]{TimeUnit.MINUTES, TimeUnit.HOURS, TimeUnit.DAYS};
+    for (String zone : zones) {
+      for (int[] frame : frames) {
+        TimeUnit timeUnit = units[frame[1]];
+        CollectionPerTimeFrameAssignmentStrategy strategy = strategy(frame[0], timeUnit, zone);
+        for (int i=0; i < 5000; i++) {
+          long timeMs = from + (long)(random.nextDouble() * 366 * 86400000L);
+          if (i % 10 == 0) // right on a boundary
+            timeMs = startOfDay(timeMs, zone) + (i % 3) * TimeUnit.MILLISECONDS.convert(frame[0], timeUnit);
+          String expected = expectedCollection(timeMs, startOfDay(timeMs, zone), frame[0], timeUnit, zone);
+          assertEquals(zone+" "+frame[0]+" "+timeUnit+" at "+timeMs, expected, strategy.getCollectionForTime(timeMs));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testDstStartsAtMidnight() throws Exception {
+    // in Sao Paulo, clocks went from 00:00 straight to 01:00 on 2000-10-08, so the day starts at 01:00
+    CollectionPerTimeFrameAssignmentStrategy strategy = strategy(1, TimeUnit.HOURS, "America/Sao_Paulo");
+    long dayStart = 970974000000L; // 2000-10-08T03:00:00Z
+    long hourMs = TimeUnit.HOURS.toMillis(1);
+    assertEquals(dayStart, strategy.getStartOfDay(dayStart));
+    assertEquals(dayStart, strategy.getStartOfDay(dayStart + 11 * hourMs));
+    assertEquals(dayStart, strategy.getStartOfDay(dayStart + 20 * hourMs + 59 * 60000L));
+
+    assertEquals("test_2000-10-08_01-00", strategy.getCollectionForTime(dayStart + 1L));
+    assertEquals("test_2000-10-08_01-00", strategy.getCollectionForTime(dayStart + hourMs));
+    assertEquals("test_2000-10-08_12-00", strategy.getCollectionForTime(dayStart + 11 * hourMs + 1L));
+    // the last minute before the gap is still on the previous day
+    assertEquals("test_2000-10-07_23-00", strategy.getCollectionForTime(dayStart - 60000L));
+  }
+
+  @Test
+  public void testMultiDayFramesOutOfOrder() throws Exception {
+    CollectionPerTimeFrameAssignmentStrategy strategy = strategy(7, TimeUnit.DAYS, TimeZone.getDefault().getID());
+    strategy.setStartDate("2016-01-04");
+    long startFrom = new SimpleDateFormat("yyyy-MM-dd").parse("2016-01-04").getTime();
+    String zone = TimeZone.getDefault().getID();
+
+    long later = startFrom + TimeUnit.DAYS.toMillis(30) + 1000L;
+    long earlier = startFrom + TimeUnit.DAYS.toMillis(3);
+    assertEquals(expectedCollection(later, startFrom, 7, TimeUnit.DAYS, zone), strategy.getCollectionForTime(later));
+    // the start date is not moved forward by the later doc
+    assertEquals(expectedCollection(earlier, startFrom, 7, TimeUnit.DAYS, zone), strategy.getCollectionForTime(earlier));
+    assertEquals(expectedCollection(startFrom, startFrom, 7, TimeUnit.DAYS, zone), strategy.getCollectionForTime(startFrom));
+  }
+
+  @Test
+  public void testNextTimeFrameStart() throws Exception {
+    CollectionPerTimeFrameAssignmentStrategy strategy = strategy(7, TimeUnit.HOURS, "UTC");
+    long midnight = 1451606400000L; // 2016-01-01T00:00:00Z
+    long hourMs = TimeUnit.HOURS.toMillis(1);
+    assertEquals(midnight + 7 * hourMs, strategy.getNextTimeFrameStart(midnight));
+    assertEquals(midnight + 21 * hourMs, strategy.getNextTimeFrameStart(midnight + 14 * hourMs));
+    // the last frame of the day is cut short at midnight
+    assertEquals(midnight + 24 * hourMs, strategy.getNextTimeFrameStart(midnight + 21 * hourMs));
+  }
+
+  protected SolrInputDocument doc(long timeMs) {
+    SolrInputDocument doc = new SolrInputDocument();
+    doc.setField("id", String.valueOf(timeMs));
+    doc.setField("ts", new Date(timeMs));
+    return doc;
+  }
+
+  @Test
+  public void testLateDocs() throws Exception {
+    CollectionPerTimeFrameAssignmentStrategy strategy = new CollectionPerTimeFrameAssignmentStrategy() {
+      @Override
+      protected void checkCollectionExists(CloudSolrClient cloudSolrClient, String collection) {}
+    };
+    strategy.setTimeFrame(1);
+    strategy.setTimeUnit(TimeUnit.HOURS);
+    strategy.setDateTimePattern("HH");
+    strategy.setCollectionNameBase("test_");
+    strategy.setFieldName("ts");
+    strategy.setPreCreateTimeFrames(0);
+    strategy.setLatenessWindowMs(TimeUnit.HOURS.toMillis(2));
+    CloudSolrClient cloudSolrClient = mock(CloudSolrClient.class);
+
+    long midnight = 1451606400000L; // 2016-01-01T00:00:00Z
+    long minuteMs = TimeUnit.MINUTES.toMillis(1);
+    assertEquals("test_10", strategy.getCollectionForDoc(cloudSolrClient, doc(midnight + 630 * minuteMs)));
+    assertFalse(strategy.isColdCollection("test_10"));
+
+    // late docs still go to their own time frame, which is cold once all of it is late
+    assertEquals("test_05", strategy.getCollectionForDoc(cloudSolrClient, doc(midnight + 330 * minuteMs)));
+    assertTrue(strategy.isColdCollection("test_05"));
+    assertEquals("test_08", strategy.getCollectionForDoc(cloudSolrClient, doc(midnight + 500 * minuteMs)));
+    assertFalse(strategy.isColdCollection("test_08"));
+
+    // or to a catch-all collection
+    strategy.setLateCollection("test_late");
+    assertEquals("test_late", strategy.getCollectionForDoc(cloudSolrClient, doc(midnight + 330 * minuteMs)));
+    assertTrue(strategy.isColdCollection("test_late"));
+    assertEquals("test_08", strategy.getCollectionForDoc(cloudSolrClient, doc(midnight + 520 * minuteMs)));
+    strategy.close();
+  }
+
+  @Test
+  public void testFarFutureDocIgnoredForLateness() throws Exception {
+    CollectionPerTimeFrameAssignmentStrategy strategy = new CollectionPerTimeFrameAssignmentStrategy() {
+      @Override
+      protected void checkCollectionExists(CloudSolrClient cloudSolrClient, String collection) {}
+    };
+    strategy.setTimeFrame(1);
+    strategy.setTimeUnit(TimeUnit.HOURS);
+    strategy.setDateTimePattern("yyyy-MM-dd_HH");
+    strategy.setCollectionNameBase("test_");
+    strategy.setFieldName("ts");
+    strategy.setPreCreateTimeFrames(0);
+    strategy.setLatenessWindowMs(TimeUnit.HOURS.toMillis(2));
+    strategy.setLateCollection("test_late");
+    CloudSolrClient cloudSolrClient = mock(CloudSolrClient.class);
+
+    long nowMs = System.currentTimeMillis();
+    long hourMs = TimeUnit.HOURS.toMillis(1);
+    assertFalse("test_late".equals(strategy.getCollectionForDoc(cloudSolrClient, doc(nowMs))));
+
+    // a doc from a producer whose clock is years ahead still gets its own collection ...
+    long farFuture = nowMs + TimeUnit.DAYS.toMillis(3650);
+    assertEquals(strategy.getCollectionForTime(farFuture), strategy.getCollectionForDoc(cloudSolrClient, doc(farFuture)));
+
+    // ... but doesn't make current docs late
+    assertFalse("test_late".equals(strategy.getCollectionForDoc(cloudSolrClient, doc(nowMs + 1000L))));
+    assertFalse(strategy.isColdCollection(strategy.getCollectionForTime(nowMs)));
+    assertEquals("test_late", strategy.getCollectionForDoc(cloudSolrClient, doc(nowMs - 3 * hourMs)));
+
+    // unless all timestamps are trusted
+    strategy.setMaxFutureMs(-1L);
+    strategy.getCollectionForDoc(cloudSolrClient, doc(farFuture));
+    assertEquals("test_late", strategy.getCollectionForDoc(cloudSolrClient, doc(nowMs)));
+    strategy.close();
+  }
+}
@@ -3,9 +3,11 @@ package com.lucidworks.storm.solr;
 import backtype.storm.tuple.Tuple;
 import com.lucidworks.storm.spring.SpringBolt;
 import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.request.CollectionAdminRequest;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrInputDocument;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -95,5 +97,32 @@ public class CollectionPerTimeFrameSolrBoltActionTest extends TestSolrCloudClust
     assertEquals("foo", doc.getFirstValue("text_s"));
     assertEquals(new Integer(testDoc.number), doc.getFirstValue("number_i"));
     assertTrue(doc.getFirstValue("timestamp_tdt") != null);
+
+    // the collection for the next time frame is created ahead of time in the background
+    String nextCollection = "test_2015-12-01-01-10";
+    long waitUntil = System.currentTimeMillis() + 60000L;
+    while (!cloudSolrClient.getZkStateReader().getClusterState().hasCollection(nextCollection) &&
+           System.currentTimeMillis() < waitUntil) {
+      Thread.sleep(500L);
+      cloudSolrClient.getZkStateReader().updateClusterState();
+    }
+    assertTrue(cloudSolrClient.getZkStateReader().getClusterState().hasCollection(nextCollection));
+
+    // known collections are checked locally, until they're deleted
+    assertTrue(strat.isKnownCollection("test_2015-12-01-01-05"));
+    SolrInputDocument nextDoc = new SolrInputDocument();
+    nextDoc.setField("id", "2");
+    nextDoc.setField("timestamp_tdt", ISO_8601.parse("2015-12-01T01:12:00.000Z"));
+    assertEquals(nextCollection, strat.getCollectionForDoc(cloudSolrClient, nextDoc));
+    assertTrue(strat.isKnownCollection(nextCollection));
+
+    CollectionAdminRequest.Delete deleteCmd = new CollectionAdminRequest.Delete();
+    deleteCmd.setCollectionName(nextCollection);
+    cloudSolrClient.request(deleteCmd);
+    waitUntil = System.currentTimeMillis() + 30000L;
+    while (strat.isKnownCollection(nextCollection) && System.currentTimeMillis() < waitUntil)
+      Thread.sleep(200L);
+    assertFalse(strat.isKnownCollection(nextCollection));
+    strat.close();
   }
 }
@@ -0,0 +1,88 @@
+package com.lucidworks.storm.solr;
+
+import com.lucidworks.storm.spring.BatchListener;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Tests that a tick sends the buffers for several collections concurrently and waits for all of them.
+ */
+public class ConcurrentFlushTest {
+
+  static class SlowUpdateRequestStrategy implements SolrUpdateRequestStrategy {
+    AtomicInteger inFlight = new AtomicInteger();
+    AtomicInteger maxInFlight = new AtomicInteger();
+
+    public NamedList<Object> sendUpdateRequest(SolrClient solrClient, String collection, SolrRequest req) {
+      int current = inFlight.incrementAndGet();
+      synchronized (maxInFlight) {
+        maxInFlight.set(Math.max(maxInFlight.get(), current));
+      }
+      try {
+        Thread.sleep(200L);
+      } catch (InterruptedException ie) {
+        Thread.interrupted();
+      } finally {
+        inFlight.decrementAndGet();
+      }
+      return new NamedList<Object>();
+    }
+  }
+
+  @Test
+  public void testTickFlushesCollectionsConcurrently() throws Exception {
+    final Map<Object,Object> completed = new ConcurrentHashMap<Object,Object>();
+    final Object ok = new Object();
+    SlowUpdateRequestStrategy strategy = new SlowUpdateRequestStrategy();
+
+    SolrBoltAction sba = new SolrBoltAction(mock(CloudSolrClient.class));
+    sba.setMaxBufferSize(100);
+    sba.setBufferTimeoutMs(10L);
+    sba.setMaxConcurrentFlushes(4);
+    sba.setUpdateRequestStrategy(strategy);
+    sba.setBatchListener(new BatchListener() {
+      public void tupleBuffered(Object batchId, Object key) {}
+
+      public void batchCompleted(Object batchId, Throwable error) {
+        completed.put(batchId, (error != null) ? error : ok);
+      }
+
+      public void batchPartiallyFailed(Object batchId, Map<Object,Throwable> failedKeys) {
+        completed.put(batchId, failedKeys.values().iterator().next());
+      }
+    });
+
+    for (int c=0; c < 4; c++) {
+      SolrInputDocument doc = new SolrInputDocument();
+      doc.setField("id", "doc"+c);
+      sba.bufferDoc("collection"+c, doc);
+    }
+    assertTrue(completed.isEmpty());
+    Thread.sleep(20L);
+
+    long startMs = System.currentTimeMillis();
+    sba.onTick();
+    long tickMs = System.currentTimeMillis() - startMs;
+
+    // all batches sent before the tick returns
+    assertEquals(4, completed.size());
+    for (Object result : completed.values())
+      assertTrue(result == ok);
+    assertTrue("expected concurrent flushes", strategy.maxInFlight.get() > 1);
+    assertTrue("tick took "+tickMs+"ms", tickMs < 4 * 200L);
+
+    sba.close();
+  }
+}
@@ -0,0 +1,132 @@
+package com.lucidworks.storm.solr;
+
+import com.lucidworks.storm.io.DeadLetterQueue;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Tests that the SolrBoltAction writes docs it can't send to the dead letter queue, and re-drives them.
+ */
+public class DeadLetterSolrBoltActionTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  /**
+   * Records the size of each batch written to the queue.
+   */
+  static class RecordingDeadLetterQueue extends DeadLetterQueue {
+    List<Integer> batches = new ArrayList<Integer>();
+
+    @Override
+    public void append(String target, int numDocs, byte[] payload) throws IOException {
+      super.append(target, numDocs, payload);
+      batches.add(numDocs);
+    }
+  }
+
+  /**
+   * Keeps the circuit for every collection open.
+   */
+  static class OpenCircuitUpdateRequestStrategy implements CircuitBreakingUpdateRequestStrategy {
+    public NamedList<Object> sendUpdateRequest(SolrClient solrClient, String collection, SolrRequest req) {
+      throw new CircuitOpenException("Circuit for "+collection+" is open");
+    }
+
+    public boolean isCircuitOpen(String collection, String shard) {
+      return true;
+    }
+
+    public void recordResult(String collection, String shard, Throwable error) {}
+  }
+
+  protected SolrInputDocument doc(String id) {
+    SolrInputDocument doc = new SolrInputDocument();
+    doc.setField("id", id);
+    return doc;
+  }
+
+  @Test
+  public void testDeadLetteredBatchRedriven() throws Exception {
+    TolerantSolrBoltActionTest.RecordingBatchListener listener = new TolerantSolrBoltActionTest.RecordingBatchListener();
+    final TolerantSolrBoltActionTest.RejectingUpdateRequestStrategy strategy =
+      new TolerantSolrBoltActionTest.RejectingUpdateRequestStrategy();
+    final boolean[] down = new boolean[]{true};
+
+    SolrBoltAction sba = new SolrBoltAction(mock(CloudSolrClient.class));
+    sba.setMaxBufferSize(5);
+    sba.setUpdateRequestStrategy(new SolrUpdateRequestStrategy() {
+      public NamedList<Object> sendUpdateRequest(SolrClient solrClient, String collection, SolrRequest req) {
+        if (down[0])
+          throw new SolrException(SolrException.ErrorCode.SERVICE_UNAVAILABLE, "No live SolrServers");
+        return strategy.sendUpdateRequest(solrClient, collection, req);
+      }
+    });
+    sba.setBatchListener(listener);
+
+    DeadLetterQueue dlq = new DeadLetterQueue();
+    dlq.setDir(tmp.newFolder("dlq").getAbsolutePath());
+    dlq.setRedriveBackoffMs(10L);
+    sba.setDeadLetterQueue(dlq);
+
+    for (int d=0; d < 5; d++)
+      sba.bufferDoc("test", doc((d == 2) ? "bad2" : "doc"+d));
+
+    // the failed batch went to the dead letter queue so its tuples are acked
+    assertEquals(1, listener.completed.size());
+    assertNull(listener.completed.get(0)[1]);
+
+    // re-driven once Solr is back, leaving out the bad doc
+    down[0] = false;
+    long waitUntil = System.currentTimeMillis() + 5000L;
+    while (strategy.indexed.size() < 4 && System.currentTimeMillis() < waitUntil)
+      Thread.sleep(20L);
+    assertEquals(4, strategy.indexed.size());
+    assertTrue(strategy.indexed.contains("doc4"));
+
+    dlq.close();
+  }
+
+  @Test
+  public void testShedDocsDeadLetteredInBatches() throws Exception {
+    TolerantSolrBoltActionTest.RecordingBatchListener listener = new TolerantSolrBoltActionTest.RecordingBatchListener();
+    SolrBoltAction sba = new SolrBoltAction(mock(CloudSolrClient.class));
+    sba.setMaxBufferSize(10);
+    sba.setUpdateRequestStrategy(new OpenCircuitUpdateRequestStrategy());
+    sba.setBatchListener(listener);
+
+    RecordingDeadLetterQueue dlq = new RecordingDeadLetterQueue();
+    dlq.setDir(tmp.newFolder("dlq").getAbsolutePath());
+    sba.setDeadLetterQueue(dlq);
+
+    for (int d=0; d < 25; d++)
+      sba.shedDoc("test", null, doc("doc"+d));
+
+    // one record per full batch of shed docs, and the rest when the action closes
+    assertEquals(2, dlq.batches.size());
+    sba.close();
+    assertEquals(3, dlq.batches.size());
+    assertEquals(5, dlq.batches.get(2).intValue());
+    assertEquals(3, listener.completed.size());
+    for (Object[] completed : listener.completed)
+      assertNull(completed[1]);
+
+    dlq.close();
+  }
+}
@@ -0,0 +1,130 @@
+package com.lucidworks.storm.solr;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests auto-mapping objects to dynamic fields with the DefaultSolrInputDocumentMapper.
+ */
+public class DefaultSolrInputDocumentMapperTest {
+
+  public static class TestBean {
+    public String title;
+    public int count;
+    public String id = "ignored";
+    public String shadowed;
+    private Date createdOn;
+    private double score;
+
+    public Date getCreatedOn() {
+      return createdOn;
+    }
+
+    public double getScore() {
+      return score;
+    }
+
+    public String getShadowed() {
+      return "getter";
+    }
+
+    public Object getUnmapped() {
+      return new Object();
+    }
+  }
+
+  public static class MultiValuedBean {
+    public int[] counts;
+    public String[] tags;
+    public List<Long> ids;
+    public Collection values;
+    public byte[] data;
+  }
+
+  @Test
+  public void testAutoMap() throws Exception {
+    DefaultSolrInputDocumentMapper mapper = new DefaultSolrInputDocumentMapper();
+
+    TestBean bean = new TestBean();
+    bean.title = "hello";
+    bean.count = 3;
+    bean.createdOn = new Date();
+    bean.score = 0.5d;
+    SolrInputDocument doc = mapper.toInputDoc("1", bean);
+    assertEquals("1", doc.getFieldValue("id"));
+    assertEquals("hello", doc.getFieldValue("title_s"));
+    assertEquals(3, doc.getFieldValue("count_i"));
+    assertEquals(bean.createdOn, doc.getFieldValue("createdOn_tdt"));
+    assertEquals(0.5d, doc.getFieldValue("score_d"));
+    assertEquals("getter", doc.getFieldValue("shadowed_s"));
+    assertEquals(6, doc.size());
+
+    // strings with several terms are mapped as text, and a non-null field takes precedence over its getter
+    bean.title = "hello world";
+    bean.shadowed = "field";
+    doc = mapper.toInputDoc("2", bean);
+    assertNull(doc.getFieldValue("title_s"));
+    assertEquals("hello world", doc.getFieldValue("title_t"));
+    assertEquals("field", doc.getFieldValue("shadowed_s"));
+    assertEquals(6, doc.size());
+
+    // changing the config re-resolves the mapping
+    mapper.setDynamicFieldOverrides(Collections.singletonMap("title", "_txt"));
+    doc = mapper.toInputDoc("3", bean);
+    assertEquals("hello world", doc.getFieldValue("title_txt"));
+    assertNull(doc.getFieldValue("title_t"));
+
+    mapper.setFieldGuessingEnabled(true);
+    doc = mapper.toInputDoc("4", bean);
+    assertEquals("hello world", doc.getFieldValue("title"));
+    assertEquals(3, doc.getFieldValue("count"));
+    assertEquals(7, doc.size());
+
+    SolrInputDocument input = new SolrInputDocument();
+    assertSame(input, mapper.toInputDoc("5", input));
+  }
+
+  @Test
+  public void testMultiValued() throws Exception {
+    DefaultSolrInputDocumentMapper mapper = new DefaultSolrInputDocumentMapper();
+
+    MultiValuedBean bean = new MultiValuedBean();
+    bean.counts = new int[]{1, 2, 3};
+    bean.tags = new String[]{"a b", null, "c"};
+    bean.ids = Arrays.asList(5L, 6L);
+    bean.values = Arrays.asList(null, 1.5d, 2.5d);
+    bean.data = new byte[]{1, 2};
+    SolrInputDocument doc = mapper.toInputDoc("1", bean);
+    assertEquals(Arrays.<Object>asList(1, 2, 3), doc.getFieldValues("counts_is"));
+    assertEquals(Arrays.<Object>asList("a b", "c"), doc.getFieldValues("tags_ss"));
+    assertEquals(Arrays.<Object>asList(5L, 6L), doc.getFieldValues("ids_ls"));
+    assertEquals(Arrays.<Object>asList(1.5d, 2.5d), doc.getFieldValues("values_ds"));
+    assertEquals(5, doc.size());
+
+    // the suffix for an untyped Collection follows its elements
+    bean.values = Arrays.asList("x");
+    bean.counts = new int[0];
+    doc = mapper.toInputDoc("2", bean);
+    assertEquals(Arrays.<Object>asList("x"), doc.getFieldValues("values_ss"));
+    assertNull(doc.getFieldValues("counts_is"));
+
+    mapper.setDynamicFieldOverrides(Collections.singletonMap("tags", "_txt"));
+    doc = mapper.toInputDoc("3", bean);
+    assertEquals(Arrays.<Object>asList("a b", "c"), doc.getFieldValues("tags_txt"));
+
+    mapper.setFieldGuessingEnabled(true);
+    doc = mapper.toInputDoc("4", bean);
+    assertEquals(Arrays.<Object>asList(5L, 6L), doc.getFieldValues("ids"));
+    assertNull(doc.getFieldValues("data"));
+  }
+}
@@ -0,0 +1,120 @@
+package com.lucidworks.storm.solr;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the DocBuffer
+ */
+public class DocBufferTest {
+
+  protected SolrInputDocument doc(String id, String text) {
+    SolrInputDocument doc = new SolrInputDocument();
+    doc.setField("id", id);
+    doc.setField("text_t", text);
+    return doc;
+  }
+
+  @Test
+  public void testFlushOnMaxBufferBytes() throws Exception {
+    DocBuffer buffer = new DocBuffer("test", 100, 60000L, 1024L);
+
+    SolrInputDocument small = doc("1", "foo");
+    long smallBytes = DocSizeEstimator.estimate(small);
+    assertTrue(smallBytes > 0 && smallBytes < 100);
+
+    buffer.add(small, smallBytes);
+    assertEquals(smallBytes, buffer.getEstimatedBytes());
+    assertFalse(buffer.shouldFlushBuffer());
+
+    StringBuilder sb = new StringBuilder();
+    for (int i=0; i < 1024; i++)
+      sb.append('x');
+    SolrInputDocument big = doc("2", sb.toString());
+    long bigBytes = DocSizeEstimator.estimate(big);
+    assertTrue(bigBytes > 1024);
+    assertTrue(buffer.wouldExceedMaxBytes(bigBytes));
+
+    buffer.add(big, bigBytes);
+    assertTrue(buffer.shouldFlushBuffer());
+
+    DocBuffer batch = buffer.detach();
+    assertEquals(2, batch.buffer.size());
+    assertEquals(smallBytes + bigBytes, batch.getEstimatedBytes());
+    assertEquals(0L, buffer.getEstimatedBytes());
+
+    // an oversized doc still gets buffered on its own
+    assertFalse(buffer.wouldExceedMaxBytes(bigBytes));
+  }
+
+  @Test
+  public void testEstimateIncludesChildDocs() throws Exception {
+    SolrInputDocument parent = doc("1", "parent");
+    long parentOnly = DocSizeEstimator.estimate(parent);
+    parent.addChildDocument(doc("1.1", "child"));
+    assertTrue(DocSizeEstimator.estimate(parent) > parentOnly);
+  }
+
+  protected SolrInputDocument update(String id, String field, String op, Object value) {
+    SolrInputDocument doc = new SolrInputDocument();
+    doc.setField("id", id);
+    doc.setField(field, Collections.singletonMap(op, value));
+    return doc;
+  }
+
+  @Test
+  public void testCoalesceUpdates() throws Exception {
+    DocBuffer buffer = new DocBuffer("test", 100, 60000L);
+    buffer.setCoalesceIdField("id");
+
+    // latest full doc wins
+    assertTrue(buffer.add(doc("1", "foo")));
+    assertFalse(buffer.add(doc("1", "bar")));
+    assertEquals(1, buffer.buffer.size());
+    assertEquals("bar", buffer.buffer.get(0).getFieldValue("text_t"));
+
+    // atomic updates applied to a buffered full doc
+    assertFalse(buffer.add(update("1", "views_i", "inc", 2)));
+    assertFalse(buffer.add(update("1", "views_i", "inc", 3)));
+    assertFalse(buffer.add(update("1", "tags_ss", "add", "a")));
+    assertFalse(buffer.add(update("1", "text_t", "set", null)));
+    SolrInputDocument merged = buffer.buffer.get(0);
+    assertEquals(5, merged.getFieldValue("views_i"));
+    assertEquals(Arrays.asList("a"), merged.getFieldValues("tags_ss"));
+    assertNull(merged.getField("text_t"));
+    assertEquals(DocSizeEstimator.estimate(merged), buffer.getEstimatedBytes());
+
+    // atomic updates merged into one atomic update
+    assertTrue(buffer.add(update("2", "views_i", "inc", 1)));
+    assertFalse(buffer.add(update("2", "views_i", "inc", 1)));
+    assertFalse(buffer.add(update("2", "tags_ss", "add", "a")));
+    assertFalse(buffer.add(update("2", "tags_ss", "add", Arrays.asList("b", "c"))));
+    assertEquals(2, buffer.buffer.size());
+    SolrInputDocument atomic = buffer.buffer.get(1);
+    assertEquals(Collections.singletonMap("inc", 2), atomic.getFieldValue("views_i"));
+    assertEquals(Arrays.asList("a", "b", "c"), ((Map)atomic.getFieldValue("tags_ss")).get("add"));
+
+    // can't combine a remove with a buffered add, so both are sent in order and later updates go to the last
+    assertTrue(buffer.add(update("2", "tags_ss", "remove", "a")));
+    assertFalse(buffer.add(update("2", "views_i", "inc", 1)));
+    assertEquals(3, buffer.buffer.size());
+    assertEquals(Collections.singletonMap("inc", 1), buffer.buffer.get(2).getFieldValue("views_i"));
+
+    // optimistic concurrency is left to Solr
+    SolrInputDocument versioned = doc("1", "baz");
+    versioned.setField("_version_", 1L);
+    assertTrue(buffer.add(versioned));
+
+    buffer.reset();
+    assertTrue(buffer.add(doc("1", "foo")));
+  }
+}
@@ -0,0 +1,102 @@
+package com.lucidworks.storm.solr;
+
+import org.apache.solr.common.cloud.CompositeIdRouter;
+import org.apache.solr.common.cloud.DocRouter;
+import org.apache.solr.common.util.Hash;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per-tuple cost of choosing a task in the HashRangeGrouping, against the linear scan over
+ * the ranges it used to do; run with:
+ * <pre>
+ *   mvn test-compile exec:java -Dexec.mainClass=com.lucidworks.storm.solr.HashRangeGroupingBenchmark -Dexec.classpathScope=test
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashRangeGroupingBenchmark {
+
+  @Param({"64", "256"})
+  public int numShards;
+
+  private List<DocRouter.Range> ranges;
+  private HashRangeLookup rangeLookup;
+  private HashRangeGrouping grouping;
+  private List<Object>[] tuples;
+  private int[] hashes;
+  private int next = 0;
+
+  @Setup
+  public void setup() {
+    CompositeIdRouter docRouter = new CompositeIdRouter();
+    ranges = docRouter.partitionRange(numShards, docRouter.fullRange());
+    rangeLookup = new HashRangeLookup(ranges);
+
+    List<Integer> targetTasks = new ArrayList<Integer>(numShards);
+    for (int t=0; t < numShards; t++)
+      targetTasks.add(t);
+    grouping = new HashRangeGrouping(new HashMap(), numShards);
+    grouping.prepare(null, null, targetTasks);
+
+    tuples = new List[1024];
+    hashes = new int[tuples.length];
+    for (int d=0; d < tuples.length; d++) {
+      String docId = "doc"+d;
+      List<Object> values = new ArrayList<Object>(2);
+      values.add(docId);
+      values.add("someValue");
+      tuples[d] = values;
+      hashes[d] = Hash.murmurhash3_x86_32(docId, 0, docId.length(), 0);
+    }
+  }
+
+  private int nextDoc() {
+    next = (next + 1) & (tuples.length - 1);
+    return next;
+  }
+
+  @Benchmark
+  public List<Integer> chooseTasks() {
+    return grouping.chooseTasks(1, tuples[nextDoc()]);
+  }
+
+  @Benchmark
+  public int rangeLookup() {
+    return rangeLookup.indexOf(hashes[nextDoc()]);
+  }
+
+  @Benchmark
+  public int linearScan() {
+    int hash = hashes[nextDoc()];
+    for (int r=0; r < ranges.size(); r++) {
+      if (ranges.get(r).includes(hash))
+        return r;
+    }
+    return -1;
+  }
+
+  public static void main(String[] args) throws Exception {
+    new Runner(new OptionsBuilder().include(HashRangeGroupingBenchmark.class.getSimpleName()).build()).run();
+  }
+}
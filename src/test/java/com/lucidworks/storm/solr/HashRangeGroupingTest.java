@@ -0,0 +1,115 @@
+package com.lucidworks.storm.solr;
+
+import org.apache.solr.common.cloud.CompositeIdRouter;
+import org.apache.solr.common.cloud.DocRouter;
+import org.apache.solr.common.util.Hash;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the HashRangeGrouping and the HashRangeLookup it uses.
+ */
+public class HashRangeGroupingTest {
+
+  protected int linearScan(List<DocRouter.Range> ranges, int hash) {
+    for (int r=0; r < ranges.size(); r++) {
+      if (ranges.get(r).includes(hash))
+        return r;
+    }
+    return -1;
+  }
+
+  @Test
+  public void testLookupMatchesLinearScan() throws Exception {
+    CompositeIdRouter docRouter = new CompositeIdRouter();
+    Random random = new Random(5150);
+    for (int numShards : new int[]{1, 3, 7, 64, 256}) {
+      List<DocRouter.Range> ranges = docRouter.partitionRange(numShards, docRouter.fullRange());
+      HashRangeLookup lookup = new HashRangeLookup(ranges);
+      assertTrue("ranges for "+numShards+" shards should be uniform", lookup.isUniform());
+
+      for (DocRouter.Range range : ranges) {
+        assertEquals(linearScan(ranges, range.min), lookup.indexOf(range.min));
+        assertEquals(linearScan(ranges, range.max), lookup.indexOf(range.max));
+      }
+      for (int h=0; h < 10000; h++) {
+        int hash = random.nextInt();
+        assertEquals(linearScan(ranges, hash), lookup.indexOf(hash));
+      }
+    }
+
+    // uneven ranges with a gap, such as after splitting a shard, are searched instead, in any order
+    List<DocRouter.Range> ranges = new ArrayList<DocRouter.Range>();
+    ranges.add(new DocRouter.Range(0, Integer.MAX_VALUE));
+    ranges.add(new DocRouter.Range(Integer.MIN_VALUE, -1000));
+    ranges.add(new DocRouter.Range(-999, -500));
+    HashRangeLookup lookup = new HashRangeLookup(ranges);
+    assertFalse(lookup.isUniform());
+    assertEquals(1, lookup.indexOf(Integer.MIN_VALUE));
+    assertEquals(2, lookup.indexOf(-500));
+    assertEquals(-1, lookup.indexOf(-499));
+    assertEquals(0, lookup.indexOf(0));
+    assertEquals(0, lookup.indexOf(Integer.MAX_VALUE));
+  }
+
+  @Test
+  public void testTasksPerShard() throws Exception {
+    int numShards = 2;
+    int tasksPerShard = 4;
+    List<Integer> targetTasks = new ArrayList<Integer>();
+    for (int t=0; t < numShards * tasksPerShard; t++)
+      targetTasks.add(100 + t);
+
+    HashRangeGrouping grouping = new HashRangeGrouping(new HashMap(), numShards);
+    grouping.prepare(null, null, targetTasks);
+
+    CompositeIdRouter docRouter = new CompositeIdRouter();
+    List<DocRouter.Range> ranges = docRouter.partitionRange(numShards, docRouter.fullRange());
+    for (int d=0; d < 1000; d++) {
+      String docId = "doc"+d;
+      List<Object> values = new ArrayList<Object>();
+      values.add(docId);
+      int task = grouping.chooseTasks(1, values).get(0);
+      int rangeIndex = linearScan(ranges, Hash.murmurhash3_x86_32(docId, 0, docId.length(), 0));
+      assertEquals("doc "+docId+" sent to a task for the wrong range", rangeIndex, (task - 100) % numShards);
+    }
+  }
+
+  @Test
+  public void testCompositeIdRouting() throws Exception {
+    int numShards = 8;
+    List<Integer> targetTasks = new ArrayList<Integer>();
+    for (int t=0; t < numShards; t++)
+      targetTasks.add(t);
+
+    HashRangeGrouping grouping = new HashRangeGrouping(new HashMap(), numShards);
+    grouping.prepare(null, null, targetTasks);
+
+    CompositeIdRouter docRouter = new CompositeIdRouter();
+    List<DocRouter.Range> ranges = docRouter.partitionRange(numShards, docRouter.fullRange());
+    Set<Integer> tenantTasks = new HashSet<Integer>();
+    for (int d=0; d < 100; d++) {
+      for (String docId : new String[]{ "tenant1!doc"+d, "tenant2/4!doc"+d, "doc"+d }) {
+        List<Object> values = new ArrayList<Object>();
+        values.add(docId);
+        int task = grouping.chooseTasks(1, values).get(0);
+        assertEquals("doc "+docId+" sent to the wrong task", linearScan(ranges, docRouter.sliceHash(docId, null, null, null)), task);
+        if (docId.startsWith("tenant1!"))
+          tenantTasks.add(task);
+      }
+    }
+
+    // all docs for a tenant without bits go to the same shard
+    assertEquals(1, tenantTasks.size());
+  }
+}
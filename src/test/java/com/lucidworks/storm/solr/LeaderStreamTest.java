@@ -0,0 +1,223 @@
+package com.lucidworks.storm.solr;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.client.HttpClient;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.impl.HttpClientUtil;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Tests how the StreamingLeaderSolrBoltAction completes windows of streamed docs, against a local HTTP server
+ * standing in for the leader of a single shard.
+ */
+public class LeaderStreamTest {
+
+  static final Pattern DOC_ID = Pattern.compile("<field name=\"id\">([^<]+)</field>");
+
+  HttpServer leader;
+  volatile int leaderStatus = 200;
+  Set<String> streamed = Collections.synchronizedSet(new HashSet<String>());
+  AtomicInteger numRequests = new AtomicInteger();
+  HttpClient httpClient;
+
+  class TestStreamingLeaderSolrBoltAction extends StreamingLeaderSolrBoltAction {
+    TestStreamingLeaderSolrBoltAction() {
+      super(mock(CloudSolrClient.class));
+    }
+
+    @Override
+    protected String getTargetShard(String collection, SolrInputDocument doc) {
+      return "shard1";
+    }
+
+    @Override
+    protected String getLeaderUrl(String collection, String shard) {
+      return "http://127.0.0.1:"+leader.getAddress().getPort()+"/solr/"+collection;
+    }
+
+    @Override
+    protected HttpClient getHttpClient() {
+      return httpClient;
+    }
+  }
+
+  /**
+   * Records the docs sent through the CloudSolrClient.
+   */
+  static class RecordingUpdateRequestStrategy implements SolrUpdateRequestStrategy {
+    Set<String> sent = Collections.synchronizedSet(new HashSet<String>());
+
+    public NamedList<Object> sendUpdateRequest(SolrClient solrClient, String collection, SolrRequest req) {
+      for (SolrInputDocument doc : ((UpdateRequest)req).getDocuments())
+        sent.add((String)doc.getFieldValue("id"));
+      return new NamedList<Object>();
+    }
+  }
+
+  @Before
+  public void startLeader() throws Exception {
+    httpClient = HttpClientUtil.createClient(null);
+    leader = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    leader.createContext("/", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        numRequests.incrementAndGet();
+        String body = readBody(exchange.getRequestBody());
+        int status = leaderStatus;
+        if (status == 200) {
+          Matcher matcher = DOC_ID.matcher(body);
+          while (matcher.find())
+            streamed.add(matcher.group(1));
+        }
+        exchange.sendResponseHeaders(status, -1);
+        exchange.close();
+      }
+    });
+    leader.start();
+  }
+
+  @After
+  public void stopLeader() {
+    leader.stop(0);
+    HttpClientUtil.close(httpClient);
+  }
+
+  static String readBody(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[4096];
+    int r;
+    while ((r = in.read(buf)) != -1)
+      out.write(buf, 0, r);
+    return out.toString("UTF-8");
+  }
+
+  protected SolrInputDocument doc(String id) {
+    SolrInputDocument doc = new SolrInputDocument();
+    doc.setField("id", id);
+    return doc;
+  }
+
+  protected SolrInputDocument incDoc(String id) {
+    SolrInputDocument doc = doc(id);
+    doc.setField("count_i", Collections.singletonMap("inc", 1));
+    return doc;
+  }
+
+  protected void awaitCompleted(TolerantSolrBoltActionTest.RecordingBatchListener listener, int numWindows) throws Exception {
+    long waitUntil = System.currentTimeMillis() + 10000L;
+    while (listener.completed.size() < numWindows && System.currentTimeMillis() < waitUntil)
+      Thread.sleep(10L);
+  }
+
+  @Test
+  public void testWindowsAcknowledgedByLeader() throws Exception {
+    TolerantSolrBoltActionTest.RecordingBatchListener listener = new TolerantSolrBoltActionTest.RecordingBatchListener();
+    RecordingUpdateRequestStrategy strategy = new RecordingUpdateRequestStrategy();
+    TestStreamingLeaderSolrBoltAction sba = new TestStreamingLeaderSolrBoltAction();
+    sba.setMaxBufferSize(10);
+    sba.setUpdateRequestStrategy(strategy);
+    sba.setBatchListener(listener);
+
+    for (int d=0; d < 25; d++)
+      sba.bufferDoc("test", doc("doc"+d));
+
+    // the two full windows complete once the leader acknowledges them, without waiting for the third
+    awaitCompleted(listener, 2);
+    assertEquals(2, listener.completed.size());
+    for (Object[] completed : listener.completed)
+      assertNull(completed[1]);
+
+    sba.close();
+    assertEquals(3, listener.completed.size());
+    assertEquals(25, streamed.size());
+    assertTrue(strategy.sent.isEmpty());
+  }
+
+  @Test
+  public void testHeldDocsEndRequest() throws Exception {
+    TolerantSolrBoltActionTest.RecordingBatchListener listener = new TolerantSolrBoltActionTest.RecordingBatchListener();
+    TestStreamingLeaderSolrBoltAction sba = new TestStreamingLeaderSolrBoltAction();
+    sba.setMaxBufferSize(10);
+    sba.setMaxAckDelayMs(0L);
+    sba.setPollQueueTimeMs(1000); // without holding docs back, the request wouldn't end between windows
+    sba.setUpdateRequestStrategy(new RecordingUpdateRequestStrategy());
+    sba.setBatchListener(listener);
+
+    for (int d=0; d < 15; d++)
+      sba.bufferDoc("test", doc("doc"+d));
+
+    awaitCompleted(listener, 1);
+    assertEquals(1, listener.completed.size());
+
+    sba.close();
+    assertEquals(2, listener.completed.size());
+    assertEquals(15, streamed.size());
+    assertEquals(2, numRequests.get());
+  }
+
+  @Test
+  public void testFailedStreamNotReappliedForAtomicUpdates() throws Exception {
+    TolerantSolrBoltActionTest.RecordingBatchListener listener = new TolerantSolrBoltActionTest.RecordingBatchListener();
+    RecordingUpdateRequestStrategy strategy = new RecordingUpdateRequestStrategy();
+    TestStreamingLeaderSolrBoltAction sba = new TestStreamingLeaderSolrBoltAction();
+    sba.setMaxBufferSize(10);
+    sba.setUpdateRequestStrategy(strategy);
+    sba.setBatchListener(listener);
+
+    leaderStatus = 500;
+    for (int d=0; d < 10; d++)
+      sba.bufferDoc("test", (d == 4) ? incDoc("inc4") : doc("doc"+d));
+    sba.close();
+
+    // the leader may have applied the docs before failing, so only the idempotent docs are re-sent
+    assertEquals(1, listener.completed.size());
+    Map<Object,Throwable> failed = (Map<Object,Throwable>)listener.completed.get(0)[1];
+    assertEquals(1, failed.size());
+    assertNotNull(failed.get("inc4"));
+    assertEquals(9, strategy.sent.size());
+    assertTrue(!strategy.sent.contains("inc4"));
+  }
+
+  @Test
+  public void testDrainWithoutBatchListener() throws Exception {
+    RecordingUpdateRequestStrategy strategy = new RecordingUpdateRequestStrategy();
+    TestStreamingLeaderSolrBoltAction sba = new TestStreamingLeaderSolrBoltAction();
+    sba.setMaxBufferSize(10);
+    sba.setUpdateRequestStrategy(strategy);
+
+    for (int d=0; d < 9; d++)
+      assertEquals(com.lucidworks.storm.spring.SpringBolt.ExecuteResult.BUFFERED, sba.bufferDoc("test", doc("doc"+d)));
+
+    // all tuples are acked at once, after the leader has acknowledged every doc
+    assertEquals(com.lucidworks.storm.spring.SpringBolt.ExecuteResult.ACK, sba.bufferDoc("test", doc("doc9")));
+    assertEquals(10, streamed.size());
+    assertTrue(strategy.sent.isEmpty());
+    sba.close();
+  }
+}
@@ -0,0 +1,106 @@
+package com.lucidworks.storm.solr;
+
+import org.apache.solr.client.solrj.request.JavaBinUpdateRequestCodec;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.ContentStream;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the ReusableBufferBinaryRequestWriter produces javabin that Solr can read in both modes.
+ */
+public class ReusableBufferBinaryRequestWriterTest {
+
+  protected UpdateRequest updateRequest(String idPrefix, int numDocs) {
+    UpdateRequest req = new UpdateRequest();
+    req.setParam("collection", "test");
+    for (int d=0; d < numDocs; d++) {
+      SolrInputDocument doc = new SolrInputDocument();
+      doc.setField("id", idPrefix+d);
+      doc.setField("text_t", "doc "+d+" of "+numDocs);
+      req.add(doc);
+    }
+    return req;
+  }
+
+  protected List<String> readIds(ContentStream stream) throws Exception {
+    final List<String> ids = new ArrayList<String>();
+    InputStream in = stream.getStream();
+    try {
+      new JavaBinUpdateRequestCodec().unmarshal(in, new JavaBinUpdateRequestCodec.StreamingUpdateHandler() {
+        public void update(SolrInputDocument doc, UpdateRequest req, Integer commitWithin, Boolean overwrite) {
+          ids.add((String)doc.getFieldValue("id"));
+        }
+      });
+    } finally {
+      in.close();
+    }
+    return ids;
+  }
+
+  @Test
+  public void testReusedBuffer() throws Exception {
+    ReusableBufferBinaryRequestWriter writer = new ReusableBufferBinaryRequestWriter();
+    writer.setInitialBufferSize(128);
+
+    // second, smaller request re-uses the buffer grown by the first one
+    for (int r=0; r < 2; r++) {
+      int numDocs = (r == 0) ? 500 : 5;
+      Collection<ContentStream> streams = writer.getContentStreams(updateRequest("r"+r+"_", numDocs));
+      assertEquals(1, streams.size());
+      ContentStream stream = streams.iterator().next();
+      assertNotNull(stream.getSize());
+      assertEquals(ReusableBufferBinaryRequestWriter.JAVABIN_CONTENT_TYPE, stream.getContentType());
+
+      List<String> ids = readIds(stream);
+      assertEquals(numDocs, ids.size());
+      assertEquals("r"+r+"_0", ids.get(0));
+      assertEquals("r"+r+"_"+(numDocs-1), ids.get(numDocs-1));
+    }
+
+    assertNull(writer.getContentStreams(new UpdateRequest()));
+    writer.close();
+  }
+
+  @Test
+  public void testLargeBufferNotRetained() throws Exception {
+    ReusableBufferBinaryRequestWriter writer = new ReusableBufferBinaryRequestWriter();
+    writer.setInitialBufferSize(128);
+    writer.setMaxRetainedBufferSize(4096);
+
+    writer.getContentStreams(updateRequest("small", 5));
+    assertTrue(writer.isBufferRetained());
+
+    // the request is still readable, but its buffer isn't kept for the next one
+    ContentStream stream = writer.getContentStreams(updateRequest("large", 500)).iterator().next();
+    assertFalse(writer.isBufferRetained());
+    assertEquals(500, readIds(stream).size());
+    writer.close();
+  }
+
+  @Test
+  public void testStreaming() throws Exception {
+    ReusableBufferBinaryRequestWriter writer = new ReusableBufferBinaryRequestWriter();
+    writer.setStreaming(true);
+    writer.setPipeBufferSize(1024); // much smaller than the request so the writer has to wait on the reader
+
+    ContentStream stream = writer.getContentStreams(updateRequest("s", 1000)).iterator().next();
+    assertNull(stream.getSize());
+
+    List<String> ids = readIds(stream);
+    assertEquals(1000, ids.size());
+    assertEquals("s999", ids.get(999));
+    writer.close();
+  }
+}
@@ -0,0 +1,146 @@
+package com.lucidworks.storm.solr;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+
+import java.net.ConnectException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests the ScheduledRetryUpdateRequestStrategy re-tries without blocking the caller.
+ */
+public class ScheduledRetryUpdateRequestStrategyTest {
+
+  static class TestCallback implements AsyncSolrUpdateRequestStrategy.Callback {
+    final CountDownLatch done = new CountDownLatch(1);
+    final AtomicReference<Exception> error = new AtomicReference<Exception>();
+    final AtomicReference<Thread> completedOn = new AtomicReference<Thread>();
+
+    public void onSuccess(NamedList<Object> resp) {
+      completedOn.set(Thread.currentThread());
+      done.countDown();
+    }
+
+    public void onFailure(Exception exc) {
+      error.set(exc);
+      completedOn.set(Thread.currentThread());
+      done.countDown();
+    }
+  }
+
+  protected SolrServerException connectError() {
+    return new SolrServerException("Server refused connection", new ConnectException("Connection refused"));
+  }
+
+  @Test
+  public void testRetryScheduled() throws Exception {
+    SolrClient solrClient = mock(SolrClient.class);
+    UpdateRequest req = new UpdateRequest();
+    when(solrClient.request(eq(req), (String)isNull())).thenThrow(connectError()).thenReturn(new NamedList<Object>());
+
+    ScheduledRetryUpdateRequestStrategy strategy = new ScheduledRetryUpdateRequestStrategy();
+    strategy.setMaxRetryAttempts(2);
+    strategy.setInitialBackoffMs(100L);
+
+    TestCallback callback = new TestCallback();
+    strategy.sendUpdateRequestAsync(solrClient, "test", req, callback);
+    assertEquals("re-try should not block the caller", 1, callback.done.getCount());
+
+    assertTrue(callback.done.await(5, TimeUnit.SECONDS));
+    assertNull(callback.error.get());
+    assertTrue(callback.completedOn.get() != Thread.currentThread());
+    verify(solrClient, times(2)).request(eq(req), (String)isNull());
+
+    strategy.close();
+  }
+
+  @Test
+  public void testRetryBudget() throws Exception {
+    SolrClient solrClient = mock(SolrClient.class);
+    when(solrClient.request(any(UpdateRequest.class), (String)isNull())).thenThrow(connectError());
+
+    ScheduledRetryUpdateRequestStrategy strategy = new ScheduledRetryUpdateRequestStrategy();
+    strategy.setMaxRetryAttempts(1);
+    strategy.setInitialBackoffMs(10L);
+    strategy.setMaxRetriesPerWindow(1);
+    strategy.setRetryWindowMs(60000L);
+
+    // first request gets the only re-try in the window, then fails
+    TestCallback first = new TestCallback();
+    strategy.sendUpdateRequestAsync(solrClient, "test", new UpdateRequest(), first);
+    assertTrue(first.done.await(5, TimeUnit.SECONDS));
+    assertNotNull(first.error.get());
+
+    // second request fails immediately on the calling thread since the budget is spent
+    TestCallback second = new TestCallback();
+    strategy.sendUpdateRequestAsync(solrClient, "test", new UpdateRequest(), second);
+    assertEquals(0, second.done.getCount());
+    assertNotNull(second.error.get());
+    assertEquals(Thread.currentThread(), second.completedOn.get());
+    verify(solrClient, times(3)).request(any(UpdateRequest.class), (String)isNull());
+
+    strategy.close();
+  }
+
+  @Test
+  public void testCloseFailsPendingRetries() throws Exception {
+    SolrClient solrClient = mock(SolrClient.class);
+    when(solrClient.request(any(UpdateRequest.class), (String)isNull())).thenThrow(connectError());
+
+    ScheduledRetryUpdateRequestStrategy strategy = new ScheduledRetryUpdateRequestStrategy();
+    strategy.setMaxRetryAttempts(2);
+    strategy.setInitialBackoffMs(60000L);
+    strategy.setJitter(0d);
+
+    TestCallback callback = new TestCallback();
+    strategy.sendUpdateRequestAsync(solrClient, "test", new UpdateRequest(), callback);
+    assertEquals(1, callback.done.getCount());
+
+    // the re-try was dropped, so its request fails rather than waiting for a tuple timeout
+    strategy.close();
+    assertEquals(0, callback.done.getCount());
+    assertNotNull(callback.error.get());
+    verify(solrClient, times(1)).request(any(UpdateRequest.class), (String)isNull());
+  }
+
+  @Test
+  public void testSyncWaitBounded() throws Exception {
+    SolrClient solrClient = mock(SolrClient.class);
+    when(solrClient.request(any(UpdateRequest.class), (String)isNull())).thenThrow(connectError());
+
+    ScheduledRetryUpdateRequestStrategy strategy = new ScheduledRetryUpdateRequestStrategy();
+    strategy.setMaxRetryAttempts(2);
+    strategy.setInitialBackoffMs(60000L);
+    strategy.setJitter(0d);
+    strategy.setMaxWaitMs(100L);
+
+    long startMs = System.currentTimeMillis();
+    try {
+      strategy.sendUpdateRequest(solrClient, "test", new UpdateRequest());
+      fail("request with a re-try pending longer than maxWaitMs should time out");
+    } catch (RuntimeException expected) {
+      assertTrue(expected.getMessage().contains("Timed out"));
+    }
+    assertTrue(System.currentTimeMillis() - startMs < 5000L);
+
+    strategy.close();
+  }
+}
@@ -0,0 +1,103 @@
+package com.lucidworks.storm.solr;
+
+import org.apache.solr.common.cloud.CompositeIdRouter;
+import org.apache.solr.common.cloud.DocCollection;
+import org.apache.solr.common.cloud.DocRouter;
+import org.apache.solr.common.cloud.Replica;
+import org.apache.solr.common.cloud.Slice;
+import org.apache.solr.common.cloud.ZkStateReader;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests how the ShardGrouping routes docs for different shard layouts, such as after splitting a shard.
+ */
+public class ShardGroupingRoutingTableTest {
+
+  protected Slice slice(String name, DocRouter.Range range, Slice.State state) {
+    Map<String,Object> props = new HashMap<String,Object>();
+    props.put(Slice.RANGE, range);
+    props.put(ZkStateReader.STATE_PROP, state.toString());
+    return new Slice(name, new HashMap<String,Replica>(), props);
+  }
+
+  protected DocCollection collection(Slice... slices) {
+    Map<String,Slice> sliceMap = new LinkedHashMap<String,Slice>();
+    for (Slice slice : slices)
+      sliceMap.put(slice.getName(), slice);
+    return new DocCollection("test", sliceMap, new HashMap<String,Object>(), new CompositeIdRouter());
+  }
+
+  @Test
+  public void testSplitShard() throws Exception {
+    CompositeIdRouter router = new CompositeIdRouter();
+    List<DocRouter.Range> ranges = router.partitionRange(2, router.fullRange());
+    List<DocRouter.Range> subRanges = router.partitionRange(2, ranges.get(0));
+
+    DocCollection before = collection(
+      slice("shard1", ranges.get(0), Slice.State.ACTIVE),
+      slice("shard2", ranges.get(1), Slice.State.ACTIVE));
+    DocCollection after = collection(
+      slice("shard1", ranges.get(0), Slice.State.INACTIVE),
+      slice("shard2", ranges.get(1), Slice.State.ACTIVE),
+      slice("shard1_0", subRanges.get(0), Slice.State.ACTIVE),
+      slice("shard1_1", subRanges.get(1), Slice.State.ACTIVE));
+    assertFalse(ShardGrouping.getLayout(before).equals(ShardGrouping.getLayout(after)));
+
+    TaskSelector taskSelector = new TaskSelector(TaskSelector.Mode.RANDOM, Arrays.asList(1, 2, 3, 4));
+
+    // 4 tasks, 2 per shard before the split
+    ShardGrouping.RoutingTable table = new ShardGrouping.RoutingTable(before, 4);
+    assertEquals(2, table.numShards);
+    assertEquals(2, table.tasksPerShard);
+    for (int d=0; d < 500; d++) {
+      String docId = "doc"+d;
+      Slice slice = router.getTargetSlice(docId, null, null, null, before);
+      assertEquals(table.shardIndexes.get(slice.getName()).intValue(), table.chooseTask(docId, taskSelector) % 2);
+    }
+
+    // 3 shards after the split don't divide 4 tasks evenly, so each task gets a quarter of the hash range
+    table = new ShardGrouping.RoutingTable(after, 4);
+    assertEquals(3, table.numShards);
+    assertEquals(0, table.tasksPerShard);
+    List<DocRouter.Range> taskRanges = router.partitionRange(4, router.fullRange());
+    Map<String,Set<Integer>> tasksPerSlice = new HashMap<String,Set<Integer>>();
+    for (int d=0; d < 2000; d++) {
+      String docId = "doc"+d;
+      int task = table.chooseTask(docId, taskSelector);
+      assertTrue(taskRanges.get(task).includes(router.sliceHash(docId, null, null, after)));
+
+      String shard = router.getTargetSlice(docId, null, null, null, after).getName();
+      assertFalse("docs must not be routed to the inactive parent shard", "shard1".equals(shard));
+      Set<Integer> tasks = tasksPerSlice.get(shard);
+      if (tasks == null) {
+        tasks = new HashSet<Integer>();
+        tasksPerSlice.put(shard, tasks);
+      }
+      tasks.add(task);
+    }
+    assertEquals(1, tasksPerSlice.get("shard1_0").size());
+    assertEquals(1, tasksPerSlice.get("shard1_1").size());
+    assertEquals(2, tasksPerSlice.get("shard2").size());
+
+    // 3 tasks, 1 per shard, route by the active sub-shards
+    table = new ShardGrouping.RoutingTable(after, 3);
+    assertEquals(1, table.tasksPerShard);
+    for (int d=0; d < 500; d++) {
+      String docId = "doc"+d;
+      Slice slice = router.getTargetSlice(docId, null, null, null, after);
+      assertEquals(table.shardIndexes.get(slice.getName()).intValue(), table.chooseTask(docId, taskSelector));
+    }
+  }
+}
@@ -2,8 +2,12 @@ package com.lucidworks.storm.solr;
 
 import java.io.File;
 import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import backtype.storm.tuple.Tuple;
+import com.lucidworks.storm.spring.BatchListener;
 import com.lucidworks.storm.spring.SpringBolt;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.response.QueryResponse;
@@ -15,6 +19,7 @@ import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -89,6 +94,50 @@ public class SolrBoltActionTest extends TestSolrCloudClusterSupport {
     assertTrue(doc.getFirstValue("timestamp_tdt") != null);
   }
 
+  @Test
+  public void testAsyncFlush() throws Exception {
+    final LinkedBlockingQueue<Object> buffered = new LinkedBlockingQueue<Object>();
+    final LinkedBlockingQueue<Object[]> completed = new LinkedBlockingQueue<Object[]>();
+
+    SolrBoltAction sba = new SolrBoltAction(cloudSolrClient);
+    sba.setUpdateRequestStrategy(new DefaultUpdateRequestStrategy());
+    sba.setMaxBufferSize(1); // send every doc as soon as it arrives
+    sba.setAsyncFlush(true);
+    sba.setBatchListener(new BatchListener() {
+      public void tupleBuffered(Object batchId, Object key) {
+        buffered.add(batchId);
+      }
+
+      public void batchCompleted(Object batchId, Throwable error) {
+        completed.add(new Object[]{batchId, error});
+      }
+
+      public void batchPartiallyFailed(Object batchId, Map<Object,Throwable> failedKeys) {
+        completed.add(new Object[]{batchId, failedKeys});
+      }
+    });
+
+    String docId = "async1";
+    Tuple mockTuple = mock(Tuple.class);
+    when(mockTuple.size()).thenReturn(2);
+    when(mockTuple.getString(0)).thenReturn(docId);
+    when(mockTuple.getValue(1)).thenReturn(new TestDoc(docId, "bar", 5));
+    SpringBolt.ExecuteResult result = sba.execute(mockTuple, null);
+    assertTrue(result == SpringBolt.ExecuteResult.BUFFERED);
+
+    Object batchId = buffered.poll();
+    assertNotNull(batchId);
+    Object[] batch = completed.poll(30, TimeUnit.SECONDS);
+    assertNotNull("batch was not completed", batch);
+    assertEquals(batchId, batch[0]);
+    assertNull(batch[1]);
+    sba.close();
+
+    cloudSolrClient.commit();
+    QueryResponse qr = cloudSolrClient.query(new SolrQuery("id:" + docId));
+    assertTrue(qr.getResults().getNumFound() == 1);
+  }
+
   protected void doNestedDocTest() throws Exception {
     SolrBoltAction sba = new SolrBoltAction(cloudSolrClient);
     sba.setSolrInputDocumentMapper(new NestedDocumentMapper());
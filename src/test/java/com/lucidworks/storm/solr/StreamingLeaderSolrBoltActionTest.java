@@ -0,0 +1,108 @@
+package com.lucidworks.storm.solr;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import backtype.storm.tuple.Tuple;
+import com.lucidworks.storm.spring.BatchListener;
+import com.lucidworks.storm.spring.SpringBolt;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests the StreamingLeaderSolrBoltAction
+ */
+public class StreamingLeaderSolrBoltActionTest extends TestSolrCloudClusterSupport {
+
+  static final String TEST_COLLECTION = "streaming2x1";
+
+  @Before
+  public void setupCollection() throws Exception {
+    String confName = "testConfig";
+    File confDir = new File("src/test/resources/conf");
+    int numShards = 2;
+    int replicationFactor = 1;
+    createCollection(TEST_COLLECTION, numShards, replicationFactor, confName, confDir);
+    cloudSolrClient.setDefaultCollection(TEST_COLLECTION);
+  }
+
+  @Test
+  public void testStreamToLeaders() throws Exception {
+    StreamingLeaderSolrBoltAction sba = new StreamingLeaderSolrBoltAction(cloudSolrClient);
+    sba.setUpdateRequestStrategy(new DefaultUpdateRequestStrategy());
+    sba.setMaxBufferSize(10);
+
+    int numDocs = 25;
+    for (int d=0; d < numDocs; d++) {
+      String docId = "stream"+d;
+      Map<String,Object> obj = new HashMap<String,Object>();
+      obj.put("text_s", "doc "+d);
+      Tuple mockTuple = mock(Tuple.class);
+      when(mockTuple.size()).thenReturn(2);
+      when(mockTuple.getString(0)).thenReturn(docId);
+      when(mockTuple.getValue(1)).thenReturn(obj);
+      SpringBolt.ExecuteResult result = sba.execute(mockTuple, null);
+      assertTrue(result == SpringBolt.ExecuteResult.BUFFERED || result == SpringBolt.ExecuteResult.ACK);
+    }
+    sba.close();
+
+    cloudSolrClient.commit();
+    QueryResponse qr = cloudSolrClient.query(new SolrQuery("id:stream*"));
+    assertTrue(qr.getResults().getNumFound() == numDocs);
+  }
+
+  @Test
+  public void testWindowsCompleteInBackground() throws Exception {
+    final Set<Object> buffered = new HashSet<Object>();
+    final Map<Object,Object> completed = new ConcurrentHashMap<Object,Object>();
+    StreamingLeaderSolrBoltAction sba = new StreamingLeaderSolrBoltAction(cloudSolrClient);
+    sba.setUpdateRequestStrategy(new DefaultUpdateRequestStrategy());
+    sba.setMaxBufferSize(10);
+    sba.setBatchListener(new BatchListener() {
+      public void tupleBuffered(Object batchId, Object key) {
+        buffered.add(batchId);
+      }
+
+      public void batchCompleted(Object batchId, Throwable error) {
+        completed.put(batchId, (error != null) ? error : "ok");
+      }
+
+      public void batchPartiallyFailed(Object batchId, Map<Object,Throwable> failedKeys) {
+        completed.put(batchId, failedKeys);
+      }
+    });
+
+    int numDocs = 45;
+    for (int d=0; d < numDocs; d++) {
+      Map<String,Object> obj = new HashMap<String,Object>();
+      obj.put("text_s", "doc "+d);
+      Tuple mockTuple = mock(Tuple.class);
+      when(mockTuple.size()).thenReturn(2);
+      when(mockTuple.getString(0)).thenReturn("window"+d);
+      when(mockTuple.getValue(1)).thenReturn(obj);
+
+      // tuples are acked by the listener once their window drains, never by the bolt thread
+      assertEquals(SpringBolt.ExecuteResult.BUFFERED, sba.execute(mockTuple, null));
+    }
+    sba.close();
+
+    assertEquals(buffered, completed.keySet());
+    for (Object result : completed.values())
+      assertEquals("ok", result);
+
+    cloudSolrClient.commit();
+    QueryResponse qr = cloudSolrClient.query(new SolrQuery("id:window*"));
+    assertTrue(qr.getResults().getNumFound() == numDocs);
+  }
+}
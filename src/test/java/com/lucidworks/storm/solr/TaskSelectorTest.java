@@ -0,0 +1,122 @@
+package com.lucidworks.storm.solr;
+
+import com.lucidworks.storm.spring.TaskLoad;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests how the TaskSelector spreads tuples over the tasks for a shard.
+ */
+public class TaskSelectorTest {
+
+  protected List<Integer> targetTasks(int firstTaskId, int numTasks) {
+    List<Integer> targetTasks = new ArrayList<Integer>();
+    for (int t=0; t < numTasks; t++)
+      targetTasks.add(firstTaskId + t);
+    return targetTasks;
+  }
+
+  @Test
+  public void testRoundRobin() throws Exception {
+    int numShards = 3;
+    TaskSelector taskSelector = new TaskSelector(TaskSelector.Mode.ROUND_ROBIN, targetTasks(1, 12));
+    for (int r=0; r < 8; r++) {
+      for (int s=0; s < numShards; s++)
+        assertEquals(s + (r % 4) * numShards, taskSelector.select(s, numShards, 4, s));
+    }
+    assertEquals(2, taskSelector.select(2, numShards, 1, 0));
+  }
+
+  @Test
+  public void testPowerOfTwoChoicesAvoidsSlowTask() throws Exception {
+    int numShards = 2;
+    List<Integer> targetTasks = targetTasks(9001, 8);
+    List<AtomicInteger> loads = new ArrayList<AtomicInteger>();
+    for (Integer taskId : targetTasks)
+      loads.add(TaskLoad.register(taskId));
+    try {
+      // the first task for shard 1 is falling behind
+      loads.get(1).set(500);
+      for (int t=0; t < loads.size(); t++) {
+        if (t != 1)
+          loads.get(t).set(t);
+      }
+
+      TaskSelector taskSelector = new TaskSelector(TaskSelector.Mode.POWER_OF_TWO_CHOICES, targetTasks);
+      int[] counts = new int[targetTasks.size()];
+      for (int i=0; i < 4000; i++) {
+        int task = taskSelector.select(1, numShards, 4, i);
+        assertEquals(1, task % numShards);
+        ++counts[task];
+      }
+      assertEquals(0, counts[1]);
+      assertTrue(counts[3] > counts[7]);
+    } finally {
+      for (Integer taskId : targetTasks)
+        TaskLoad.unregister(taskId);
+    }
+  }
+
+  @Test
+  public void testPowerOfTwoChoicesRandomForRemoteTasks() throws Exception {
+    int numShards = 1;
+    List<Integer> targetTasks = targetTasks(9101, 4);
+    // only the first two tasks run in this worker, and both are busy
+    List<AtomicInteger> loads = new ArrayList<AtomicInteger>();
+    for (int t=0; t < 2; t++)
+      loads.add(TaskLoad.register(targetTasks.get(t)));
+    try {
+      loads.get(0).set(100);
+      loads.get(1).set(200);
+
+      TaskSelector taskSelector = new TaskSelector(TaskSelector.Mode.POWER_OF_TWO_CHOICES, targetTasks);
+      int[] counts = new int[targetTasks.size()];
+      for (int i=0; i < 4000; i++)
+        ++counts[taskSelector.select(0, numShards, 4, i)];
+
+      // remote tasks don't look idle, so local tasks get their share
+      assertTrue(counts[0] > 800);
+      assertTrue(counts[1] > 300);
+      assertTrue(counts[0] > counts[1]);
+      for (int t=2; t < 4; t++)
+        assertTrue(counts[t] > 800 && counts[t] < 1200);
+    } finally {
+      for (int t=0; t < 2; t++)
+        TaskLoad.unregister(targetTasks.get(t));
+    }
+  }
+
+  @Test
+  public void testKeyAffinity() throws Exception {
+    int numShards = 4;
+    List<Integer> targetTasks = targetTasks(1, 12);
+    HashRangeGrouping grouping = new HashRangeGrouping(new HashMap(), numShards);
+    grouping.setTaskSelectionMode(TaskSelector.Mode.KEY_AFFINITY);
+    grouping.prepare(null, null, targetTasks);
+
+    Map<String,Integer> taskForDoc = new HashMap<String,Integer>();
+    Set<Integer> usedTasks = new HashSet<Integer>();
+    for (int r=0; r < 3; r++) {
+      for (int d=0; d < 1000; d++) {
+        String docId = (d % 2 == 0) ? "doc"+d : "tenant"+(d % 7)+"!doc"+d;
+        int task = grouping.chooseTasks(1, Collections.<Object>singletonList(docId)).get(0);
+        Integer firstTask = taskForDoc.put(docId, task);
+        if (firstTask != null)
+          assertEquals("updates to "+docId+" went to different tasks", firstTask.intValue(), task);
+        usedTasks.add(task);
+      }
+    }
+    assertEquals(targetTasks.size(), usedTasks.size());
+  }
+}
@@ -0,0 +1,135 @@
+package com.lucidworks.storm.solr;
+
+import com.lucidworks.storm.spring.BatchListener;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Tests that only the tuples for bad docs fail when the SolrBoltAction runs in tolerant mode.
+ */
+public class TolerantSolrBoltActionTest {
+
+  static class RecordingBatchListener implements BatchListener {
+    List<Object[]> completed = new ArrayList<Object[]>();
+
+    public void tupleBuffered(Object batchId, Object key) {}
+
+    public void batchCompleted(Object batchId, Throwable error) {
+      completed.add(new Object[]{batchId, error});
+    }
+
+    public void batchPartiallyFailed(Object batchId, Map<Object,Throwable> failedKeys) {
+      completed.add(new Object[]{batchId, failedKeys});
+    }
+  }
+
+  /**
+   * Rejects requests containing bad docs like Solr does, at the first bad doc; only some errors include the doc ID.
+   */
+  static class RejectingUpdateRequestStrategy implements SolrUpdateRequestStrategy {
+    Set<String> indexed = new HashSet<String>();
+    int numRequests = 0;
+
+    public NamedList<Object> sendUpdateRequest(SolrClient solrClient, String collection, SolrRequest req) {
+      ++numRequests;
+      List<SolrInputDocument> docs = ((UpdateRequest)req).getDocuments();
+      for (SolrInputDocument doc : docs) {
+        String id = (String)doc.getFieldValue("id");
+        if (id.startsWith("bad_with_id"))
+          throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+            "ERROR: [doc="+id+"] Error adding field 'ts_tdt'='foo' msg=Invalid Date String:'foo'");
+        if (id.startsWith("bad"))
+          throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Invalid Date String:'foo'");
+      }
+      for (SolrInputDocument doc : docs)
+        indexed.add((String)doc.getFieldValue("id"));
+      return new NamedList<Object>();
+    }
+  }
+
+  protected SolrInputDocument doc(String id) {
+    SolrInputDocument doc = new SolrInputDocument();
+    doc.setField("id", id);
+    return doc;
+  }
+
+  @Test
+  public void testOnlyBadDocsFail() throws Exception {
+    RecordingBatchListener listener = new RecordingBatchListener();
+    RejectingUpdateRequestStrategy strategy = new RejectingUpdateRequestStrategy();
+
+    SolrBoltAction sba = new SolrBoltAction(mock(CloudSolrClient.class));
+    sba.setMaxBufferSize(10);
+    sba.setTolerant(true);
+    sba.setUpdateRequestStrategy(strategy);
+    sba.setBatchListener(listener);
+
+    for (int d=0; d < 10; d++) {
+      String id = (d == 3) ? "bad_with_id3" : (d == 8) ? "bad8" : "good"+d;
+      sba.bufferDoc("test", doc(id));
+    }
+
+    assertEquals(1, listener.completed.size());
+    Map<Object,Throwable> failed = (Map<Object,Throwable>)listener.completed.get(0)[1];
+    assertEquals(2, failed.size());
+    assertNotNull(failed.get("bad_with_id3"));
+    assertNotNull(failed.get("bad8"));
+    assertEquals(8, strategy.indexed.size());
+    assertTrue(strategy.numRequests <= 10);
+
+    // a batch with only good docs completes normally
+    listener.completed.clear();
+    for (int d=0; d < 10; d++)
+      sba.bufferDoc("test", doc("ok"+d));
+    assertEquals(1, listener.completed.size());
+    assertNull(listener.completed.get(0)[1]);
+  }
+
+  @Test
+  public void testAtomicUpdatesNotResent() throws Exception {
+    RecordingBatchListener listener = new RecordingBatchListener();
+    RejectingUpdateRequestStrategy strategy = new RejectingUpdateRequestStrategy();
+
+    SolrBoltAction sba = new SolrBoltAction(mock(CloudSolrClient.class));
+    sba.setMaxBufferSize(6);
+    sba.setTolerant(true);
+    sba.setUpdateRequestStrategy(strategy);
+    sba.setBatchListener(listener);
+
+    for (int d=0; d < 6; d++) {
+      SolrInputDocument doc = doc((d == 4) ? "bad_with_id4" : (d == 1) ? "inc1" : "good"+d);
+      if (d == 1)
+        doc.setField("count_i", Collections.singletonMap("inc", 1));
+      sba.bufferDoc("test", doc);
+    }
+
+    // the increment may have been applied by the request that failed, so its tuple fails instead of re-sending it
+    assertEquals(1, listener.completed.size());
+    Map<Object,Throwable> failed = (Map<Object,Throwable>)listener.completed.get(0)[1];
+    assertEquals(2, failed.size());
+    assertNotNull(failed.get("bad_with_id4"));
+    assertNotNull(failed.get("inc1"));
+    assertEquals(4, strategy.indexed.size());
+    assertFalse(strategy.indexed.contains("inc1"));
+  }
+}
@@ -0,0 +1,122 @@
+package com.lucidworks.storm.solr;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.impl.CloudSolrClient;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Tests the SolrBoltAction acks tuples once their docs are spilled to disk, before Solr has indexed them.
+ */
+public class WriteAheadSpillBufferTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void testAckBeforeSolr() throws Exception {
+    final Set<String> indexed = Collections.synchronizedSet(new HashSet<String>());
+    final boolean[] down = new boolean[]{true};
+
+    SolrBoltAction sba = new SolrBoltAction(mock(CloudSolrClient.class));
+    sba.setUpdateRequestStrategy(new SolrUpdateRequestStrategy() {
+      public NamedList<Object> sendUpdateRequest(SolrClient solrClient, String collection, SolrRequest req) {
+        if (down[0])
+          throw new SolrException(SolrException.ErrorCode.SERVICE_UNAVAILABLE, "No live SolrServers");
+        for (SolrInputDocument doc : ((UpdateRequest)req).getDocuments())
+          indexed.add(collection+"/"+doc.getFieldValue("id"));
+        return new NamedList<Object>();
+      }
+    });
+    TolerantSolrBoltActionTest.RecordingBatchListener listener = new TolerantSolrBoltActionTest.RecordingBatchListener();
+    sba.setBatchListener(listener);
+
+    WriteAheadSpillBuffer spillBuffer = new WriteAheadSpillBuffer();
+    spillBuffer.setDir(tmp.newFolder("spill").getAbsolutePath());
+    spillBuffer.setMaxUnsyncedDocs(10);
+    spillBuffer.setSyncIntervalMs(60000L);
+    spillBuffer.setDrainBackoffMs(10L);
+    sba.setSpillBuffer(spillBuffer);
+
+    for (int d=0; d < 20; d++) {
+      SolrInputDocument doc = new SolrInputDocument();
+      doc.setField("id", "doc"+d);
+      sba.spillDoc((d % 2 == 0) ? "even" : "odd", doc);
+    }
+
+    // two groups of 10 synced and acked while Solr is down
+    assertEquals(2, listener.completed.size());
+    assertNull(listener.completed.get(0)[1]);
+    assertNull(listener.completed.get(1)[1]);
+    assertEquals(0, indexed.size());
+
+    down[0] = false;
+    long waitUntil = System.currentTimeMillis() + 5000L;
+    while (indexed.size() < 20 && System.currentTimeMillis() < waitUntil)
+      Thread.sleep(20L);
+    assertEquals(20, indexed.size());
+    assertEquals(true, indexed.contains("odd/doc19"));
+
+    sba.close();
+  }
+
+  @Test
+  public void testDrainSurvivesSenderErrors() throws Exception {
+    final Set<String> sent = Collections.synchronizedSet(new HashSet<String>());
+    final boolean[] broken = new boolean[]{true};
+
+    WriteAheadSpillBuffer spillBuffer = new WriteAheadSpillBuffer();
+    spillBuffer.setDir(tmp.newFolder("spill").getAbsolutePath());
+    spillBuffer.setDrainBackoffMs(10L);
+    spillBuffer.setMaxDrainBackoffMs(20L);
+    spillBuffer.setMaxDrainStallMs(50L);
+    spillBuffer.open(new WriteAheadSpillBuffer.Sender() {
+      public boolean send(String collection, List<SolrInputDocument> docs) throws Exception {
+        if (broken[0])
+          throw new IllegalStateException("unexpected");
+        for (SolrInputDocument doc : docs)
+          sent.add((String)doc.getFieldValue("id"));
+        return true;
+      }
+    });
+
+    for (int d=0; d < 5; d++) {
+      SolrInputDocument doc = new SolrInputDocument();
+      doc.setField("id", "doc"+d);
+      spillBuffer.append("test", doc);
+    }
+    spillBuffer.sync();
+
+    // draining stalls, but the drain thread keeps going
+    long waitUntil = System.currentTimeMillis() + 5000L;
+    while (spillBuffer.isHealthy() && System.currentTimeMillis() < waitUntil)
+      Thread.sleep(10L);
+    assertFalse(spillBuffer.isHealthy());
+
+    broken[0] = false;
+    waitUntil = System.currentTimeMillis() + 5000L;
+    while (sent.size() < 5 && System.currentTimeMillis() < waitUntil)
+      Thread.sleep(10L);
+    assertEquals(5, sent.size());
+    assertTrue(spillBuffer.isHealthy());
+
+    spillBuffer.close();
+  }
+}
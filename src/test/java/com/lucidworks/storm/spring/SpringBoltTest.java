@@ -0,0 +1,160 @@
+package com.lucidworks.storm.spring;
+
+import backtype.storm.Constants;
+import backtype.storm.task.OutputCollector;
+import backtype.storm.task.TopologyContext;
+import backtype.storm.tuple.Tuple;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests how the SpringBolt acks and fails the tuples a BatchAware action buffers into batches.
+ */
+public class SpringBoltTest {
+
+  /**
+   * Buffers each tuple into the current batch for its collection, the first value of the tuple.
+   */
+  static class BatchingAction implements StreamingDataAction, BatchAware, Closeable {
+    BatchListener batchListener;
+    Map<String,Long> batchIds = new HashMap<String,Long>();
+    long nextBatchId = 0L;
+    String completeOnClose;
+
+    public void setBatchListener(BatchListener batchListener) {
+      this.batchListener = batchListener;
+    }
+
+    public SpringBolt.ExecuteResult execute(Tuple input, OutputCollector collector) {
+      batchListener.tupleBuffered(getBatchId(input.getString(0)), input.getString(1));
+      return SpringBolt.ExecuteResult.BUFFERED;
+    }
+
+    Long getBatchId(String collection) {
+      Long batchId = batchIds.get(collection);
+      if (batchId == null) {
+        batchId = ++nextBatchId;
+        batchIds.put(collection, batchId);
+      }
+      return batchId;
+    }
+
+    public void close() throws IOException {
+      if (completeOnClose != null)
+        batchListener.batchCompleted(getBatchId(completeOnClose), null);
+    }
+  }
+
+  BatchingAction action;
+  OutputCollector collector;
+  SpringBolt bolt;
+
+  @Before
+  public void setupBolt() {
+    action = new BatchingAction();
+    collector = mock(OutputCollector.class);
+    bolt = new SpringBolt("test");
+    bolt.setStreamingDataAction(action);
+    bolt.prepare(new HashMap(), mock(TopologyContext.class), collector);
+  }
+
+  protected Tuple tuple(String collection, String docId) {
+    Tuple tuple = mock(Tuple.class);
+    when(tuple.getString(0)).thenReturn(collection);
+    when(tuple.getString(1)).thenReturn(docId);
+    return tuple;
+  }
+
+  protected Tuple tick() {
+    Tuple tick = mock(Tuple.class);
+    when(tick.getSourceComponent()).thenReturn(Constants.SYSTEM_COMPONENT_ID);
+    when(tick.getSourceStreamId()).thenReturn(Constants.SYSTEM_TICK_STREAM_ID);
+    return tick;
+  }
+
+  @Test
+  public void testAckOnlyCompletedBatch() throws Exception {
+    Tuple a1 = tuple("a", "1");
+    Tuple a2 = tuple("a", "2");
+    Tuple b1 = tuple("b", "1");
+    bolt.execute(a1);
+    bolt.execute(b1);
+    bolt.execute(a2);
+
+    action.batchListener.batchCompleted(action.getBatchId("a"), null);
+    bolt.execute(tick());
+
+    verify(collector).ack(a1);
+    verify(collector).ack(a2);
+    // the other collection's batch is still pending
+    verify(collector, never()).ack(b1);
+    verify(collector, never()).fail(any(Tuple.class));
+  }
+
+  @Test
+  public void testFailOnlyFailedBatch() throws Exception {
+    Tuple a1 = tuple("a", "1");
+    Tuple b1 = tuple("b", "1");
+    Tuple b2 = tuple("b", "2");
+    bolt.execute(a1);
+    bolt.execute(b1);
+    bolt.execute(b2);
+
+    Exception error = new Exception("collection b is down");
+    action.batchListener.batchCompleted(action.getBatchId("b"), error);
+    bolt.execute(tick());
+
+    verify(collector).reportError(error);
+    verify(collector).fail(b1);
+    verify(collector).fail(b2);
+    verify(collector, never()).fail(a1);
+    verify(collector, never()).ack(a1);
+
+    action.batchListener.batchCompleted(action.getBatchId("a"), null);
+    bolt.execute(tick());
+    verify(collector).ack(a1);
+  }
+
+  @Test
+  public void testFailOnlyFailedKeys() throws Exception {
+    Tuple a1 = tuple("a", "1");
+    Tuple a2 = tuple("a", "2");
+    Tuple b1 = tuple("b", "1");
+    bolt.execute(a1);
+    bolt.execute(a2);
+    bolt.execute(b1);
+
+    Exception error = new Exception("doc 2 rejected");
+    action.batchListener.batchPartiallyFailed(action.getBatchId("a"), Collections.<Object,Throwable>singletonMap("2", error));
+    bolt.execute(tick());
+
+    verify(collector).ack(a1);
+    verify(collector).fail(a2);
+    verify(collector, never()).ack(b1);
+    verify(collector, never()).fail(b1);
+  }
+
+  @Test
+  public void testBatchesCompletedOnClose() throws Exception {
+    Tuple a1 = tuple("a", "1");
+    bolt.execute(a1);
+    verify(collector, never()).ack(a1);
+
+    // the batch completes while the action flushes on close
+    action.completeOnClose = "a";
+    bolt.cleanup();
+    verify(collector).ack(a1);
+  }
+}
@@ -0,0 +1,128 @@
+package com.lucidworks.storm.utils;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.lucidworks.storm.fusion.FusionPipelineClient;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentProducer;
+import org.apache.http.entity.EntityTemplate;
+import org.apache.http.entity.StringEntity;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the GzipRequestCompressor
+ */
+public class GzipRequestCompressorTest {
+
+  @Test
+  public void testCompress() throws Exception {
+    GzipRequestCompressor compressor = new GzipRequestCompressor();
+    compressor.setMinCompressBytes(100);
+    compressor.compressionRatio = new MetricRegistry().histogram("compressionRatio");
+
+    // small requests are sent as-is
+    StringEntity small = new StringEntity("{\"id\":\"1\"}", StandardCharsets.UTF_8);
+    assertSame(small, compressor.compress(small));
+
+    StringBuilder sb = new StringBuilder();
+    for (int i=0; i < 1000; i++)
+      sb.append("{\"id\":\"").append(i).append("\",\"text_t\":\"the same text over and over\"}\n");
+    final String json = sb.toString();
+
+    // streamed requests have an unknown length so are compressed
+    HttpEntity streamed = new EntityTemplate(new ContentProducer() {
+      public void writeTo(OutputStream outputStream) throws IOException {
+        outputStream.write(json.getBytes(StandardCharsets.UTF_8));
+      }
+    });
+    HttpEntity compressed = compressor.compress(streamed);
+    assertNotSame(streamed, compressed);
+    assertEquals("gzip", compressed.getContentEncoding().getValue());
+    assertEquals(streamed.getContentType(), compressed.getContentType());
+    assertEquals(-1L, compressed.getContentLength());
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    compressed.writeTo(out);
+    assertTrue(out.size() < json.length());
+
+    GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()));
+    ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+    byte[] buf = new byte[1024];
+    int r;
+    while ((r = in.read(buf)) != -1)
+      inflated.write(buf, 0, r);
+    assertEquals(json, new String(inflated.toByteArray(), StandardCharsets.UTF_8));
+
+    assertEquals(1, compressor.compressionRatio.getCount());
+    assertTrue(compressor.compressionRatio.getSnapshot().getMax() < 100);
+
+    // entities for Fusion pipelines are compressed too
+    List<Map<String,Object>> docs = new ArrayList<Map<String,Object>>();
+    for (int i=0; i < 100; i++)
+      docs.add(Collections.<String,Object>singletonMap("text_t", "the same text over and over"));
+    HttpEntity fusionEntity = FusionPipelineClient.createJsonEntity(new ObjectMapper(), docs);
+    compressed = compressor.compress(fusionEntity);
+    assertNotSame(fusionEntity, compressed);
+    assertEquals("gzip", compressed.getContentEncoding().getValue());
+    assertEquals("application/json; charset=UTF-8", compressed.getContentType().getValue());
+
+    // unless the batch of docs is estimated to be too small to be worth it
+    HttpEntity smallFusionEntity = FusionPipelineClient.createJsonEntity(new ObjectMapper(), docs.subList(0, 1));
+    long estimated = FusionPipelineClient.estimateJsonBytes(docs.subList(0, 1), 100);
+    assertTrue(estimated < 100);
+    assertSame(smallFusionEntity, compressor.compress(smallFusionEntity, estimated));
+    assertTrue(FusionPipelineClient.estimateJsonBytes(docs, 100) >= 100);
+
+    compressor.setEnabled(false);
+    assertSame(streamed, compressor.compress(streamed));
+  }
+
+  @Test
+  public void testOnlyUpdateRequestsCompressed() throws Exception {
+    GzipRequestCompressor compressor = new GzipRequestCompressor();
+    compressor.setMinCompressBytes(10);
+    String body = "{\"id\":\"1\",\"text_t\":\"some text\"}";
+
+    HttpPost update = new HttpPost("http://localhost:8983/solr/test/update?wt=javabin&version=2");
+    StringEntity updateEntity = new StringEntity(body, StandardCharsets.UTF_8);
+    update.setEntity(updateEntity);
+    compressor.process(update, null);
+    assertNotSame(updateEntity, update.getEntity());
+
+    HttpPost jsonUpdate = new HttpPost("http://localhost:8983/solr/test/update/json/docs");
+    StringEntity jsonUpdateEntity = new StringEntity(body, StandardCharsets.UTF_8);
+    jsonUpdate.setEntity(jsonUpdateEntity);
+    compressor.process(jsonUpdate, null);
+    assertNotSame(jsonUpdateEntity, jsonUpdate.getEntity());
+
+    // queries and admin requests sent as POSTs are left alone
+    HttpPost query = new HttpPost("http://localhost:8983/solr/test/select");
+    StringEntity queryEntity = new StringEntity("q=*:*&fq=updated_s:x", StandardCharsets.UTF_8);
+    query.setEntity(queryEntity);
+    compressor.process(query, null);
+    assertSame(queryEntity, query.getEntity());
+
+    HttpPost admin = new HttpPost("http://localhost:8983/solr/admin/collections?action=CLUSTERSTATUS");
+    StringEntity adminEntity = new StringEntity("wt=javabin&version=2", StandardCharsets.UTF_8);
+    admin.setEntity(adminEntity);
+    compressor.process(admin, null);
+    assertSame(adminEntity, admin.getEntity());
+  }
+}